@@ -0,0 +1,154 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bộ chạy benchmark nhỏ theo cách của JMH: các vòng warmup bị bỏ, mỗi vòng đo chạy trong
+// một khoảng thời gian cố định, kết quả là trung bình ± độ lệch chuẩn giữa các vòng.
+// Giá trị tính ra nên được đưa vào consume() để JIT không loại bỏ phần việc cần đo.
+//
+// Server và benchmark đều ở package mặc định, JMH không sinh code được cho class
+// ở package mặc định nên module này dùng bộ chạy riêng.
+public class Bench {
+    private static volatile Object sink;
+    private static PrintStream console = System.out;
+
+    private final int warmupIterations;
+    private final int measureIterations;
+    private final long iterationMillis;
+
+    public Bench(int warmupIterations, int measureIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measureIterations = measureIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    // Đọc tham số chung: -wi <vòng warmup> -i <vòng đo> -t <ms mỗi vòng>
+    public static Bench fromArgs(String[] args) {
+        int warmups = 3;
+        int iterations = 5;
+        long millis = 1000;
+        for (int i = 0; i + 1 < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-t": millis = Long.parseLong(args[++i]); break;
+                default: break;
+            }
+        }
+        return new Bench(warmups, iterations, millis);
+    }
+
+    // Một phần việc cần đo: chạy đến deadline (System.nanoTime) và trả về số thao tác đã làm
+    public interface Workload {
+        long run(long deadlineNanos) throws Exception;
+    }
+
+    public Result measure(String name, Workload workload) throws Exception {
+        return measure(name, 1, workload);
+    }
+
+    // Chạy workload trên threads thread cùng lúc, thông lượng là tổng của mọi thread
+    public Result measure(String name, int threads, Workload workload) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(threads, workload);
+        }
+
+        double[] samples = new double[measureIterations];
+        for (int i = 0; i < measureIterations; i++) {
+            samples[i] = iteration(threads, workload);
+        }
+
+        Result result = new Result(name, samples);
+        console.println(result);
+        return result;
+    }
+
+    private double iteration(int threads, Workload workload) throws Exception {
+        if (threads == 1) {
+            long begin = System.nanoTime();
+            long ops = workload.run(begin + iterationMillis * 1_000_000L);
+            return ops / ((System.nanoTime() - begin) / 1e9);
+        }
+
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] window = new long[1];
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    ops.add(workload.run(window[0]));
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        window[0] = begin + iterationMillis * 1_000_000L;
+        start.countDown();
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return ops.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    // Giữ giá trị lại để JIT không coi phép tính là vô dụng
+    public static void consume(Object value) {
+        sink = value;
+    }
+
+    // Log của server ghi ra System.out sẽ làm nhiễu kết quả: tắt trong lúc đo,
+    // kết quả vẫn in ra console gốc
+    public static void silenceServerLog() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    public static void restoreServerLog() {
+        System.setOut(console);
+    }
+
+    public static PrintStream console() {
+        return console;
+    }
+
+    public static class Result {
+        private final String name;
+        private final double mean;
+        private final double stddev;
+
+        Result(String name, double[] samples) {
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            double avg = sum / samples.length;
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - avg) * (sample - avg);
+            }
+            this.name = name;
+            this.mean = avg;
+            this.stddev = samples.length > 1 ? Math.sqrt(squares / (samples.length - 1)) : 0;
+        }
+
+        public String getName() { return name; }
+        public double getMean() { return mean; }
+        public double getStddev() { return stddev; }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %16.0f ± %-12.0f ops/s", name, mean, stddev);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+// Chạy các nhóm benchmark của server. Mỗi thay đổi về hiệu năng nên kèm kết quả từ đây.
+//
+// Chạy: java BenchmarkSuite [codec] [registry] [fanout] [heartbeat] [logging] [-wi n] [-i n] [-t ms]
+//                           [-users số user nền] [-sizes 1000,10000,100000]
+// Không chỉ định nhóm nào thì chạy tất cả.
+public class BenchmarkSuite {
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        boolean all = true;
+        for (String arg : args) {
+            if (isSuite(arg)) {
+                all = false;
+                break;
+            }
+        }
+
+        Bench.silenceServerLog();
+        try {
+            if (all || contains(args, "codec")) {
+                CodecBenchmark.run(bench);
+            }
+            if (all || contains(args, "registry")) {
+                PresenceContentionBenchmark.run(bench, PresenceContentionBenchmark.backgroundUsers(args));
+            }
+            if (all || contains(args, "fanout")) {
+                FanOutBenchmark.run(bench, FanOutBenchmark.sizes(args));
+            }
+            if (all || contains(args, "heartbeat")) {
+                HeartbeatExpiryBenchmark.run(bench, FanOutBenchmark.sizes(args));
+            }
+            if (all || contains(args, "logging")) {
+                LoggingBenchmark.run(bench);
+            }
+        } finally {
+            Bench.restoreServerLog();
+        }
+    }
+
+    private static boolean isSuite(String arg) {
+        return arg.equals("codec") || arg.equals("registry") || arg.equals("fanout") || arg.equals("heartbeat")
+                || arg.equals("logging");
+    }
+
+    private static boolean contains(String[] args, String value) {
+        for (String arg : args) {
+            if (arg.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
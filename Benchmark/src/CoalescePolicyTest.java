@@ -0,0 +1,104 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+// Kiểm tra policy COALESCE khi presence được gom lô (presence.batch.window.ms > 0):
+// một client không đọc gì phải được giữ kết nối, frame lô mới thay frame lô cũ trong hàng đợi
+// và frame cuối cùng đưa client tới version presence mới nhất.
+//
+// Chạy: java CoalescePolicyTest (thoát với mã 1 nếu sai)
+public class CoalescePolicyTest {
+    private static final int CAPACITY = 4;
+    private static final int WINDOW_MS = 20;
+    private static final int LOGINS = 20;
+
+    public static void main(String[] args) throws Exception {
+        // Phải đặt trước khi ServerUtils được nạp
+        System.setProperty("outbound.queue.capacity", String.valueOf(CAPACITY));
+        System.setProperty("outbound.overflow.policy", "coalesce");
+        System.setProperty("presence.batch.window.ms", String.valueOf(WINDOW_MS));
+        System.setProperty("mailbox.dir", Files.createTempDirectory("coalesce-mailbox").toString());
+
+        Bench.silenceServerLog();
+        String failure;
+        try {
+            failure = run();
+        } finally {
+            Bench.restoreServerLog();
+        }
+
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String run() throws Exception {
+        SignalingServer server = new SignalingServer(0);
+        try {
+            StalledSession watcher = new StalledSession(server, "watcher");
+            server.addOnlinePeer("watcher", InetAddress.getLoopbackAddress(), 5000, watcher, null);
+
+            // Mỗi lần đăng nhập rơi vào một cửa sổ riêng nên watcher nhận một frame lô mỗi lần
+            for (int i = 0; i < LOGINS; i++) {
+                String username = "user" + i;
+                server.addOnlinePeer(username, InetAddress.getLoopbackAddress(), 5000,
+                        new InMemorySession(server, username), null);
+                Thread.sleep(WINDOW_MS * 3);
+            }
+
+            if (!watcher.isConnected()) {
+                return "watcher bị ngắt kết nối khi hàng đợi đầy: " + watcher.getOutboundStats();
+            }
+            OutboundQueue.Stats stats = watcher.getOutboundStats();
+            if (stats.getCoalesced() == 0) {
+                return "không có frame nào được gộp: " + stats;
+            }
+
+            OutboundFrame frame;
+            Message last = null;
+            while ((frame = watcher.take()) != null) {
+                last = MessageCodec.tryReadFrame(ByteBuffer.wrap(frame.getBytes()));
+            }
+            if (last == null || last.getType() != Message.Type.PRESENCE_SYNC) {
+                return "frame cuối không phải PRESENCE_SYNC: " + last;
+            }
+            // epoch;base;version;kind;entries
+            String[] parts = last.getContent().split(";", -1);
+            if (!"D".equals(parts[3]) || !parts[4].contains("+user" + (LOGINS - 1) + "@")) {
+                return "frame cuối không chứa lần đăng nhập cuối: " + last.getContent();
+            }
+            return null;
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Session không bao giờ rút hàng đợi, như một client ngừng đọc socket
+    private static class StalledSession extends ClientSession {
+        StalledSession(SignalingServer server, String username) {
+            super(server);
+            this.username = username;
+        }
+
+        OutboundFrame take() {
+            return outbound.poll();
+        }
+
+        @Override
+        protected void onFrameQueued() {
+            // Không ghi gì
+        }
+
+        @Override
+        protected InetAddress getRemoteAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        protected void closeTransport() {
+            // Không có kết nối thật
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+
+// Mã hóa rồi giải mã Message bằng MessageCodec với các kích thước tin thường gặp:
+// heartbeat, presence delta nhiều user và tin có file đính kèm; thêm các trường hợp có nén
+// (FrameCompression) kèm tỉ lệ nén.
+//
+// Chạy: java CodecBenchmark [-wi n] [-i n] [-t ms]
+public class CodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        run(Bench.fromArgs(args));
+    }
+
+    public static void run(Bench bench) throws Exception {
+        Message heartbeat = new Message(Message.Type.HEARTBEAT, "alice", "ping");
+
+        StringBuilder entries = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            entries.append(i == 0 ? "" : ",").append("+user").append(i).append('@').append(1000 + i);
+        }
+        Message presence = new Message(Message.Type.PRESENCE_SYNC, "Server",
+                System.currentTimeMillis() + ";950;1050;D;" + entries);
+
+        Message file = new Message(Message.Type.FILE, "alice", "ảnh chụp màn hình");
+        file.setToUser("bob");
+        file.setFileName("screenshot.png");
+        file.setFileData(new byte[64 * 1024]);
+
+        Message text = new Message(Message.Type.TEXT, "alice",
+                "Chào bạn, hôm nay mình đang làm phần giao diện chat, bạn có thời gian xem giúp mình được không? "
+                        + "Cảm ơn nhé, tối nay mình gửi bản mới cho bạn.");
+        text.setToUser("bob");
+
+        roundTrip(bench, "codec.roundTrip heartbeat", heartbeat, false);
+        roundTrip(bench, "codec.roundTrip presence(50 users)", presence, false);
+        roundTrip(bench, "codec.roundTrip file(64KB)", file, false);
+        encodeOnly(bench, "codec.encode presence(50 users)", presence);
+
+        roundTrip(bench, "codec.roundTrip presence(50 users) deflate", presence, true);
+        roundTrip(bench, "codec.roundTrip text deflate", text, true);
+        printRatio("presence(50 users)", presence);
+        printRatio("text", text);
+    }
+
+    private static void printRatio(String name, Message message) {
+        int raw = MessageCodec.encode(message).length;
+        int compressed = MessageCodec.encode(message, true).length;
+        Bench.console().printf("codec.deflate %s: %d -> %d bytes (%.0f%%)%n", name, raw, compressed,
+                compressed * 100.0 / raw);
+    }
+
+    private static void roundTrip(Bench bench, String name, Message message, boolean compress) throws Exception {
+        bench.measure(name, deadline -> {
+            long ops = 0;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < 64; i++) {
+                    ByteBuffer frame = ByteBuffer.wrap(MessageCodec.encode(message, compress));
+                    Bench.consume(MessageCodec.tryReadFrame(frame));
+                }
+                ops += 64;
+            }
+            return ops;
+        });
+    }
+
+    private static void encodeOnly(Bench bench, String name, Message message) throws Exception {
+        bench.measure(name, deadline -> {
+            long ops = 0;
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < 64; i++) {
+                    Bench.consume(MessageCodec.encode(message));
+                }
+                ops += 64;
+            }
+            return ops;
+        });
+    }
+}
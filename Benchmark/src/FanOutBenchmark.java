@@ -0,0 +1,69 @@
+import java.net.InetAddress;
+
+// Broadcast một tin presence đến 1k/10k/100k session trong bộ nhớ.
+// So sánh frame mã hóa một lần dùng chung (cách SignalingServer đang làm) với
+// mã hóa lại cho từng người nhận.
+//
+// Chạy: java FanOutBenchmark [-wi n] [-i n] [-t ms] [-sizes 1000,10000,100000]
+public class FanOutBenchmark {
+    public static void main(String[] args) throws Exception {
+        Bench.silenceServerLog();
+        try {
+            run(Bench.fromArgs(args), sizes(args));
+        } finally {
+            Bench.restoreServerLog();
+        }
+    }
+
+    public static void run(Bench bench, int[] sizes) throws Exception {
+        for (int size : sizes) {
+            SignalingServer server = new SignalingServer(0);
+            // Đăng ký thẳng vào registry: login qua addOnlinePeer sẽ tự broadcast N lần
+            for (int i = 0; i < size; i++) {
+                String username = "user" + i;
+                server.getRegistry().register(username,
+                        new PeerInfo(username, InetAddress.getLoopbackAddress(), 5000),
+                        new InMemorySession(server, username));
+            }
+
+            Message event = new Message(Message.Type.PRESENCE_SYNC, "Server",
+                    System.currentTimeMillis() + ";41;42;D;+newcomer@42");
+
+            bench.measure("fanout.shared    " + size + " sessions", deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    server.broadcastFrame(OutboundFrame.forBroadcast(event, null));
+                    ops++;
+                }
+                return ops;
+            });
+
+            bench.measure("fanout.perClient " + size + " sessions", deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    for (PresenceRegistry.Entry entry : server.getRegistry().entries()) {
+                        entry.getSession().sendFrame(OutboundFrame.of(event));
+                    }
+                    ops++;
+                }
+                return ops;
+            });
+
+            server.stop();
+        }
+    }
+
+    static int[] sizes(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("-sizes".equals(args[i])) {
+                String[] parts = args[i + 1].split(",");
+                int[] sizes = new int[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    sizes[j] = Integer.parseInt(parts[j].trim());
+                }
+                return sizes;
+            }
+        }
+        return new int[] {1000, 10000, 100000};
+    }
+}
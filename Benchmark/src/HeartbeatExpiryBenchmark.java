@@ -0,0 +1,71 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Chi phí mỗi tick của việc kiểm tra heartbeat khi có N user online, mọi user đều
+// gửi heartbeat đều đặn. So sánh TimingWheel mà HeartbeatMonitor đang dùng với cách cũ
+// duyệt toàn bộ danh sách peer mỗi lần kiểm tra.
+// Đồng hồ là giả lập: mỗi thao tác là đúng một tick, không phải chờ thời gian thật.
+//
+// Chạy: java HeartbeatExpiryBenchmark [-wi n] [-i n] [-t ms] [-sizes 1000,10000,100000]
+public class HeartbeatExpiryBenchmark {
+    private static final long TIMEOUT = 30000;
+    private static final long TICK = 250;
+
+    public static void main(String[] args) throws Exception {
+        run(Bench.fromArgs(args), FanOutBenchmark.sizes(args));
+    }
+
+    public static void run(Bench bench, int[] sizes) throws Exception {
+        for (int size : sizes) {
+            long start = System.currentTimeMillis();
+            List<PeerInfo> peers = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                PeerInfo peer = new PeerInfo("user" + i, InetAddress.getLoopbackAddress(), 5000);
+                peer.setLastHeartbeat(start - ThreadLocalRandom.current().nextLong(TIMEOUT));
+                peers.add(peer);
+            }
+
+            // Heartbeat của user đến hạn được coi như vừa tới, nên mỗi user chỉ được xem lại
+            // khoảng một lần mỗi TIMEOUT
+            long[] clock = {start};
+            TimingWheel<PeerInfo> wheel = new TimingWheel<>(TICK, TIMEOUT, (peer, now) -> {
+                long deadline = peer.getLastHeartbeat() + TIMEOUT;
+                if (deadline < now) {
+                    peer.setLastHeartbeat(now);
+                    deadline = now + TIMEOUT;
+                }
+                return deadline;
+            });
+            for (PeerInfo peer : peers) {
+                wheel.schedule(peer, peer.getLastHeartbeat() + TIMEOUT);
+            }
+
+            bench.measure("heartbeat.wheel    tick, " + size + " users", deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    clock[0] += TICK;
+                    wheel.advance(clock[0]);
+                    ops++;
+                }
+                return ops;
+            });
+
+            bench.measure("heartbeat.fullScan tick, " + size + " users", deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    int timedOut = 0;
+                    for (PeerInfo peer : peers) {
+                        if (peer.isTimedOut(TIMEOUT)) {
+                            timedOut++;
+                        }
+                    }
+                    Bench.consume(timedOut);
+                    ops++;
+                }
+                return ops;
+            });
+        }
+    }
+}
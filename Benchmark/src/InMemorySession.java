@@ -0,0 +1,36 @@
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+// Session giả dùng cho benchmark: không có socket, frame được rút khỏi hàng đợi
+// ngay khi được đưa vào và chỉ đếm số byte.
+public class InMemorySession extends ClientSession {
+    private final LongAdder bytesWritten;
+
+    public InMemorySession(SignalingServer server, String username) {
+        super(server);
+        this.username = username;
+        this.bytesWritten = new LongAdder();
+    }
+
+    @Override
+    protected void onFrameQueued() {
+        OutboundFrame frame;
+        while ((frame = outbound.poll()) != null) {
+            bytesWritten.add(frame.getBytes().length);
+        }
+    }
+
+    @Override
+    protected InetAddress getRemoteAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    protected void closeTransport() {
+        // Không có kết nối thật
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+}
@@ -0,0 +1,484 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Giả lập hàng nghìn client không giao diện kết nối đến một SignalingServer đang chạy.
+// Mỗi client login, gửi heartbeat định kỳ, gửi PEER_REQUEST đến user online ngẫu nhiên
+// (theo phân phối Poisson) và trả lời PEER_INFO khi được hỏi, giống ClientSocket.
+// Các client được chia cho vài thread, mỗi thread một Selector, nên số client không bị
+// giới hạn bởi số thread.
+//
+// Kết quả: p50/p99/p999 của login (LOGIN -> login_success) và của yêu cầu P2P
+// (PEER_REQUEST -> PEER_INFO), thông lượng và số lỗi.
+//
+// Chạy: java LoadGenerator [-host localhost] [-port 8888] [-clients 1000] [-loops số thread]
+//                          [-profile linear|step|burst] [-ramp ms] [-steps n] [-duration giây]
+//                          [-heartbeat ms] [-peer-rate yêu cầu/giây mỗi client]
+public class LoadGenerator {
+    private static final long LOGIN_TIMEOUT_NANOS = 30_000_000_000L;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int loopCount;
+    private final String profile;
+    private final long rampMillis;
+    private final int steps;
+    private final long durationMillis;
+    private final long heartbeatMillis;
+    private final double peerRate;
+
+    // 1 nếu client i đang đăng nhập, dùng để chọn đích cho PEER_REQUEST
+    private final AtomicIntegerArray online;
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram peerLatency = new LatencyHistogram();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder errorFrames = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder loggedIn = new LongAdder();
+    private volatile boolean running = true;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "8888"));
+        this.clients = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        this.loopCount = Integer.parseInt(options.getOrDefault("loops",
+                String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        this.profile = options.getOrDefault("profile", "linear");
+        this.rampMillis = Long.parseLong(options.getOrDefault("ramp", "10000"));
+        this.steps = Math.max(1, Integer.parseInt(options.getOrDefault("steps", "5")));
+        this.durationMillis = Long.parseLong(options.getOrDefault("duration", "60")) * 1000;
+        this.heartbeatMillis = Long.parseLong(options.getOrDefault("heartbeat", "10000"));
+        this.peerRate = Double.parseDouble(options.getOrDefault("peer-rate", "0.1"));
+        this.online = new AtomicIntegerArray(clients);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    public void run() throws Exception {
+        System.out.println(String.format("LoadGenerator: %d clients -> %s:%d, profile %s (ramp %dms), %d loops",
+                clients, host, port, profile, rampMillis, loopCount));
+
+        IoLoop[] loops = new IoLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].start();
+        }
+
+        long begin = System.currentTimeMillis();
+        long end = begin + durationMillis;
+        long nextReport = begin + 1000;
+        long lastSent = 0;
+        long lastReceived = 0;
+        int started = 0;
+
+        while (System.currentTimeMillis() < end) {
+            long elapsed = System.currentTimeMillis() - begin;
+            while (started < clients && startOffset(started) <= elapsed) {
+                loops[started % loopCount].connect(new SimClient(started));
+                started++;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                long sent = framesSent.sum();
+                long received = framesReceived.sum();
+                System.out.println(String.format("[%3ds] started=%d online=%d sent=%d/s recv=%d/s errors=%d",
+                        (now - begin) / 1000, started, loggedIn.sum(), sent - lastSent, received - lastReceived,
+                        connectErrors.sum() + errorFrames.sum() + disconnects.sum()));
+                lastSent = sent;
+                lastReceived = received;
+                nextReport += 1000;
+            }
+            Thread.sleep(5);
+        }
+
+        running = false;
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+            loop.join();
+        }
+        report((System.currentTimeMillis() - begin) / 1000.0, loops);
+    }
+
+    // Thời điểm (ms kể từ lúc bắt đầu) client thứ index kết nối, theo profile tăng tải
+    private long startOffset(int index) {
+        switch (profile) {
+            case "burst":
+                // Toàn bộ client cùng kết nối, giống lúc server vừa khởi động lại
+                return 0;
+            case "step":
+                // Tăng theo bậc: mỗi bậc thêm clients/steps client cùng lúc
+                return rampMillis * ((long) index * steps / clients) / steps;
+            default:
+                return rampMillis * index / clients;
+        }
+    }
+
+    private void report(double seconds, IoLoop[] loops) {
+        int unanswered = 0;
+        for (IoLoop loop : loops) {
+            unanswered += loop.pendingPeerRequests;
+        }
+
+        System.out.println();
+        System.out.println("login       " + loginLatency.summary());
+        System.out.println("peer info   " + peerLatency.summary());
+        System.out.println(String.format("throughput  sent %.0f frames/s (%.1f KB/s), received %.0f frames/s (%.1f KB/s)",
+                framesSent.sum() / seconds, bytesSent.sum() / seconds / 1024,
+                framesReceived.sum() / seconds, bytesReceived.sum() / seconds / 1024));
+        System.out.println(String.format("errors      connect=%d error-frames=%d disconnects=%d unanswered-peer-requests=%d",
+                connectErrors.sum(), errorFrames.sum(), disconnects.sum(), unanswered));
+    }
+
+    private String usernameOf(int index) {
+        return "load" + index;
+    }
+
+    // Chọn ngẫu nhiên một client khác đang online, -1 nếu không tìm được sau vài lần thử
+    private int randomOnlinePeer(int self) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int attempt = 0; attempt < 8; attempt++) {
+            int candidate = random.nextInt(clients);
+            if (candidate != self && online.get(candidate) == 1) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    // Khoảng cách đến PEER_REQUEST tiếp theo (nano giây), phân phối mũ với trung bình 1/peerRate
+    private long nextPeerDelay() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        return (long) (-Math.log(1 - u) / peerRate * 1e9);
+    }
+
+    // Một thread I/O phục vụ một phần các client
+    private class IoLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SimClient> newClients = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private int pendingPeerRequests;
+
+        IoLoop(int id) throws IOException {
+            super("load-loop-" + id);
+            this.selector = Selector.open();
+        }
+
+        void connect(SimClient client) {
+            newClients.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long wait = timers.isEmpty() ? 100
+                            : Math.max(1, (timers.peek().due - System.nanoTime()) / 1_000_000);
+                    selector.select(Math.min(wait, 100));
+
+                    SimClient client;
+                    while ((client = newClients.poll()) != null) {
+                        client.open(this);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SimClient owner = (SimClient) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            owner.onConnected();
+                        } else {
+                            if (key.isValid() && key.isReadable()) {
+                                owner.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                owner.flush();
+                            }
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().due <= now) {
+                        Timer timer = timers.poll();
+                        timer.client.onTimer(timer.kind, now);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(getName() + ": " + e.getMessage());
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                SimClient client = (SimClient) key.attachment();
+                pendingPeerRequests += client.pendingPeers.size();
+                client.close(false);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        void schedule(SimClient client, int kind, long due) {
+            timers.add(new Timer(due, client, kind));
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        static final int HEARTBEAT = 0;
+        static final int PEER_REQUEST = 1;
+        static final int LOGIN_TIMEOUT = 2;
+
+        private final long due;
+        private final SimClient client;
+        private final int kind;
+
+        Timer(long due, SimClient client, int kind) {
+            this.due = due;
+            this.client = client;
+            this.kind = kind;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(due, other.due);
+        }
+    }
+
+    // Một client giả lập, chỉ được dùng trên thread của IoLoop sở hữu nó
+    private class SimClient {
+        private final int index;
+        private final String username;
+        private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+        // Đích của các PEER_REQUEST đang chờ PEER_INFO -> thời điểm gửi
+        private final Map<String, Long> pendingPeers = new HashMap<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private IoLoop loop;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long loginSentAt;
+        private boolean authenticated;
+        private boolean closed;
+
+        SimClient(int index) {
+            this.index = index;
+            this.username = usernameOf(index);
+        }
+
+        void open(IoLoop owner) {
+            this.loop = owner;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(new InetSocketAddress(host, port))) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                connectErrors.increment();
+                close(false);
+            }
+        }
+
+        void onConnected() {
+            try {
+                if (channel.isConnectionPending()) {
+                    channel.finishConnect();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                loginSentAt = System.nanoTime();
+                send(new Message(Message.Type.LOGIN, username, "login:" + (20000 + index % 40000) + ":"));
+                loop.schedule(this, Timer.LOGIN_TIMEOUT, loginSentAt + LOGIN_TIMEOUT_NANOS);
+            } catch (IOException e) {
+                connectErrors.increment();
+                close(false);
+            }
+        }
+
+        void onReadable() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read == -1) {
+                    close(true);
+                    return;
+                }
+                bytesReceived.add(read);
+
+                readBuffer.flip();
+                Message message;
+                while (!closed && (message = MessageCodec.tryReadFrame(readBuffer)) != null) {
+                    framesReceived.increment();
+                    onMessage(message);
+                }
+                readBuffer.compact();
+
+                if (!readBuffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                    readBuffer.flip();
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                }
+            } catch (IOException e) {
+                close(true);
+            }
+        }
+
+        private void onMessage(Message message) throws IOException {
+            long now = System.nanoTime();
+            switch (message.getType()) {
+                case LOGIN:
+                    if ("login_success".equals(message.getContent()) && !authenticated) {
+                        authenticated = true;
+                        loginLatency.recordNanos(now - loginSentAt);
+                        loggedIn.increment();
+                        online.set(index, 1);
+                        // Lệch pha ngẫu nhiên để heartbeat của các client không dồn cùng lúc
+                        loop.schedule(this, Timer.HEARTBEAT,
+                                now + ThreadLocalRandom.current().nextLong(heartbeatMillis * 1_000_000L + 1));
+                        if (peerRate > 0) {
+                            loop.schedule(this, Timer.PEER_REQUEST, now + nextPeerDelay());
+                        }
+                    }
+                    break;
+
+                case PEER_REQUEST: {
+                    // Trả lời như ClientSocket: gửi thông tin P2P của mình cho người hỏi
+                    Message reply = new Message(Message.Type.PEER_INFO, username,
+                            "127.0.0.1:" + (20000 + index % 40000));
+                    reply.setToUser(message.getFromUser());
+                    send(reply);
+                    break;
+                }
+
+                case PEER_INFO: {
+                    Long sentAt = pendingPeers.remove(message.getFromUser());
+                    if (sentAt != null) {
+                        peerLatency.recordNanos(now - sentAt);
+                    }
+                    break;
+                }
+
+                case ERROR:
+                    errorFrames.increment();
+                    break;
+
+                default:
+                    // PRESENCE_SYNC và các tin khác chỉ được đếm
+                    break;
+            }
+        }
+
+        void onTimer(int kind, long now) {
+            if (closed) {
+                return;
+            }
+            try {
+                switch (kind) {
+                    case Timer.HEARTBEAT:
+                        send(new Message(Message.Type.HEARTBEAT, username, "ping"));
+                        loop.schedule(this, Timer.HEARTBEAT, now + heartbeatMillis * 1_000_000L);
+                        break;
+
+                    case Timer.PEER_REQUEST: {
+                        int target = randomOnlinePeer(index);
+                        if (target >= 0) {
+                            String targetUser = usernameOf(target);
+                            // Mỗi đích chỉ có một yêu cầu đang chờ, giống người dùng thật
+                            if (pendingPeers.putIfAbsent(targetUser, now) == null) {
+                                Message request = new Message(Message.Type.PEER_REQUEST, username, "peer_request");
+                                request.setToUser(targetUser);
+                                send(request);
+                            }
+                        }
+                        loop.schedule(this, Timer.PEER_REQUEST, now + nextPeerDelay());
+                        break;
+                    }
+
+                    case Timer.LOGIN_TIMEOUT:
+                        if (!authenticated) {
+                            errorFrames.increment();
+                            close(false);
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                close(true);
+            }
+        }
+
+        private void send(Message message) throws IOException {
+            byte[] frame = MessageCodec.encode(message);
+            writes.add(ByteBuffer.wrap(frame));
+            framesSent.increment();
+            bytesSent.add(frame.length);
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!writes.isEmpty()) {
+                ByteBuffer head = writes.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    // Socket đầy: chờ OP_WRITE
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close(boolean unexpected) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (unexpected && running) {
+                disconnects.increment();
+            }
+            if (authenticated) {
+                online.set(index, 0);
+                loggedIn.decrement();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Chi phí một dòng log INFO trên thread xử lý: cách cũ (SimpleDateFormat mới + println
+// đồng bộ) so với ServerUtils.info qua AsyncLogger, ở 1 thread và nhiều thread.
+// Output đều bị chuyển vào stream rỗng nên chỉ đo phần việc của logger.
+//
+// Chạy: java LoggingBenchmark [-wi n] [-i n] [-t ms]
+public class LoggingBenchmark {
+    public static void main(String[] args) throws Exception {
+        Bench.silenceServerLog();
+        try {
+            run(Bench.fromArgs(args));
+        } finally {
+            Bench.restoreServerLog();
+        }
+    }
+
+    public static void run(Bench bench) throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int t : new int[] {1, threads}) {
+            bench.measure("log.sync  x" + t, t, deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    syncLog("INFO", "Gửi yêu cầu P2P từ " + "alice" + ops + " đến " + "bob");
+                    ops++;
+                }
+                return ops;
+            });
+            bench.measure("log.async x" + t, t, deadline -> {
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    ServerUtils.info("Gửi yêu cầu P2P từ {} đến {}", "alice", "bob");
+                    ops++;
+                }
+                return ops;
+            });
+        }
+    }
+
+    // ServerUtils.log trước khi dùng AsyncLogger
+    private static void syncLog(String level, String message) {
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        System.out.println("[" + timestamp + "] [" + level + "] " + message);
+    }
+}
@@ -0,0 +1,72 @@
+import java.net.InetAddress;
+
+// Đo thông lượng login/logout khi nhiều thread cùng thao tác trên SignalingServer.
+// So sánh registry không lock toàn cục với cách cũ (mọi login/logout đi qua một monitor)
+// ở nhiều mức số thread, trên nền một lượng user đang online sẵn để mỗi login có broadcast thật.
+//
+// Chạy: java PresenceContentionBenchmark [-wi n] [-i n] [-t ms] [-users số user nền]
+public class PresenceContentionBenchmark {
+    public static void main(String[] args) throws Exception {
+        Bench.silenceServerLog();
+        try {
+            run(Bench.fromArgs(args), backgroundUsers(args));
+        } finally {
+            Bench.restoreServerLog();
+        }
+    }
+
+    public static void run(Bench bench, int backgroundUsers) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        SignalingServer server = new SignalingServer(0);
+        for (int i = 0; i < backgroundUsers; i++) {
+            String username = "bg" + i;
+            server.addOnlinePeer(username, InetAddress.getLoopbackAddress(), 5000,
+                    new InMemorySession(server, username), null);
+        }
+
+        Bench.console().println("registry: " + backgroundUsers + " background users, " + cores + " cores");
+        Object globalLock = new Object();
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            bench.measure("registry.loginLogout lock-free   x" + threads, threads,
+                    deadline -> loginLogoutLoop(server, deadline, null));
+            bench.measure("registry.loginLogout global-lock x" + threads, threads,
+                    deadline -> loginLogoutLoop(server, deadline, globalLock));
+        }
+
+        server.stop();
+    }
+
+    // Mỗi thread liên tục login rồi logout các user riêng của nó, trả về số cặp thao tác
+    private static long loginLogoutLoop(SignalingServer server, long deadline, Object globalLock) {
+        String prefix = "user" + Thread.currentThread().threadId() + "_";
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            String username = prefix + (ops % 64);
+            InMemorySession session = new InMemorySession(server, username);
+            if (globalLock != null) {
+                synchronized (globalLock) {
+                    loginLogout(server, username, session);
+                }
+            } else {
+                loginLogout(server, username, session);
+            }
+            ops++;
+        }
+        return ops;
+    }
+
+    private static void loginLogout(SignalingServer server, String username, InMemorySession session) {
+        server.addOnlinePeer(username, InetAddress.getLoopbackAddress(), 5000, session, null);
+        server.removeOnlinePeer(username, session);
+    }
+
+    static int backgroundUsers(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("-users".equals(args[i])) {
+                return Integer.parseInt(args[i + 1]);
+            }
+        }
+        return 1000;
+    }
+}
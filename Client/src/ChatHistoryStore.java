@@ -0,0 +1,304 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Lịch sử chat lưu trên đĩa, mỗi cuộc trò chuyện một thư mục:
+//   <seg 6 chữ số>.seg  file segment chỉ ghi nối, tối đa SEGMENT_SIZE byte
+//                       bản ghi: int độ dài | long thời điểm | byte cờ | nội dung UTF-8
+//   index.idx           mỗi tin nhắn 16 byte theo số thứ tự (seq):
+//                       long vị trí (số segment << 32 | offset) | long thời điểm
+//
+// Đọc theo trang: chỉ map phần index và phần segment của trang đó, nên mở cuộc trò chuyện một
+// triệu tin nhắn cũng chỉ đụng tới vài KB cuối và heap không phụ thuộc độ dài lịch sử.
+// Thời điểm trong index không giảm nên tìm theo thời gian bằng tìm kiếm nhị phân.
+//
+// Ghi dở khi tắt đột ngột (bản ghi có trong segment nhưng chưa có trong index) được cắt bỏ khi mở lại.
+public class ChatHistoryStore implements Closeable {
+    public static final int PAGE_SIZE = 50;
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final int FLAG_SENT = 1;
+    private static final String INDEX_FILE = "index.idx";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // Số cuộc trò chuyện giữ file đang mở
+    private static final int MAX_OPEN_CONVERSATIONS = 32;
+
+    private final File dir;
+    private final Map<String, Conversation> open =
+            new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                    if (size() > MAX_OPEN_CONVERSATIONS) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    public ChatHistoryStore(File dir) {
+        this.dir = dir;
+    }
+
+    public static File defaultHistoryDir(String username) {
+        return new File(System.getProperty("user.home"),
+                "ChatAppP2P" + File.separator + "history" + File.separator + fileName(username));
+    }
+
+    // Ghi thêm một tin nhắn, trả về seq của nó
+    public synchronized long append(String peer, String content, boolean sent, long timestamp) throws IOException {
+        Conversation conversation = conversation(peer);
+        byte[] text = content.getBytes(StandardCharsets.UTF_8);
+        // Giữ thời điểm không giảm để tìm kiếm nhị phân theo thời gian
+        timestamp = Math.max(timestamp, conversation.lastTimestamp);
+
+        int recordSize = RECORD_HEADER_SIZE + text.length;
+        if (conversation.segmentSize > 0 && conversation.segmentSize + recordSize > SEGMENT_SIZE) {
+            conversation.rollSegment();
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(recordSize - 4).putLong(timestamp).put((byte) (sent ? FLAG_SENT : 0)).put(text).flip();
+        long offset = conversation.segmentSize;
+        writeFully(conversation.segment, record, offset);
+        conversation.segmentSize += recordSize;
+
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(((long) conversation.segmentNo << 32) | offset).putLong(timestamp).flip();
+        writeFully(conversation.index, entry, conversation.count * INDEX_ENTRY_SIZE);
+        conversation.lastTimestamp = timestamp;
+        return conversation.count++;
+    }
+
+    // Số tin nhắn của cuộc trò chuyện (seq tiếp theo)
+    public synchronized long size(String peer) throws IOException {
+        return conversation(peer).count;
+    }
+
+    // Tối đa limit tin nhắn ngay trước beforeSeq, theo thứ tự cũ → mới
+    public synchronized List<Entry> loadPage(String peer, long beforeSeq, int limit) throws IOException {
+        Conversation conversation = conversation(peer);
+        long to = Math.min(beforeSeq, conversation.count);
+        long from = Math.max(0, to - limit);
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+
+        // Đọc thêm mục sau trang (nếu có) để biết bản ghi cuối kết thúc ở đâu
+        long mapTo = Math.min(to + 1, conversation.count);
+        MappedByteBuffer index = conversation.index.map(FileChannel.MapMode.READ_ONLY,
+                from * INDEX_ENTRY_SIZE, (mapTo - from) * INDEX_ENTRY_SIZE);
+
+        List<Entry> page = new ArrayList<>((int) (to - from));
+        int i = 0;
+        int count = (int) (to - from);
+        while (i < count) {
+            // Gom các tin liên tiếp cùng segment để map một lần
+            int segmentNo = (int) (index.getLong(i * INDEX_ENTRY_SIZE) >>> 32);
+            int j = i + 1;
+            while (j < count && (int) (index.getLong(j * INDEX_ENTRY_SIZE) >>> 32) == segmentNo) {
+                j++;
+            }
+            long start = index.getLong(i * INDEX_ENTRY_SIZE) & 0xFFFFFFFFL;
+            try (FileChannel segment = FileChannel.open(segmentFile(conversation.dir, segmentNo).toPath(),
+                    StandardOpenOption.READ)) {
+                long end = segment.size();
+                if (j < mapTo - from && (int) (index.getLong(j * INDEX_ENTRY_SIZE) >>> 32) == segmentNo) {
+                    end = index.getLong(j * INDEX_ENTRY_SIZE) & 0xFFFFFFFFL;
+                }
+                MappedByteBuffer data = segment.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                for (int k = i; k < j; k++) {
+                    int offset = (int) ((index.getLong(k * INDEX_ENTRY_SIZE) & 0xFFFFFFFFL) - start);
+                    page.add(readRecord(data, offset, from + k));
+                }
+            }
+            i = j;
+        }
+        return page;
+    }
+
+    // Tên các peer đã có lịch sử
+    public List<String> conversations() {
+        List<String> peers = new ArrayList<>();
+        File[] dirs = dir.listFiles(File::isDirectory);
+        for (File conversation : dirs != null ? dirs : new File[0]) {
+            peers.add(URLDecoder.decode(conversation.getName(), StandardCharsets.UTF_8));
+        }
+        return peers;
+    }
+
+    // Seq của tin nhắn đầu tiên có thời điểm >= timestamp (bằng size nếu không có)
+    public synchronized long seqAt(String peer, long timestamp) throws IOException {
+        Conversation conversation = conversation(peer);
+        if (conversation.count == 0) {
+            return 0;
+        }
+        MappedByteBuffer index = conversation.index.map(FileChannel.MapMode.READ_ONLY, 0,
+                conversation.count * INDEX_ENTRY_SIZE);
+        long low = 0;
+        long high = conversation.count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (index.getLong((int) (mid * INDEX_ENTRY_SIZE) + 8) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Conversation conversation : open.values()) {
+            conversation.close();
+        }
+        open.clear();
+    }
+
+    private Conversation conversation(String peer) throws IOException {
+        Conversation conversation = open.get(peer);
+        if (conversation == null) {
+            conversation = new Conversation(new File(dir, fileName(peer)));
+            open.put(peer, conversation);
+        }
+        return conversation;
+    }
+
+    private static Entry readRecord(ByteBuffer data, int offset, long seq) throws IOException {
+        int length = data.getInt(offset);
+        if (length < RECORD_HEADER_SIZE - 4 || offset + 4 + length > data.limit()) {
+            throw new IOException("Bản ghi lịch sử hỏng tại seq " + seq);
+        }
+        long timestamp = data.getLong(offset + 4);
+        boolean sent = (data.get(offset + 12) & FLAG_SENT) != 0;
+        byte[] text = new byte[length - (RECORD_HEADER_SIZE - 4)];
+        data.get(offset + RECORD_HEADER_SIZE, text);
+        return new Entry(seq, timestamp, sent, new String(text, StandardCharsets.UTF_8));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Tên user thành tên thư mục an toàn (không chứa '/', '.', '..')
+    static String fileName(String username) {
+        return URLEncoder.encode(username, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+    }
+
+    private static File segmentFile(File dir, int segmentNo) {
+        return new File(dir, String.format("%06d", segmentNo) + SEGMENT_SUFFIX);
+    }
+
+    // File đang mở của một cuộc trò chuyện
+    private static class Conversation {
+        private final File dir;
+        private final FileChannel index;
+        private FileChannel segment;
+        private int segmentNo;
+        private long segmentSize;
+        private long count;
+        private long lastTimestamp;
+
+        Conversation(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Không tạo được thư mục lịch sử " + dir);
+            }
+            this.index = FileChannel.open(new File(dir, INDEX_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                recover();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // Cắt mục index ghi dở và phần segment chưa được index trỏ tới
+        private void recover() throws IOException {
+            count = index.size() / INDEX_ENTRY_SIZE;
+            index.truncate(count * INDEX_ENTRY_SIZE);
+
+            long end = 0;
+            if (count > 0) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                index.read(entry, (count - 1) * INDEX_ENTRY_SIZE);
+                entry.flip();
+                long position = entry.getLong();
+                lastTimestamp = entry.getLong();
+                segmentNo = (int) (position >>> 32);
+                end = position & 0xFFFFFFFFL;
+            }
+            segment = FileChannel.open(segmentFile(dir, segmentNo).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (count > 0) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                segment.read(length, end);
+                if (length.position() < 4) {
+                    throw new IOException("Segment lịch sử bị thiếu dữ liệu: " + dir);
+                }
+                end += 4 + length.getInt(0);
+            }
+            segment.truncate(end);
+            segmentSize = end;
+
+            // Segment sau segment cuối của index là rác của lần ghi dở
+            File next;
+            int no = segmentNo + 1;
+            while ((next = segmentFile(dir, no++)).exists()) {
+                next.delete();
+            }
+        }
+
+        void rollSegment() throws IOException {
+            segment.close();
+            segmentNo++;
+            segment = FileChannel.open(segmentFile(dir, segmentNo).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment.truncate(0);
+            segmentSize = 0;
+        }
+
+        void close() {
+            try {
+                index.close();
+                if (segment != null) {
+                    segment.close();
+                }
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // Một tin nhắn trong lịch sử
+    public static final class Entry {
+        private final long seq;
+        private final long timestamp;
+        private final boolean sent;
+        private final String content;
+
+        Entry(long seq, long timestamp, boolean sent, String content) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.sent = sent;
+            this.content = content;
+        }
+
+        public long getSeq() { return seq; }
+        public long getTimestamp() { return timestamp; }
+        public boolean isSent() { return sent; }
+        public String getContent() { return content; }
+    }
+}
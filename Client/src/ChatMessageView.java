@@ -0,0 +1,400 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Khung tin nhắn ảo hóa: không tạo component cho từng tin nhắn mà vẽ trực tiếp các dòng đang
+// nằm trong vùng nhìn thấy bằng một bộ vẽ bong bóng dùng chung.
+//
+// Chiều cao từng dòng được đo một lần khi thêm (chỉ đếm số dòng sau khi ngắt chữ) và lưu trong
+// mảng cộng dồn top[], nên thêm tin mới là O(1), tìm dòng theo tọa độ y là tìm kiếm nhị phân.
+// Chỉ đo lại toàn bộ khi bề rộng chữ của bong bóng thay đổi (khung chat hẹp hơn bong bóng tối đa).
+//
+// Chỉ dùng trên EDT.
+public class ChatMessageView extends JComponent implements Scrollable {
+    // Bề rộng chữ tối đa trong bong bóng
+    private static final int TEXT_WIDTH = 320;
+    private static final int MARGIN = 10;
+    private static final int PADDING = 10;
+    private static final int ROW_GAP = 10;
+    private static final int RADIUS = 15;
+    private static final int SYSTEM_PADDING = 6;
+
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 13);
+    private static final Font TIME_FONT = new Font("Segoe UI", Font.PLAIN, 10);
+    private static final Font SYSTEM_FONT = new Font("Segoe UI", Font.ITALIC, 12);
+    private static final Color SYSTEM_BACKGROUND = new Color(245, 245, 245);
+    private static final Color SYSTEM_BORDER = new Color(225, 225, 225);
+    private static final Color SENT_TIME = new Color(200, 200, 200);
+    private static final Color RECEIVED_TIME = new Color(100, 100, 100);
+    private static final Color HIGHLIGHT = new Color(255, 193, 7);
+
+    private final Color sentColor;
+    private final Color receivedColor;
+    private final FontMetrics textMetrics;
+    private final FontMetrics timeMetrics;
+    private final FontMetrics systemMetrics;
+
+    private final List<Row> rows = new ArrayList<>();
+    // top[i] = tọa độ y của dòng i, top[size] = tổng chiều cao
+    private int[] top = new int[64];
+    private int textWidth = TEXT_WIDTH;
+    // Dùng lại khi vẽ để không cấp phát theo từng dòng
+    private final List<String> lineScratch = new ArrayList<>();
+    // seq của tin được đánh dấu (kết quả tìm kiếm), -1 = không có
+    private long highlightedSeq = -1;
+
+    public ChatMessageView(Color sentColor, Color receivedColor) {
+        this.sentColor = sentColor;
+        this.receivedColor = receivedColor;
+        this.textMetrics = getFontMetrics(TEXT_FONT);
+        this.timeMetrics = getFontMetrics(TIME_FONT);
+        this.systemMetrics = getFontMetrics(SYSTEM_FONT);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+
+        // Chuột phải: sao chép nội dung tin nhắn
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                maybeShowMenu(e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                maybeShowMenu(e);
+            }
+        });
+    }
+
+    // Một dòng trong khung chat: tin nhắn (gửi/nhận, seq trong ChatHistoryStore) hoặc thông báo hệ thống
+    public static final class Row {
+        private final String text;
+        private final String time;
+        private final boolean sent;
+        private final boolean system;
+        private final long seq;
+
+        private Row(String text, String time, boolean sent, boolean system, long seq) {
+            this.text = text;
+            this.time = time;
+            this.sent = sent;
+            this.system = system;
+            this.seq = seq;
+        }
+
+        public static Row message(String text, boolean sent, String time, long seq) {
+            return new Row(text, time, sent, false, seq);
+        }
+
+        public static Row system(String text) {
+            return new Row(text, null, false, true, -1);
+        }
+
+        public String getText() { return text; }
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    public void clear() {
+        rows.clear();
+        top = new int[64];
+        highlightedSeq = -1;
+        revalidate();
+        repaint();
+    }
+
+    public void addMessage(String text, boolean sent, String time, long seq) {
+        append(Row.message(text, sent, time, seq));
+    }
+
+    public void addSystemMessage(String text) {
+        append(Row.system(text));
+    }
+
+    private void append(Row row) {
+        int index = rows.size();
+        rows.add(row);
+        if (top.length < index + 2) {
+            top = Arrays.copyOf(top, top.length * 2);
+        }
+        top[index + 1] = top[index] + measure(row);
+        revalidate();
+        repaint(0, top[index], getWidth(), top[index + 1] - top[index]);
+    }
+
+    // Chèn các dòng cũ hơn lên đầu, giữ nguyên nội dung đang xem trong JViewport
+    public void prepend(List<Row> older) {
+        if (older.isEmpty()) {
+            return;
+        }
+        // Chỉ đo các dòng mới, dòng cũ chỉ dịch xuống
+        int count = older.size();
+        int oldSize = rows.size();
+        int[] shifted = new int[Math.max(top.length, Integer.highestOneBit(oldSize + count + 1) << 1)];
+        for (int i = 0; i < count; i++) {
+            shifted[i + 1] = shifted[i] + measure(older.get(i));
+        }
+        int added = shifted[count];
+        for (int i = 1; i <= oldSize; i++) {
+            shifted[count + i] = top[i] + added;
+        }
+        top = shifted;
+        rows.addAll(0, older);
+
+        Container parent = getParent();
+        if (parent instanceof JViewport) {
+            JViewport viewport = (JViewport) parent;
+            Point position = viewport.getViewPosition();
+            setSize(getWidth(), top[rows.size()]);
+            viewport.setViewPosition(new Point(position.x, position.y + added));
+        }
+        revalidate();
+        repaint();
+    }
+
+    // Cuộn để dòng index nằm trong vùng nhìn thấy
+    public void scrollToRow(int index) {
+        if (index < 0 || index >= rows.size()) {
+            return;
+        }
+        scrollRectToVisible(new Rectangle(0, top[index], 1, top[index + 1] - top[index]));
+    }
+
+    // Đánh dấu tin có seq và cuộn tới đó
+    public void highlightSeq(long seq) {
+        highlightedSeq = seq;
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (!rows.get(i).system && rows.get(i).seq == seq) {
+                scrollToRow(i);
+                break;
+            }
+        }
+        repaint();
+    }
+
+    public int rowAt(int y) {
+        int size = rows.size();
+        if (size == 0 || y < 0 || y >= top[size]) {
+            return -1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (top[mid] <= y) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void remeasure() {
+        int size = rows.size();
+        if (top.length < size + 1) {
+            top = new int[Integer.highestOneBit(size + 1) << 1];
+        }
+        top[0] = 0;
+        for (int i = 0; i < size; i++) {
+            top[i + 1] = top[i] + measure(rows.get(i));
+        }
+    }
+
+    private int measure(Row row) {
+        if (row.system) {
+            return systemMetrics.getHeight() + 2 * SYSTEM_PADDING + ROW_GAP;
+        }
+        int lines = wrap(row.text, textMetrics, textWidth, null);
+        return lines * textMetrics.getHeight() + timeMetrics.getHeight() + 2 * PADDING + ROW_GAP;
+    }
+
+    // Ngắt chữ theo bề rộng (ưu tiên ngắt ở khoảng trắng), trả về số dòng; out == null thì chỉ đếm
+    private static int wrap(String text, FontMetrics metrics, int width, List<String> out) {
+        int lines = 0;
+        int length = text.length();
+        int start = 0;
+        while (start <= length) {
+            int lineEnd = text.indexOf('\n', start);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int pos = start;
+            do {
+                int lineWidth = 0;
+                int lastSpace = -1;
+                int end = pos;
+                while (end < lineEnd) {
+                    int w = metrics.charWidth(text.charAt(end));
+                    if (lineWidth + w > width && end > pos) {
+                        break;
+                    }
+                    if (text.charAt(end) == ' ') {
+                        lastSpace = end;
+                    }
+                    lineWidth += w;
+                    end++;
+                }
+                int next = end;
+                if (end < lineEnd && lastSpace > pos) {
+                    end = lastSpace;
+                    next = lastSpace + 1;
+                }
+                if (out != null) {
+                    out.add(text.substring(pos, end));
+                }
+                lines++;
+                pos = next;
+            } while (pos < lineEnd);
+            start = lineEnd + 1;
+        }
+        return lines;
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        int newTextWidth = Math.max(40, Math.min(TEXT_WIDTH, width - 2 * MARGIN - 2 * PADDING - 40));
+        if (newTextWidth != textWidth) {
+            textWidth = newTextWidth;
+            remeasure();
+            revalidate();
+        }
+        super.setBounds(x, y, width, height);
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(TEXT_WIDTH + 2 * MARGIN + 2 * PADDING, top[rows.size()]);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        int first = rowAt(Math.max(0, clip.y));
+        if (first < 0) {
+            return;
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            int bottom = clip.y + clip.height;
+            for (int i = first; i < rows.size() && top[i] < bottom; i++) {
+                Row row = rows.get(i);
+                if (row.system) {
+                    paintSystem(g2, row, top[i] + ROW_GAP / 2);
+                } else {
+                    paintBubble(g2, row, top[i] + ROW_GAP / 2);
+                }
+            }
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    private void paintBubble(Graphics2D g2, Row row, int y) {
+        lineScratch.clear();
+        wrap(row.text, textMetrics, textWidth, lineScratch);
+        int contentWidth = timeMetrics.stringWidth(row.time);
+        for (String line : lineScratch) {
+            contentWidth = Math.max(contentWidth, textMetrics.stringWidth(line));
+        }
+        int bubbleWidth = Math.min(contentWidth, textWidth) + 2 * PADDING;
+        int bubbleHeight = lineScratch.size() * textMetrics.getHeight() + timeMetrics.getHeight() + 2 * PADDING;
+        int x = row.sent ? getWidth() - MARGIN - bubbleWidth : MARGIN;
+
+        g2.setColor(row.sent ? sentColor : receivedColor);
+        g2.fillRoundRect(x, y, bubbleWidth, bubbleHeight, RADIUS, RADIUS);
+        if (row.seq >= 0 && row.seq == highlightedSeq) {
+            g2.setColor(HIGHLIGHT);
+            g2.setStroke(new BasicStroke(2f));
+            g2.drawRoundRect(x - 1, y - 1, bubbleWidth + 1, bubbleHeight + 1, RADIUS, RADIUS);
+            g2.setStroke(new BasicStroke(1f));
+        }
+
+        g2.setFont(TEXT_FONT);
+        g2.setColor(row.sent ? Color.WHITE : Color.BLACK);
+        int baseline = y + PADDING + textMetrics.getAscent();
+        for (String line : lineScratch) {
+            g2.drawString(line, x + PADDING, baseline);
+            baseline += textMetrics.getHeight();
+        }
+
+        g2.setFont(TIME_FONT);
+        g2.setColor(row.sent ? SENT_TIME : RECEIVED_TIME);
+        g2.drawString(row.time, x + bubbleWidth - PADDING - timeMetrics.stringWidth(row.time),
+                baseline - textMetrics.getAscent() + timeMetrics.getAscent());
+    }
+
+    private void paintSystem(Graphics2D g2, Row row, int y) {
+        int width = Math.min(systemMetrics.stringWidth(row.text) + 4 * SYSTEM_PADDING, getWidth() - 2 * MARGIN);
+        int height = systemMetrics.getHeight() + 2 * SYSTEM_PADDING;
+        int x = (getWidth() - width) / 2;
+        g2.setColor(SYSTEM_BACKGROUND);
+        g2.fillRoundRect(x, y, width, height, 10, 10);
+        g2.setColor(SYSTEM_BORDER);
+        g2.drawRoundRect(x, y, width - 1, height - 1, 10, 10);
+        g2.setFont(SYSTEM_FONT);
+        g2.setColor(Color.GRAY);
+        g2.drawString(row.text, x + 2 * SYSTEM_PADDING, y + SYSTEM_PADDING + systemMetrics.getAscent());
+    }
+
+    private void maybeShowMenu(MouseEvent e) {
+        if (!e.isPopupTrigger()) {
+            return;
+        }
+        int index = rowAt(e.getY());
+        if (index < 0) {
+            return;
+        }
+        String text = rows.get(index).text;
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem copy = new JMenuItem("Sao chép");
+        copy.addActionListener(a -> Toolkit.getDefaultToolkit().getSystemClipboard()
+                .setContents(new StringSelection(text), null));
+        menu.add(copy);
+        menu.show(this, e.getX(), e.getY());
+    }
+
+    // === Scrollable ===
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return Math.max(16, visibleRect.height - 16);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        // Ít tin nhắn thì vẫn phủ kín khung để nền trắng
+        Container parent = getParent();
+        return parent instanceof JViewport && parent.getHeight() > top[rows.size()];
+    }
+}
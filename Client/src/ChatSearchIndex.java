@@ -0,0 +1,969 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.*;
+
+// Chỉ mục tìm kiếm toàn văn trên lịch sử chat cục bộ, cập nhật dần theo từng tin nhắn.
+//
+// Mỗi tin nhắn là một doc (số tăng dần); docs.dat lưu doc → (peer, seq) 12 byte/doc để mở lại
+// đúng tin trong ChatHistoryStore. Từ được chuẩn hóa (bỏ dấu tiếng Việt, đ → d, chữ thường) nên
+// "chao" tìm được "Chào". Postings của một từ: varint(doc - doc trước) varint(số vị trí)
+// varint(vị trí - vị trí trước)... — vị trí dùng cho tìm cụm từ trong ngoặc kép.
+//
+// Tin mới vào bộ đệm trong bộ nhớ, đầy FLUSH_BYTES thì ghi thành một segment bất biến
+// (<firstDoc>-<endDoc>.sidx): header | postings | byte của các từ | bảng mục 28 byte sắp theo byte
+// UTF-8 của từ | footer. Đọc segment qua mmap và tìm nhị phân trên bảng mục nên heap không phụ thuộc
+// số tin nhắn. MERGE_FACTOR segment cùng cấp liên tiếp được gộp thành một segment cấp cao hơn.
+//
+// Bộ đệm chưa ghi sẽ mất khi thoát đột ngột; indexedCount cho biết đã đánh chỉ mục tới đâu để
+// người gọi đánh lại phần thiếu từ lịch sử. Không an toàn cho nhiều thread ngoài các hàm synchronized.
+public class ChatSearchIndex implements Closeable {
+    private static final int MAGIC = 0x43534958;
+    private static final int HEADER_SIZE = 16;
+    private static final int FOOTER_SIZE = 20;
+    // int vị trí từ, int độ dài từ, long vị trí postings, int độ dài postings, int số doc, int doc cuối
+    private static final int ENTRY_SIZE = 28;
+    private static final int DOC_ENTRY_SIZE = 12;
+    private static final int FLUSH_BYTES = 4 * 1024 * 1024;
+    private static final int MERGE_FACTOR = 10;
+    // Số từ tối đa một tiền tố được mở rộng thành
+    private static final int MAX_PREFIX_TERMS = 256;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final String SEGMENT_SUFFIX = ".sidx";
+    private static final String DOCS_FILE = "docs.dat";
+    private static final String NAMES_FILE = "names.dat";
+    private static final String PEERS_FILE = "peers.dat";
+
+    private static final Comparator<byte[]> BYTE_ORDER = Arrays::compareUnsigned;
+
+    private final File dir;
+    // Theo thứ tự doc
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<String> peerNames = new ArrayList<>();
+    private final Map<String, Integer> peerIds = new HashMap<>();
+    // Số tin (seq tiếp theo) đã đánh chỉ mục của từng peer
+    private long[] indexed = new long[16];
+    private FileChannel docs;
+    private FileChannel names;
+    private int committedDocs;
+
+    // Bộ đệm chưa ghi
+    private final TreeMap<String, PostingBuilder> buffer = new TreeMap<>();
+    private int[] bufferPeers = new int[256];
+    private long[] bufferSeqs = new long[256];
+    private int bufferDocs;
+    private long bufferBytes;
+
+    public ChatSearchIndex(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Không tạo được thư mục chỉ mục " + dir);
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            // Chỉ mục hỏng thì làm lại từ đầu, người gọi đánh lại từ lịch sử
+            System.err.println("Chỉ mục tìm kiếm hỏng, tạo lại: " + e.getMessage());
+            closeFiles();
+            reset();
+            open();
+        }
+    }
+
+    public static File defaultIndexDir(String username) {
+        return new File(System.getProperty("user.home"),
+                "ChatAppP2P" + File.separator + "index" + File.separator + ChatHistoryStore.fileName(username));
+    }
+
+    // Một tin nhắn khớp truy vấn
+    public static final class Hit {
+        private final String peer;
+        private final long seq;
+
+        Hit(String peer, long seq) {
+            this.peer = peer;
+            this.seq = seq;
+        }
+
+        public String getPeer() { return peer; }
+        public long getSeq() { return seq; }
+    }
+
+    // Seq tiếp theo cần đánh chỉ mục của cuộc trò chuyện với peer
+    public synchronized long indexedCount(String peer) {
+        Integer id = peerIds.get(peer);
+        return id == null ? 0 : indexed[id];
+    }
+
+    // Thêm tin nhắn seq của cuộc trò chuyện với peer; tin đã có (seq < indexedCount) bị bỏ qua
+    public synchronized void add(String peer, long seq, String content) throws IOException {
+        int peerId = peerId(peer);
+        if (seq < indexed[peerId]) {
+            return;
+        }
+        indexed[peerId] = seq + 1;
+
+        int doc = committedDocs + bufferDocs;
+        if (bufferDocs == bufferPeers.length) {
+            bufferPeers = Arrays.copyOf(bufferPeers, bufferDocs * 2);
+            bufferSeqs = Arrays.copyOf(bufferSeqs, bufferDocs * 2);
+        }
+        bufferPeers[bufferDocs] = peerId;
+        bufferSeqs[bufferDocs] = seq;
+        bufferDocs++;
+
+        List<String> tokens = tokenize(content);
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            positions.computeIfAbsent(tokens.get(i), t -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            PostingBuilder postings = buffer.get(entry.getKey());
+            if (postings == null) {
+                postings = new PostingBuilder();
+                buffer.put(entry.getKey(), postings);
+                bufferBytes += 64 + 2L * entry.getKey().length();
+            }
+            bufferBytes += postings.add(doc, entry.getValue());
+        }
+        bufferBytes += DOC_ENTRY_SIZE;
+
+        if (bufferBytes >= FLUSH_BYTES) {
+            flush();
+        }
+    }
+
+    // Tìm tin nhắn chứa mọi từ của truy vấn, từ cuối được hiểu là tiền tố (trừ khi truy vấn kết thúc
+    // bằng khoảng trắng). Truy vấn trong ngoặc kép là cụm từ: các từ phải đứng liền nhau theo thứ tự.
+    // Trả về tối đa limit kết quả, mới nhất trước.
+    //
+    // Duyệt bộ đệm rồi các segment từ mới đến cũ và dừng khi đủ limit, nên từ phổ biến chỉ tốn
+    // vài segment nhỏ gần nhất.
+    public synchronized List<Hit> search(String query, int limit) throws IOException {
+        String trimmed = query.trim();
+        boolean phrase = trimmed.startsWith("\"");
+        boolean lastIsPrefix = !query.endsWith(" ") && !(phrase && trimmed.length() > 1 && trimmed.endsWith("\""));
+        List<String> tokens = tokenize(trimmed);
+        if (tokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        MappedByteBuffer table = null;
+        for (int source = segments.size(); source >= 0 && hits.size() < limit; source--) {
+            Segment segment = source < segments.size() ? segments.get(source) : null;
+            int[] matched = match(segment, tokens, lastIsPrefix, phrase);
+            for (int i = matched.length - 1; i >= 0 && hits.size() < limit; i--) {
+                int doc = matched[i];
+                if (doc >= committedDocs) {
+                    int b = doc - committedDocs;
+                    hits.add(new Hit(peerNames.get(bufferPeers[b]), bufferSeqs[b]));
+                    continue;
+                }
+                if (table == null) {
+                    table = docs.map(FileChannel.MapMode.READ_ONLY, 0, (long) committedDocs * DOC_ENTRY_SIZE);
+                }
+                int offset = doc * DOC_ENTRY_SIZE;
+                hits.add(new Hit(peerNames.get(table.getInt(offset)), table.getLong(offset + 4)));
+            }
+        }
+        return hits;
+    }
+
+    // Các doc trong một segment (null = bộ đệm) khớp truy vấn, theo thứ tự tăng
+    private int[] match(Segment segment, List<String> tokens, boolean lastIsPrefix, boolean phrase) {
+        int n = tokens.size();
+        Cursor[] cursors = new Cursor[n];
+        long[] frequency = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            cursors[i] = open(segment, tokens.get(i), lastIsPrefix && i == n - 1, frequency, i);
+            if (cursors[i] == null) {
+                return new int[0];
+            }
+            order[i] = i;
+        }
+        // Bắt đầu từ từ hiếm nhất để tập ứng viên nhỏ ngay từ đầu
+        Arrays.sort(order, Comparator.comparingLong(i -> frequency[i]));
+
+        // Ứng viên: doc và (khi tìm cụm từ) các vị trí bắt đầu cụm còn hợp lệ
+        int first = order[0];
+        int[] candidates = new int[16];
+        int[][] starts = phrase ? new int[16][] : null;
+        int count = 0;
+        Cursor cursor = cursors[first];
+        while (cursor.next()) {
+            if (count == candidates.length) {
+                candidates = Arrays.copyOf(candidates, count * 2);
+                if (phrase) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+            }
+            candidates[count] = cursor.doc();
+            if (phrase) {
+                starts[count] = shifted(cursor, first);
+            }
+            count++;
+        }
+
+        for (int k = 1; k < n && count > 0; k++) {
+            int term = order[k];
+            cursor = cursors[term];
+            int kept = 0;
+            int c = 0;
+            boolean more = cursor.next();
+            while (c < count && more) {
+                int doc = cursor.doc();
+                if (doc < candidates[c]) {
+                    more = cursor.next();
+                } else if (doc > candidates[c]) {
+                    c++;
+                } else {
+                    int[] remaining = phrase ? intersect(starts[c], shifted(cursor, term)) : null;
+                    if (!phrase || remaining.length > 0) {
+                        candidates[kept] = doc;
+                        if (phrase) {
+                            starts[kept] = remaining;
+                        }
+                        kept++;
+                    }
+                    c++;
+                    more = cursor.next();
+                }
+            }
+            count = kept;
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    // Ghi bộ đệm thành segment mới
+    public synchronized void flush() throws IOException {
+        if (bufferDocs == 0) {
+            return;
+        }
+        ByteBuffer table = ByteBuffer.allocate(bufferDocs * DOC_ENTRY_SIZE);
+        for (int i = 0; i < bufferDocs; i++) {
+            table.putInt(bufferPeers[i]).putLong(bufferSeqs[i]);
+        }
+        table.flip();
+        writeFully(docs, table, (long) committedDocs * DOC_ENTRY_SIZE);
+
+        List<Map.Entry<String, PostingBuilder>> terms = new ArrayList<>(buffer.entrySet());
+        byte[][] keys = new byte[terms.size()][];
+        Integer[] order = new Integer[terms.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = terms.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> BYTE_ORDER.compare(keys[a], keys[b]));
+
+        int endDoc = committedDocs + bufferDocs;
+        try (SegmentWriter writer = new SegmentWriter(dir, 0, committedDocs, endDoc)) {
+            for (int i : order) {
+                PostingBuilder postings = terms.get(i).getValue();
+                writer.beginTerm(keys[i]);
+                writer.write(postings.data, 0, postings.size);
+                writer.endTerm(postings.docFreq, postings.lastDoc);
+            }
+            segments.add(writer.commit());
+        }
+
+        committedDocs = endDoc;
+        buffer.clear();
+        bufferDocs = 0;
+        bufferBytes = 0;
+        writePeers();
+        maybeMerge();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Không ghi được chỉ mục tìm kiếm: " + e.getMessage());
+        }
+        closeFiles();
+    }
+
+    // === Mở / khôi phục ===
+
+    private void open() throws IOException {
+        names = FileChannel.open(new File(dir, NAMES_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readNames();
+
+        File[] files = dir.listFiles();
+        List<Segment> found = new ArrayList<>();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                found.add(new Segment(file));
+            } else if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+        // Gộp segment bị ngắt giữa chừng có thể để lại cả segment cũ lẫn mới: bỏ segment nằm trong segment khác
+        found.sort(Comparator.comparingInt((Segment s) -> s.firstDoc).thenComparingInt(s -> -s.endDoc));
+        for (Segment segment : found) {
+            if (segment.firstDoc < committedDocs) {
+                segment.close();
+                segment.file.delete();
+                continue;
+            }
+            if (segment.firstDoc != committedDocs) {
+                throw new IOException("Thiếu segment từ doc " + committedDocs);
+            }
+            segments.add(segment);
+            committedDocs = segment.endDoc;
+        }
+
+        docs = FileChannel.open(new File(dir, DOCS_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long expected = (long) committedDocs * DOC_ENTRY_SIZE;
+        if (docs.size() < expected) {
+            throw new IOException("docs.dat ngắn hơn chỉ mục");
+        }
+        docs.truncate(expected);
+        readPeers();
+    }
+
+    private void readNames() throws IOException {
+        byte[] bytes = Files.readAllBytes(new File(dir, NAMES_FILE).toPath());
+        ByteArrayInputStream source = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(source);
+        int valid = 0;
+        try {
+            while (source.available() > 0) {
+                String name = in.readUTF();
+                peerIds.put(name, peerNames.size());
+                peerNames.add(name);
+                valid = bytes.length - source.available();
+            }
+        } catch (EOFException e) {
+            // Tên cuối ghi dở
+        }
+        names.truncate(valid);
+        indexed = new long[Math.max(16, peerNames.size())];
+    }
+
+    // peers.dat: ảnh chụp indexed tại lần flush gần nhất; doc sau ảnh chụp thì đọc lại từ docs.dat
+    private void readPeers() throws IOException {
+        int snapshotDocs = 0;
+        File file = new File(dir, PEERS_FILE);
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(file.toPath())))) {
+                snapshotDocs = in.readInt();
+                int count = Math.min(in.readInt(), peerNames.size());
+                for (int i = 0; i < count; i++) {
+                    indexed[i] = in.readLong();
+                }
+            }
+        }
+        if (snapshotDocs > committedDocs) {
+            throw new IOException("peers.dat mới hơn chỉ mục");
+        }
+        if (snapshotDocs < committedDocs) {
+            MappedByteBuffer table = docs.map(FileChannel.MapMode.READ_ONLY, (long) snapshotDocs * DOC_ENTRY_SIZE,
+                    (long) (committedDocs - snapshotDocs) * DOC_ENTRY_SIZE);
+            while (table.hasRemaining()) {
+                int peerId = table.getInt();
+                long seq = table.getLong();
+                if (peerId >= peerNames.size()) {
+                    throw new IOException("docs.dat trỏ tới peer không tồn tại");
+                }
+                indexed[peerId] = Math.max(indexed[peerId], seq + 1);
+            }
+        }
+    }
+
+    private void writePeers() throws IOException {
+        File tmp = new File(dir, PEERS_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(committedDocs);
+            out.writeInt(peerNames.size());
+            for (int i = 0; i < peerNames.size(); i++) {
+                out.writeLong(indexed[i]);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, PEERS_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int peerId(String peer) throws IOException {
+        Integer id = peerIds.get(peer);
+        if (id != null) {
+            return id;
+        }
+        // Ghi tên ngay để docs.dat không bao giờ trỏ tới peer chưa có tên
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(peer);
+        writeFully(names, ByteBuffer.wrap(bytes.toByteArray()), names.size());
+
+        id = peerNames.size();
+        peerNames.add(peer);
+        peerIds.put(peer, id);
+        if (id == indexed.length) {
+            indexed = Arrays.copyOf(indexed, id * 2);
+        }
+        return id;
+    }
+
+    private void reset() {
+        File[] files = dir.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        segments.clear();
+        peerNames.clear();
+        peerIds.clear();
+        committedDocs = 0;
+    }
+
+    private void closeFiles() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        try {
+            if (docs != null) {
+                docs.close();
+            }
+            if (names != null) {
+                names.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // === Gộp segment ===
+
+    // Segment cấp càng cao càng cũ nên MERGE_FACTOR segment cùng cấp ở cuối danh sách luôn liền doc
+    private void maybeMerge() throws IOException {
+        while (true) {
+            int size = segments.size();
+            if (size < MERGE_FACTOR) {
+                return;
+            }
+            int level = segments.get(size - 1).level;
+            int run = 0;
+            while (run < size && segments.get(size - 1 - run).level == level) {
+                run++;
+            }
+            if (run < MERGE_FACTOR) {
+                return;
+            }
+            List<Segment> inputs = new ArrayList<>(segments.subList(size - run, size));
+            Segment merged = merge(inputs, level + 1);
+            segments.subList(size - run, size).clear();
+            segments.add(merged);
+            for (Segment segment : inputs) {
+                segment.close();
+                segment.file.delete();
+            }
+        }
+    }
+
+    private Segment merge(List<Segment> inputs, int level) throws IOException {
+        int[] next = new int[inputs.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = inputs.get(a).compareTerms(next[a], inputs.get(b), next[b]);
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int i = 0; i < inputs.size(); i++) {
+            if (inputs.get(i).termCount > 0) {
+                queue.add(i);
+            }
+        }
+
+        try (SegmentWriter writer = new SegmentWriter(dir, level, inputs.get(0).firstDoc,
+                inputs.get(inputs.size() - 1).endDoc)) {
+            while (!queue.isEmpty()) {
+                int s = queue.poll();
+                Segment segment = inputs.get(s);
+                writer.beginTerm(segment.term(next[s]));
+                int docFreq = 0;
+                int lastDoc = -1;
+                // Cùng một từ ở các segment: nối postings theo thứ tự segment (đã theo thứ tự doc)
+                while (true) {
+                    int entry = next[s];
+                    ByteBuffer postings = segment.postings(entry);
+                    if (lastDoc >= 0) {
+                        // Doc đầu của danh sách sau là giá trị tuyệt đối, đổi thành delta
+                        int firstDoc = readVarint(postings);
+                        writer.writeVarint(firstDoc - lastDoc);
+                    }
+                    writer.write(postings);
+                    docFreq += segment.docFreq(entry);
+                    lastDoc = segment.lastDoc(entry);
+
+                    next[s]++;
+                    if (next[s] < segment.termCount) {
+                        queue.add(s);
+                    }
+                    Integer peek = queue.peek();
+                    if (peek == null || inputs.get(peek).compareTerms(next[peek], segment, entry) != 0) {
+                        break;
+                    }
+                    s = queue.poll();
+                    segment = inputs.get(s);
+                }
+                writer.endTerm(docFreq, lastDoc);
+            }
+            return writer.commit();
+        }
+    }
+
+    // === Truy vấn ===
+
+    // Con trỏ postings của một từ (hoặc mọi từ có tiền tố đó) trong segment, null = bộ đệm
+    private Cursor open(Segment segment, String token, boolean prefix, long[] frequency, int slot) {
+        List<Cursor> parts = new ArrayList<>();
+        if (segment != null) {
+            byte[] key = token.getBytes(StandardCharsets.UTF_8);
+            int end = Math.min(segment.termCount, segment.lowerBound(key) + MAX_PREFIX_TERMS);
+            for (int i = segment.lowerBound(key); i < end && segment.compareTerm(i, key, prefix) == 0; i++) {
+                parts.add(new TermCursor(segment.postings(i)));
+                frequency[slot] += segment.docFreq(i);
+            }
+        } else {
+            Collection<PostingBuilder> matches = prefix
+                    ? buffer.subMap(token, true, token + Character.MAX_VALUE, false).values()
+                    : (buffer.containsKey(token) ? List.of(buffer.get(token)) : List.of());
+            for (PostingBuilder postings : matches) {
+                if (parts.size() == MAX_PREFIX_TERMS) {
+                    break;
+                }
+                parts.add(new TermCursor(ByteBuffer.wrap(postings.data, 0, postings.size)));
+                frequency[slot] += postings.docFreq;
+            }
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+        return parts.size() == 1 ? parts.get(0) : new UnionCursor(parts);
+    }
+
+    // Vị trí bắt đầu cụm từ suy ra từ vị trí của từ thứ offset trong cụm
+    private static int[] shifted(Cursor cursor, int offset) {
+        int[] positions = cursor.positions();
+        int count = cursor.positionCount();
+        int[] starts = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (positions[i] >= offset) {
+                starts[n++] = positions[i] - offset;
+            }
+        }
+        return n == count ? starts : Arrays.copyOf(starts, n);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // === Chuẩn hóa ===
+
+    // Bỏ dấu tiếng Việt, đ → d, chữ thường
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (c == 'đ' || c == 'Đ') {
+                c = 'd';
+            }
+            sb.append(Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+    static List<String> tokenize(String text) {
+        String normalized = normalize(text);
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean word = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(normalized.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Như MessageCodec.readVarint nhưng không ném checked exception (dữ liệu do chính mình ghi)
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // === Postings ===
+
+    private static final class PostingBuilder {
+        private byte[] data = new byte[16];
+        private int size;
+        private int lastDoc;
+        private int docFreq;
+
+        // Trả về số byte đã thêm
+        int add(int doc, List<Integer> positions) {
+            int before = size;
+            writeVarint(doc - lastDoc);
+            writeVarint(positions.size());
+            int previous = 0;
+            for (int position : positions) {
+                writeVarint(position - previous);
+                previous = position;
+            }
+            lastDoc = doc;
+            docFreq++;
+            return size - before;
+        }
+
+        private void writeVarint(int value) {
+            if (data.length - size < 5) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            size = MessageCodec.writeVarint(data, size, value);
+        }
+    }
+
+    private interface Cursor {
+        // Sang doc tiếp theo, false khi hết
+        boolean next();
+
+        int doc();
+
+        int[] positions();
+
+        int positionCount();
+    }
+
+    private static final class TermCursor implements Cursor {
+        private final ByteBuffer postings;
+        private int doc;
+        private int[] positions = new int[4];
+        private int positionCount;
+
+        TermCursor(ByteBuffer postings) {
+            this.postings = postings;
+        }
+
+        @Override
+        public boolean next() {
+            if (!postings.hasRemaining()) {
+                return false;
+            }
+            doc += readVarint(postings);
+            positionCount = readVarint(postings);
+            if (positions.length < positionCount) {
+                positions = new int[Integer.highestOneBit(positionCount) << 1];
+            }
+            int position = 0;
+            for (int i = 0; i < positionCount; i++) {
+                position += readVarint(postings);
+                positions[i] = position;
+            }
+            return true;
+        }
+
+        @Override public int doc() { return doc; }
+        @Override public int[] positions() { return positions; }
+        @Override public int positionCount() { return positionCount; }
+    }
+
+    // Hợp nhiều danh sách postings (các segment, các từ cùng tiền tố) theo thứ tự doc
+    private static final class UnionCursor implements Cursor {
+        private final PriorityQueue<Cursor> queue = new PriorityQueue<>(Comparator.comparingInt(Cursor::doc));
+        private final List<Cursor> pending;
+        private int doc;
+        private int[] positions = new int[8];
+        private int positionCount;
+
+        UnionCursor(List<Cursor> parts) {
+            this.pending = parts;
+        }
+
+        @Override
+        public boolean next() {
+            // Lần đầu và sau mỗi doc: đưa các con trỏ vừa dùng sang doc tiếp theo
+            for (Cursor cursor : pending) {
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            pending.clear();
+            Cursor head = queue.poll();
+            if (head == null) {
+                return false;
+            }
+            doc = head.doc();
+            positionCount = 0;
+            pending.add(head);
+            append(head);
+            while (!queue.isEmpty() && queue.peek().doc() == doc) {
+                Cursor cursor = queue.poll();
+                pending.add(cursor);
+                append(cursor);
+            }
+            if (pending.size() > 1) {
+                Arrays.sort(positions, 0, positionCount);
+            }
+            return true;
+        }
+
+        private void append(Cursor cursor) {
+            int count = cursor.positionCount();
+            if (positions.length < positionCount + count) {
+                positions = Arrays.copyOf(positions, Integer.highestOneBit(positionCount + count) << 1);
+            }
+            System.arraycopy(cursor.positions(), 0, positions, positionCount, count);
+            positionCount += count;
+        }
+
+        @Override public int doc() { return doc; }
+        @Override public int[] positions() { return positions; }
+        @Override public int positionCount() { return positionCount; }
+    }
+
+    // === Segment ===
+
+    // Segment bất biến, đọc qua mmap
+    private static final class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer data;
+        private final int level;
+        private final int firstDoc;
+        private final int endDoc;
+        private final int termCount;
+        private final int entriesOffset;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_SIZE + FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("Segment không hợp lệ: " + file.getName());
+                }
+                this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (data.getInt(0) != MAGIC) {
+                    throw new IOException("Segment không hợp lệ: " + file.getName());
+                }
+                this.level = data.getInt(4);
+                this.firstDoc = data.getInt(8);
+                this.endDoc = data.getInt(12);
+                int footer = (int) size - FOOTER_SIZE;
+                this.entriesOffset = (int) data.getLong(footer + 8);
+                this.termCount = data.getInt(footer + 16);
+                if (entriesOffset < HEADER_SIZE || entriesOffset + (long) termCount * ENTRY_SIZE != footer) {
+                    throw new IOException("Segment không hợp lệ: " + file.getName());
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private int entry(int i) {
+            return entriesOffset + i * ENTRY_SIZE;
+        }
+
+        byte[] term(int i) {
+            byte[] term = new byte[data.getInt(entry(i) + 4)];
+            data.get(data.getInt(entry(i)), term);
+            return term;
+        }
+
+        ByteBuffer postings(int i) {
+            int e = entry(i);
+            int offset = (int) data.getLong(e + 8);
+            return data.slice(offset, data.getInt(e + 16));
+        }
+
+        int docFreq(int i) {
+            return data.getInt(entry(i) + 20);
+        }
+
+        int lastDoc(int i) {
+            return data.getInt(entry(i) + 24);
+        }
+
+        // So sánh từ thứ i với key; prefix = true thì từ bắt đầu bằng key được coi là bằng
+        int compareTerm(int i, byte[] key, boolean prefix) {
+            int e = entry(i);
+            int offset = data.getInt(e);
+            int length = data.getInt(e + 4);
+            int n = Math.min(length, key.length);
+            for (int k = 0; k < n; k++) {
+                int cmp = Integer.compare(data.get(offset + k) & 0xFF, key[k] & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            if (prefix && length >= key.length) {
+                return 0;
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        int compareTerms(int i, Segment other, int j) {
+            return compareTerm(i, other.term(j), false);
+        }
+
+        // Chỉ số từ đầu tiên >= key
+        int lowerBound(byte[] key) {
+            int low = 0;
+            int high = termCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareTerm(mid, key, false) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // Ghi segment vào file tạm, đổi tên khi commit
+    private static final class SegmentWriter implements Closeable {
+        private final File tmp;
+        private final File target;
+        private final OutputStream out;
+        private final ByteArrayOutputStream terms = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream entryOut = new DataOutputStream(entries);
+        private final byte[] varint = new byte[5];
+        private final byte[] copy = new byte[8192];
+        private long position;
+        private long termStart;
+        private byte[] currentTerm;
+        private boolean committed;
+
+        SegmentWriter(File dir, int level, int firstDoc, int endDoc) throws IOException {
+            String name = String.format("%010d-%010d", firstDoc, endDoc);
+            this.target = new File(dir, name + SEGMENT_SUFFIX);
+            this.tmp = new File(dir, name + ".tmp");
+            this.out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), 64 * 1024);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(level).putInt(firstDoc).putInt(endDoc);
+            write(header.array(), 0, HEADER_SIZE);
+        }
+
+        void beginTerm(byte[] term) {
+            currentTerm = term;
+            termStart = position;
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            position += length;
+        }
+
+        void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                int n = Math.min(copy.length, bytes.remaining());
+                bytes.get(copy, 0, n);
+                write(copy, 0, n);
+            }
+        }
+
+        void writeVarint(int value) throws IOException {
+            write(varint, 0, MessageCodec.writeVarint(varint, 0, value));
+        }
+
+        void endTerm(int docFreq, int lastDoc) throws IOException {
+            entryOut.writeInt(terms.size());
+            entryOut.writeInt(currentTerm.length);
+            entryOut.writeLong(termStart);
+            entryOut.writeInt((int) (position - termStart));
+            entryOut.writeInt(docFreq);
+            entryOut.writeInt(lastDoc);
+            terms.write(currentTerm);
+        }
+
+        Segment commit() throws IOException {
+            // Vị trí từ trong bảng mục tính từ đầu vùng từ, đổi thành vị trí tuyệt đối
+            long termsOffset = position;
+            byte[] table = entries.toByteArray();
+            ByteBuffer fixed = ByteBuffer.wrap(table);
+            for (int e = 0; e < table.length; e += ENTRY_SIZE) {
+                fixed.putInt(e, (int) (termsOffset + fixed.getInt(e)));
+            }
+            write(terms.toByteArray(), 0, terms.size());
+            long entriesOffset = position;
+            write(table, 0, table.length);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putLong(termsOffset).putLong(entriesOffset).putInt(table.length / ENTRY_SIZE);
+            write(footer.array(), 0, FOOTER_SIZE);
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Segment quá lớn");
+            }
+            out.close();
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            return new Segment(target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+}
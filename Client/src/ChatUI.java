@@ -5,6 +5,9 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.*;
 import java.util.List;
 
@@ -19,22 +22,37 @@ public class ChatUI extends JFrame {
     private JPanel mainPanel, leftPanel, centerPanel, rightPanel;
     private JTextField searchField;
     private JScrollPane friendsScrollPane, chatScrollPane;
-    private JPanel friendsPanel, chatPanel;
+    private JList<Friend> friendList;
+    private JPanel searchResultsPanel;
+    private JScrollPane searchResultsScrollPane;
+    private ChatMessageView chatView;
     private JTextArea messageArea;
     private JButton sendButton, attachButton, emojiButton, fileButton, voiceButton;
 
     // Data
-    private List<Friend> friends;
+    private FriendListModel friendModel;
     private Friend selectedFriend;
     private ClientSocket clientSocket;
     private String currentUser;
-    private Map<String, List<ChatMessage>> chatHistory;
+    private ChatHistoryStore historyStore;
+    // seq của tin cũ nhất và seq ngay sau tin mới nhất đang hiển thị trong cuộc trò chuyện mở
+    private long oldestLoadedSeq;
+    private long newestLoadedSeq;
+    // Chỉ dùng trên searchExecutor: đánh chỉ mục và tìm kiếm không chạy trên EDT
+    private ChatSearchIndex searchIndex;
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Timer searchTimer;
 
     public ChatUI(String username, ClientSocket clientSocket) {
         this.currentUser = username;
         this.clientSocket = clientSocket;
-        this.chatHistory = new HashMap<>();
-        this.friends = new ArrayList<>();
+        this.historyStore = new ChatHistoryStore(ChatHistoryStore.defaultHistoryDir(username));
+        this.friendModel = new FriendListModel();
+        searchExecutor.execute(this::openSearchIndex);
 
         initializeComponents();
         initializeUI(username);
@@ -42,6 +60,11 @@ public class ChatUI extends JFrame {
 
         // Load online users after UI is ready
         SwingUtilities.invokeLater(this::loadOnlineUsers);
+
+        // Nhận cập nhật presence từ server
+        if (clientSocket != null) {
+            clientSocket.setChatUI(this);
+        }
     }
 
     private void initializeComponents() {
@@ -145,16 +168,76 @@ public class ChatUI extends JFrame {
         friendsLabel.setFont(new Font("Segoe UI", Font.BOLD, 16));
         friendsLabel.setBorder(new EmptyBorder(0, 15, 10, 0));
 
-        friendsPanel = new JPanel();
-        friendsPanel.setLayout(new BoxLayout(friendsPanel, BoxLayout.Y_AXIS));
-        friendsPanel.setBackground(Color.WHITE);
+        // JList chỉ vẽ các dòng đang thấy qua một renderer dùng chung
+        friendList = new JList<Friend>(friendModel) {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                if (friendModel.getSize() == 0) {
+                    String text = friendModel.getFilter().isEmpty()
+                            ? "Chưa có bạn bè online" : "Không tìm thấy kết quả";
+                    g.setColor(Color.GRAY);
+                    g.setFont(getFont());
+                    FontMetrics fm = g.getFontMetrics();
+                    g.drawString(text, (getWidth() - fm.stringWidth(text)) / 2, 20 + fm.getAscent());
+                }
+            }
+        };
+        friendList.setCellRenderer(new FriendCellRenderer());
+        friendList.setFixedCellHeight(71);
+        friendList.setBackground(Color.WHITE);
+        friendList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        friendList.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        MouseAdapter friendMouse = new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = friendIndexAt(e.getPoint());
+                if (index >= 0) {
+                    showChatInterface(friendModel.getElementAt(index));
+                }
+            }
+
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                int index = friendIndexAt(e.getPoint());
+                if (index != friendList.getSelectedIndex()) {
+                    if (index >= 0) {
+                        friendList.setSelectedIndex(index);
+                    } else {
+                        friendList.clearSelection();
+                    }
+                }
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                friendList.clearSelection();
+            }
+        };
+        friendList.addMouseListener(friendMouse);
+        friendList.addMouseMotionListener(friendMouse);
 
-        friendsScrollPane = new JScrollPane(friendsPanel);
+        friendsScrollPane = new JScrollPane(friendList);
         friendsScrollPane.setBorder(null);
         friendsScrollPane.getVerticalScrollBar().setUnitIncrement(16);
 
+        // Kết quả tìm tin nhắn, chỉ hiện khi có
+        searchResultsPanel = new JPanel();
+        searchResultsPanel.setLayout(new BoxLayout(searchResultsPanel, BoxLayout.Y_AXIS));
+        searchResultsPanel.setBackground(Color.WHITE);
+        searchResultsScrollPane = new JScrollPane(searchResultsPanel);
+        searchResultsScrollPane.setBorder(new MatteBorder(1, 0, 0, 0, SECONDARY_COLOR));
+        searchResultsScrollPane.setPreferredSize(new Dimension(280, 260));
+        searchResultsScrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        searchResultsScrollPane.setVisible(false);
+
+        JPanel listsPanel = new JPanel(new BorderLayout());
+        listsPanel.setBackground(Color.WHITE);
+        listsPanel.add(friendsScrollPane, BorderLayout.CENTER);
+        listsPanel.add(searchResultsScrollPane, BorderLayout.SOUTH);
+
         leftPanel.add(friendsLabel, BorderLayout.NORTH);
-        leftPanel.add(friendsScrollPane, BorderLayout.CENTER);
+        leftPanel.add(listsPanel, BorderLayout.CENTER);
 
         mainPanel.add(leftPanel, BorderLayout.WEST);
     }
@@ -237,13 +320,24 @@ public class ChatUI extends JFrame {
         chatHeader.add(friendName, BorderLayout.WEST);
 
         // Chat messages area
-        chatPanel = new JPanel();
-        chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
-        chatPanel.setBackground(Color.WHITE);
+        chatView = new ChatMessageView(MESSAGE_SENT, MESSAGE_RECEIVED);
 
-        chatScrollPane = new JScrollPane(chatPanel);
+        chatScrollPane = new JScrollPane(chatView);
         chatScrollPane.setBorder(null);
         chatScrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        // Cuộn lên đầu thì tải trang lịch sử cũ hơn, xuống cuối (khi đang xem đoạn cũ) thì trang mới hơn
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting() || selectedFriend != friend) {
+                return;
+            }
+            JScrollBar bar = (JScrollBar) e.getAdjustable();
+            if (e.getValue() == 0 && oldestLoadedSeq > 0) {
+                SwingUtilities.invokeLater(() -> loadOlderMessages(friend.getName()));
+            } else if (e.getValue() + bar.getVisibleAmount() >= bar.getMaximum()
+                    && newestLoadedSeq < historySize(friend.getName())) {
+                SwingUtilities.invokeLater(() -> loadNewerMessages(friend.getName()));
+            }
+        });
 
         // Message input area
         JPanel inputPanel = new JPanel(new BorderLayout());
@@ -350,6 +444,7 @@ public class ChatUI extends JFrame {
         JButton videoCallBtn = createActionButton("📹 Gọi video");
         JButton voiceCallBtn = createActionButton("📞 Gọi thoại");
         JButton shareFileBtn = createActionButton("📤 Chia sẻ file");
+        shareFileBtn.addActionListener(e -> chooseAndSendFile(friend));
 
         actionPanel.add(videoCallBtn);
         actionPanel.add(Box.createRigidArea(new Dimension(0, 5)));
@@ -379,80 +474,10 @@ public class ChatUI extends JFrame {
         return button;
     }
 
-    private void loadFriendsList() {
-        friendsPanel.removeAll();
-
-        if (friends.isEmpty()) {
-            JLabel noFriendsLabel = new JLabel("Chưa có bạn bè online", JLabel.CENTER);
-            noFriendsLabel.setForeground(Color.GRAY);
-            noFriendsLabel.setBorder(new EmptyBorder(20, 0, 0, 0));
-            friendsPanel.add(noFriendsLabel);
-        } else {
-            for (Friend friend : friends) {
-                JPanel friendPanel = createFriendPanel(friend);
-                friendsPanel.add(friendPanel);
-                friendsPanel.add(Box.createRigidArea(new Dimension(0, 5)));
-            }
-        }
-
-        friendsPanel.revalidate();
-        friendsPanel.repaint();
-    }
-
-    private JPanel createFriendPanel(Friend friend) {
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(Color.WHITE);
-        panel.setBorder(new EmptyPadding(8, 10, 8, 10));
-        panel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-        panel.setMaximumSize(new Dimension(280, 70));
-
-        // Avatar
-        JLabel avatarLabel = new JLabel(createCircularAvatar(friend.getName(), 50));
-
-        // Text info
-        JPanel textPanel = new JPanel();
-        textPanel.setLayout(new BoxLayout(textPanel, BoxLayout.Y_AXIS));
-        textPanel.setBackground(Color.WHITE);
-
-        JLabel nameLabel = new JLabel(friend.getName());
-        nameLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
-
-        JLabel lastMsgLabel = new JLabel(friend.getLastMessage());
-        lastMsgLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        lastMsgLabel.setForeground(Color.GRAY);
-
-        textPanel.add(nameLabel);
-        textPanel.add(Box.createRigidArea(new Dimension(0, 2)));
-        textPanel.add(lastMsgLabel);
-
-        panel.add(avatarLabel, BorderLayout.WEST);
-        panel.add(Box.createRigidArea(new Dimension(10, 0)), BorderLayout.CENTER);
-        panel.add(textPanel, BorderLayout.CENTER);
-
-        // Online indicator
-        JLabel onlineIndicator = new JLabel("🟢");
-        onlineIndicator.setBorder(new EmptyPadding(0, 0, 0, 5));
-        panel.add(onlineIndicator, BorderLayout.EAST);
-
-        // Add click listener
-        panel.addMouseListener(new MouseAdapter() {
-            @Override
-            public void mouseClicked(MouseEvent e) {
-                showChatInterface(friend);
-            }
-
-            @Override
-            public void mouseEntered(MouseEvent e) {
-                panel.setBackground(SECONDARY_COLOR);
-            }
-
-            @Override
-            public void mouseExited(MouseEvent e) {
-                panel.setBackground(Color.WHITE);
-            }
-        });
-
-        return panel;
+    // Chỉ số dòng dưới chuột, -1 nếu chuột nằm dưới dòng cuối
+    private int friendIndexAt(Point point) {
+        int index = friendList.locationToIndex(point);
+        return index >= 0 && friendList.getCellBounds(index, index).contains(point) ? index : -1;
     }
 
     private ImageIcon createCircularAvatar(String text, int size) {
@@ -494,91 +519,118 @@ public class ChatUI extends JFrame {
     }
 
     private void loadChatHistory(String friendName) {
-        chatPanel.removeAll();
+        chatView.clear();
 
-        if (chatHistory.containsKey(friendName)) {
-            for (ChatMessage msg : chatHistory.get(friendName)) {
-                addMessageToChat(msg.getContent(), msg.isSent(), msg.getTime());
-            }
+        // Chỉ đọc trang cuối, trang cũ hơn tải khi cuộn lên đầu
+        List<ChatHistoryStore.Entry> page = loadHistoryPage(friendName, Long.MAX_VALUE);
+        if (!page.isEmpty()) {
+            showHistoryPage(page);
         } else {
+            oldestLoadedSeq = 0;
+            newestLoadedSeq = 0;
             // Add welcome message for new conversation
             addSystemMessageToChat("Bắt đầu cuộc trò chuyện với " + friendName);
         }
 
-        chatPanel.revalidate();
-        chatPanel.repaint();
+        scrollChatToBottom();
+    }
 
-        // Scroll to bottom
-        SwingUtilities.invokeLater(() -> {
-            JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
-        });
+    // Mở đoạn lịch sử quanh tin seq (kết quả tìm kiếm) và đánh dấu tin đó
+    private void loadChatHistoryAround(String friendName, long seq) {
+        chatView.clear();
+        List<ChatHistoryStore.Entry> page = loadHistoryPage(friendName, seq + ChatHistoryStore.PAGE_SIZE / 2 + 1);
+        if (page.isEmpty()) {
+            loadChatHistory(friendName);
+            return;
+        }
+        showHistoryPage(page);
+        // Chờ layout xong để biết vị trí của tin
+        SwingUtilities.invokeLater(() -> chatView.highlightSeq(seq));
     }
 
-    private void addMessageToChat(String text, boolean isSent, String time) {
-        JPanel messagePanel = new JPanel(new BorderLayout());
-        messagePanel.setBackground(Color.WHITE);
-        messagePanel.setBorder(new EmptyPadding(5, 10, 5, 10));
-
-        JPanel bubblePanel = new JPanel(new BorderLayout());
-        bubblePanel.setBackground(isSent ? MESSAGE_SENT : MESSAGE_RECEIVED);
-        bubblePanel.setBorder(new RoundBorder(15, isSent ? MESSAGE_SENT : MESSAGE_RECEIVED));
-        bubblePanel.setMaximumSize(new Dimension(400, Integer.MAX_VALUE));
-
-        JTextPane messageText = new JTextPane();
-        messageText.setContentType("text/html");
-        messageText.setText("<html><body style='width: 350px; padding: 8px; color: " +
-                (isSent ? "white" : "black") + "; font-family: Segoe UI;'>" +
-                text + "</body></html>");
-        messageText.setEditable(false);
-        messageText.setBackground(isSent ? MESSAGE_SENT : MESSAGE_RECEIVED);
-        messageText.setBorder(null);
-
-        JPanel timePanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-        timePanel.setBackground(isSent ? MESSAGE_SENT : MESSAGE_RECEIVED);
-        JLabel timeLabel = new JLabel(time);
-        timeLabel.setFont(new Font("Segoe UI", Font.PLAIN, 10));
-        timeLabel.setForeground(isSent ? new Color(200, 200, 200) : new Color(100, 100, 100));
-        timePanel.add(timeLabel);
-
-        bubblePanel.add(messageText, BorderLayout.CENTER);
-        bubblePanel.add(timePanel, BorderLayout.SOUTH);
-
-        if (isSent) {
-            messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.X_AXIS));
-            messagePanel.add(Box.createHorizontalGlue());
-            messagePanel.add(bubblePanel);
-        } else {
-            messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.X_AXIS));
-            messagePanel.add(bubblePanel);
-            messagePanel.add(Box.createHorizontalGlue());
+    private void showHistoryPage(List<ChatHistoryStore.Entry> page) {
+        oldestLoadedSeq = page.get(0).getSeq();
+        newestLoadedSeq = page.get(page.size() - 1).getSeq() + 1;
+        for (ChatHistoryStore.Entry entry : page) {
+            chatView.addMessage(entry.getContent(), entry.isSent(), formatTime(entry.getTimestamp()), entry.getSeq());
         }
+    }
 
-        chatPanel.add(messagePanel);
-        chatPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+    private long historySize(String friendName) {
+        try {
+            return historyStore.size(friendName);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 
-        // Scroll to bottom
-        SwingUtilities.invokeLater(() -> {
-            JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
-        });
+    private List<ChatHistoryStore.Entry> loadHistoryPage(String friendName, long beforeSeq) {
+        try {
+            return historyStore.loadPage(friendName, beforeSeq, ChatHistoryStore.PAGE_SIZE);
+        } catch (IOException e) {
+            System.err.println("Không đọc được lịch sử chat với " + friendName + ": " + e.getMessage());
+            return Collections.emptyList();
+        }
     }
 
-    private void addSystemMessageToChat(String content) {
-        JPanel messagePanel = new JPanel(new BorderLayout());
-        messagePanel.setBackground(Color.WHITE);
-        messagePanel.setBorder(new EmptyPadding(5, 10, 5, 10));
+    // Chèn trang trước oldestLoadedSeq lên đầu khung chat, giữ nguyên vị trí đang xem
+    private void loadOlderMessages(String friendName) {
+        if (oldestLoadedSeq == 0) {
+            return;
+        }
+        List<ChatHistoryStore.Entry> page = loadHistoryPage(friendName, oldestLoadedSeq);
+        if (page.isEmpty()) {
+            return;
+        }
+        oldestLoadedSeq = page.get(0).getSeq();
+        List<ChatMessageView.Row> rows = new ArrayList<>(page.size());
+        for (ChatHistoryStore.Entry entry : page) {
+            rows.add(ChatMessageView.Row.message(entry.getContent(), entry.isSent(),
+                    formatTime(entry.getTimestamp()), entry.getSeq()));
+        }
+        chatView.prepend(rows);
+    }
 
-        JLabel systemLabel = new JLabel(content, JLabel.CENTER);
-        systemLabel.setFont(new Font("Segoe UI", Font.ITALIC, 12));
-        systemLabel.setForeground(Color.GRAY);
-        systemLabel.setOpaque(true);
-        systemLabel.setBackground(new Color(245, 245, 245));
-        systemLabel.setBorder(new RoundBorder(10, new Color(225, 225, 225)));
+    // Nối trang sau newestLoadedSeq vào cuối khung chat
+    private void loadNewerMessages(String friendName) {
+        long size = historySize(friendName);
+        if (newestLoadedSeq >= size) {
+            return;
+        }
+        List<ChatHistoryStore.Entry> page = loadHistoryPage(friendName,
+                Math.min(size, newestLoadedSeq + ChatHistoryStore.PAGE_SIZE));
+        for (ChatHistoryStore.Entry entry : page) {
+            if (entry.getSeq() >= newestLoadedSeq) {
+                chatView.addMessage(entry.getContent(), entry.isSent(), formatTime(entry.getTimestamp()), entry.getSeq());
+                newestLoadedSeq = entry.getSeq() + 1;
+            }
+        }
+    }
 
-        messagePanel.add(systemLabel, BorderLayout.CENTER);
-        chatPanel.add(messagePanel);
-        chatPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+    // Tin vừa lưu với seq: chỉ hiện ngay nếu đang xem phần cuối cuộc trò chuyện, còn đang xem đoạn
+    // cũ (sau khi mở kết quả tìm kiếm) thì tin sẽ hiện khi cuộn xuống
+    private void addMessageToChat(long seq, String text, boolean isSent) {
+        if (seq >= 0) {
+            if (seq != newestLoadedSeq) {
+                return;
+            }
+            newestLoadedSeq = seq + 1;
+        }
+        chatView.addMessage(text, isSent, getCurrentTime(), seq);
+        scrollChatToBottom();
+    }
+
+    private void addSystemMessageToChat(String content) {
+        chatView.addSystemMessage(content);
+        scrollChatToBottom();
+    }
+
+    private void scrollChatToBottom() {
+        // Chờ layout xong để biết chiều cao mới
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
+            vertical.setValue(vertical.getMaximum());
+        });
     }
 
     private void setupEventListeners() {
@@ -587,8 +639,155 @@ public class ChatUI extends JFrame {
             @Override
             public void keyReleased(KeyEvent e) {
                 filterFriends(searchField.getText().trim());
+                searchMessages(searchField.getText().trim());
+            }
+        });
+    }
+
+    // === Tìm kiếm tin nhắn ===
+
+    // Mở chỉ mục rồi đánh chỉ mục phần lịch sử còn thiếu (tin nhận lúc chỉ mục chưa kịp ghi)
+    private void openSearchIndex() {
+        try {
+            searchIndex = new ChatSearchIndex(ChatSearchIndex.defaultIndexDir(currentUser));
+            for (String peer : historyStore.conversations()) {
+                long next = searchIndex.indexedCount(peer);
+                long size = historyStore.size(peer);
+                while (next < size) {
+                    List<ChatHistoryStore.Entry> page = historyStore.loadPage(peer, Math.min(size, next + 1000), 1000);
+                    for (ChatHistoryStore.Entry entry : page) {
+                        searchIndex.add(peer, entry.getSeq(), entry.getContent());
+                    }
+                    next = searchIndex.indexedCount(peer);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Không mở được chỉ mục tìm kiếm: " + e.getMessage());
+        }
+    }
+
+    private void indexMessage(String peer, long seq, String content) {
+        if (searchIndex == null) {
+            return;
+        }
+        try {
+            searchIndex.add(peer, seq, content);
+        } catch (IOException e) {
+            System.err.println("Không đánh chỉ mục được tin nhắn: " + e.getMessage());
+        }
+    }
+
+    private void searchMessages(String query) {
+        if (searchTimer != null) {
+            searchTimer.stop();
+        }
+        if (query.length() < 2) {
+            searchResultsScrollPane.setVisible(false);
+            leftPanel.revalidate();
+            return;
+        }
+        // Chờ người dùng ngừng gõ rồi mới tìm
+        searchTimer = new Timer(200, e -> searchExecutor.execute(() -> {
+            List<SearchResult> results = findMessages(query);
+            SwingUtilities.invokeLater(() -> showSearchResults(query, results));
+        }));
+        searchTimer.setRepeats(false);
+        searchTimer.start();
+    }
+
+    // Chạy trên searchExecutor
+    private List<SearchResult> findMessages(String query) {
+        List<SearchResult> results = new ArrayList<>();
+        if (searchIndex == null) {
+            return results;
+        }
+        try {
+            for (ChatSearchIndex.Hit hit : searchIndex.search(query, 20)) {
+                List<ChatHistoryStore.Entry> entry = historyStore.loadPage(hit.getPeer(), hit.getSeq() + 1, 1);
+                if (!entry.isEmpty()) {
+                    results.add(new SearchResult(hit.getPeer(), entry.get(0)));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Lỗi tìm kiếm tin nhắn: " + e.getMessage());
+        }
+        return results;
+    }
+
+    private void showSearchResults(String query, List<SearchResult> results) {
+        // Người dùng đã gõ tiếp thì bỏ kết quả cũ
+        if (!searchField.getText().trim().equals(query)) {
+            return;
+        }
+        searchResultsPanel.removeAll();
+        if (!results.isEmpty()) {
+            JLabel header = new JLabel("Tin nhắn");
+            header.setFont(new Font("Segoe UI", Font.BOLD, 12));
+            header.setForeground(Color.GRAY);
+            header.setBorder(new EmptyPadding(10, 10, 5, 10));
+            searchResultsPanel.add(header);
+            for (SearchResult result : results) {
+                searchResultsPanel.add(createSearchResultPanel(result));
+                searchResultsPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+            }
+        }
+        searchResultsScrollPane.setVisible(!results.isEmpty());
+        searchResultsPanel.revalidate();
+        searchResultsPanel.repaint();
+        leftPanel.revalidate();
+    }
+
+    private JPanel createSearchResultPanel(SearchResult result) {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(Color.WHITE);
+        panel.setBorder(new EmptyPadding(6, 10, 6, 10));
+        panel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        panel.setMaximumSize(new Dimension(280, 55));
+
+        JPanel textPanel = new JPanel();
+        textPanel.setLayout(new BoxLayout(textPanel, BoxLayout.Y_AXIS));
+        textPanel.setBackground(Color.WHITE);
+
+        JLabel nameLabel = new JLabel(result.peer + " · " + formatTime(result.entry.getTimestamp()));
+        nameLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
+
+        String content = (result.entry.isSent() ? "Bạn: " : "") + result.entry.getContent();
+        JLabel contentLabel = new JLabel(content.length() > 40 ? content.substring(0, 40) + "..." : content);
+        contentLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        contentLabel.setForeground(Color.GRAY);
+
+        textPanel.add(nameLabel);
+        textPanel.add(Box.createRigidArea(new Dimension(0, 2)));
+        textPanel.add(contentLabel);
+        panel.add(textPanel, BorderLayout.CENTER);
+
+        panel.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                openSearchResult(result);
+            }
+
+            @Override
+            public void mouseEntered(MouseEvent e) {
+                panel.setBackground(SECONDARY_COLOR);
+                textPanel.setBackground(SECONDARY_COLOR);
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                panel.setBackground(Color.WHITE);
+                textPanel.setBackground(Color.WHITE);
             }
         });
+
+        return panel;
+    }
+
+    private void openSearchResult(SearchResult result) {
+        Friend target = friendModel.get(result.peer);
+        // Người đó đang offline: vẫn mở được lịch sử
+        showChatInterface(target != null ? target : new Friend(result.peer, ""));
+        loadChatHistoryAround(result.peer, result.entry.getSeq());
     }
 
     private void setupChatEventListeners() {
@@ -610,7 +809,11 @@ public class ChatUI extends JFrame {
 
         // Toolbar buttons
         if (attachButton != null) {
-            attachButton.addActionListener(e -> showAttachmentOptions());
+            attachButton.addActionListener(e -> chooseAndSendFile(selectedFriend));
+        }
+
+        if (fileButton != null) {
+            fileButton.addActionListener(e -> chooseAndSendFile(selectedFriend));
         }
 
         if (emojiButton != null) {
@@ -619,30 +822,7 @@ public class ChatUI extends JFrame {
     }
 
     private void filterFriends(String query) {
-        if (query.isEmpty()) {
-            loadFriendsList();
-            return;
-        }
-
-        friendsPanel.removeAll();
-
-        for (Friend friend : friends) {
-            if (friend.getName().toLowerCase().contains(query.toLowerCase())) {
-                JPanel friendPanel = createFriendPanel(friend);
-                friendsPanel.add(friendPanel);
-                friendsPanel.add(Box.createRigidArea(new Dimension(0, 5)));
-            }
-        }
-
-        if (friendsPanel.getComponentCount() == 0) {
-            JLabel noResultsLabel = new JLabel("Không tìm thấy kết quả", JLabel.CENTER);
-            noResultsLabel.setForeground(Color.GRAY);
-            noResultsLabel.setBorder(new EmptyPadding(20, 0, 0, 0));
-            friendsPanel.add(noResultsLabel);
-        }
-
-        friendsPanel.revalidate();
-        friendsPanel.repaint();
+        friendModel.setFilter(query);
     }
 
     // Trong phương thức sendMessage(), thêm phần này:
@@ -652,8 +832,11 @@ public class ChatUI extends JFrame {
             if (!message.isEmpty()) {
                 // Kiểm tra clientSocket có null không (demo mode)
                 if (clientSocket != null) {
-                    // Gửi tin nhắn P2P thật
-                    clientSocket.sendP2PMessage(selectedFriend.getName(), message);
+                    // Gửi tin nhắn P2P thật. Chưa có kết nối P2P thì giữ nguyên nội dung,
+                    // người dùng gửi lại sau khi kết nối xong
+                    if (!clientSocket.sendP2PMessage(selectedFriend.getName(), message)) {
+                        return;
+                    }
                 } else {
                     // Demo mode: hiển thị tin nhắn và auto-reply
                     System.out.println("Demo mode: Gửi tin nhắn đến " + selectedFriend.getName() + ": " + message);
@@ -692,125 +875,114 @@ public class ChatUI extends JFrame {
     }
 
     // === P2P INTEGRATION METHODS ===
+    // Chỉ gọi trên EDT: ClientSocket chuyển sự kiện mạng sang qua ClientEventBus
 
     public void addOrUpdateOnlineUser(String username) {
         if (username.equals(currentUser)) return;
 
-        SwingUtilities.invokeLater(() -> {
-            boolean exists = false;
-            for (Friend friend : friends) {
-                if (friend.getName().equals(username)) {
-                    exists = true;
-                    // Cập nhật trạng thái
-                    friend.setLastMessage("🟢 Online");
-                    break;
-                }
-            }
-
-            if (!exists) {
-                Friend newFriend = new Friend(username, "🟢 Online");
-                friends.add(newFriend);
-                loadFriendsList();
+        // Show notification for new user
+        if (friendModel.put(username, "🟢 Online") && selectedFriend == null) {
+            showNotification(username + " vừa online");
+        }
+    }
 
-                // Show notification for new user
-                if (selectedFriend == null) {
-                    showNotification(username + " vừa online");
-                }
-            } else {
-                loadFriendsList(); // Refresh để cập nhật trạng thái
+    public void removeOnlineUser(String username) {
+        if (friendModel.remove(username)) {
+            // Update chat header if currently chatting with this user
+            if (selectedFriend != null && selectedFriend.getName().equals(username)) {
+                addSystemMessageToChat(username + " đã offline");
+                // Quay về màn hình chào
+                showCenterWelcome();
             }
-        });
+        }
     }
 
-    public void removeOnlineUser(String username) {
-        SwingUtilities.invokeLater(() -> {
-            boolean removed = friends.removeIf(friend -> friend.getName().equals(username));
-            if (removed) {
-                loadFriendsList();
+    // Áp dụng một lần đồng bộ presence (có thể gồm nhiều user); model chỉ báo các dòng thay đổi
+    public void applyPresence(List<String> online, List<String> offline) {
+        List<String> joined = new ArrayList<>();
 
-                // Update chat header if currently chatting with this user
+        for (String username : offline) {
+            if (friendModel.remove(username)) {
                 if (selectedFriend != null && selectedFriend.getName().equals(username)) {
                     addSystemMessageToChat(username + " đã offline");
-                    // Quay về màn hình chào
                     showCenterWelcome();
                 }
             }
-        });
+        }
+
+        for (String username : online) {
+            if (username.equals(currentUser)) continue;
+
+            if (friendModel.put(username, "🟢 Online")) {
+                joined.add(username);
+            }
+        }
+
+        if (selectedFriend == null && !joined.isEmpty()) {
+            showNotification(joined.size() == 1
+                    ? joined.get(0) + " vừa online"
+                    : joined.size() + " người vừa online");
+        }
     }
 
     public void clearAllFriends() {
-        SwingUtilities.invokeLater(() -> {
-            friends.clear();
-            loadFriendsList();
-        });
+        friendModel.clear();
     }
 
     public void showChatWithUser(String username) {
-        SwingUtilities.invokeLater(() -> {
-            for (Friend friend : friends) {
-                if (friend.getName().equals(username)) {
-                    showChatInterface(friend);
-                    break;
-                }
-            }
-        });
+        Friend friend = friendModel.get(username);
+        if (friend != null) {
+            showChatInterface(friend);
+        }
     }
 
     public void addIncomingMessage(String fromUser, String content) {
-        SwingUtilities.invokeLater(() -> {
-            if (selectedFriend != null && selectedFriend.getName().equals(fromUser)) {
-                addMessageToChat(content, false, getCurrentTime());
-                saveChatMessage(fromUser, content, false);
-            } else {
-                // Show notification for new message
-                showNotification("Tin nhắn mới từ " + fromUser + ": " +
-                        (content.length() > 30 ? content.substring(0, 30) + "..." : content));
-
-                // Update last message in friends list
-                for (Friend friend : friends) {
-                    if (friend.getName().equals(fromUser)) {
-                        friend.setLastMessage(content);
-                        loadFriendsList();
-                        break;
-                    }
-                }
+        if (selectedFriend != null && selectedFriend.getName().equals(fromUser)) {
+            addMessageToChat(saveChatMessage(fromUser, content, false), content, false);
+            friendModel.touch(fromUser, content);
+        } else {
+            // Show notification for new message
+            showNotification("Tin nhắn mới từ " + fromUser + ": " +
+                    (content.length() > 30 ? content.substring(0, 30) + "..." : content));
 
-                saveChatMessage(fromUser, content, false);
-            }
-        });
+            // Update last message in friends list
+            friendModel.touch(fromUser, content);
+
+            saveChatMessage(fromUser, content, false);
+        }
     }
 
     public void addOutgoingMessage(String content) {
-        SwingUtilities.invokeLater(() -> {
-            if (selectedFriend != null) {
-                addMessageToChat(content, true, getCurrentTime());
-                saveChatMessage(selectedFriend.getName(), content, true);
-
-                // Update last message in friends list
-                for (Friend friend : friends) {
-                    if (friend.getName().equals(selectedFriend.getName())) {
-                        friend.setLastMessage("Bạn: " + content);
-                        loadFriendsList();
-                        break;
-                    }
-                }
+        if (selectedFriend != null) {
+            long seq = saveChatMessage(selectedFriend.getName(), content, true);
+            if (seq >= 0 && seq != newestLoadedSeq) {
+                // Đang xem đoạn cũ: quay về cuối cuộc trò chuyện để thấy tin vừa gửi
+                loadChatHistory(selectedFriend.getName());
+            } else {
+                addMessageToChat(seq, content, true);
             }
-        });
+
+            // Update last message in friends list
+            friendModel.touch(selectedFriend.getName(), "Bạn: " + content);
+        }
     }
 
     public void addSystemMessage(String content) {
-        SwingUtilities.invokeLater(() -> {
-            if (selectedFriend != null) {
-                addSystemMessageToChat(content);
-            }
-        });
+        if (selectedFriend != null) {
+            addSystemMessageToChat(content);
+        }
     }
 
-    private void saveChatMessage(String withUser, String content, boolean isSent) {
-        if (!chatHistory.containsKey(withUser)) {
-            chatHistory.put(withUser, new ArrayList<>());
+    // Trả về seq của tin trong lịch sử, -1 nếu không lưu được
+    private long saveChatMessage(String withUser, String content, boolean isSent) {
+        try {
+            long seq = historyStore.append(withUser, content, isSent, System.currentTimeMillis());
+            searchExecutor.execute(() -> indexMessage(withUser, seq, content));
+            return seq;
+        } catch (IOException e) {
+            System.err.println("Không lưu được tin nhắn với " + withUser + ": " + e.getMessage());
+            return -1;
         }
-        chatHistory.get(withUser).add(new ChatMessage(content, isSent, getCurrentTime()));
     }
 
 
@@ -828,10 +1000,23 @@ public class ChatUI extends JFrame {
         }
     }
 
-    private void showAttachmentOptions() {
-        JOptionPane.showMessageDialog(this,
-                "Tính năng đính kèm file sẽ được cập nhật sau!",
-                "Thông báo", JOptionPane.INFORMATION_MESSAGE);
+    // Chọn file và gửi qua P2P; tiến trình được báo bằng system message trong khung chat
+    private void chooseAndSendFile(Friend friend) {
+        if (friend == null) {
+            return;
+        }
+        if (clientSocket == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Gửi file cần kết nối đến server",
+                    "Thông báo", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Gửi file cho " + friend.getName());
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            clientSocket.sendFile(friend.getName(), chooser.getSelectedFile());
+        }
     }
 
     private void showEmojiPicker() {
@@ -841,7 +1026,17 @@ public class ChatUI extends JFrame {
     }
 
     private String getCurrentTime() {
-        return new java.text.SimpleDateFormat("HH:mm").format(new Date());
+        return formatTime(System.currentTimeMillis());
+    }
+
+    // Tin trong ngày chỉ hiện giờ, tin cũ hơn kèm ngày
+    private String formatTime(long timestamp) {
+        Calendar today = Calendar.getInstance();
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(timestamp);
+        boolean sameDay = today.get(Calendar.YEAR) == time.get(Calendar.YEAR)
+                && today.get(Calendar.DAY_OF_YEAR) == time.get(Calendar.DAY_OF_YEAR);
+        return new java.text.SimpleDateFormat(sameDay ? "HH:mm" : "dd/MM HH:mm").format(new Date(timestamp));
     }
 
     @Override
@@ -849,6 +1044,13 @@ public class ChatUI extends JFrame {
         if (clientSocket != null) {
             clientSocket.disconnect();
         }
+        historyStore.close();
+        searchExecutor.execute(() -> {
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+        });
+        searchExecutor.shutdown();
         super.dispose();
     }
 
@@ -885,10 +1087,68 @@ public class ChatUI extends JFrame {
         }
     }
 
+    // Một tin nhắn tìm được
+    private static class SearchResult {
+        private final String peer;
+        private final ChatHistoryStore.Entry entry;
+
+        SearchResult(String peer, ChatHistoryStore.Entry entry) {
+            this.peer = peer;
+            this.entry = entry;
+        }
+    }
+
+    // Vẽ một dòng bạn bè; một instance dùng chung cho mọi dòng của JList
+    class FriendCellRenderer extends JPanel implements ListCellRenderer<Friend> {
+        private final JLabel avatarLabel = new JLabel();
+        private final JPanel textPanel = new JPanel();
+        private final JLabel nameLabel = new JLabel();
+        private final JLabel lastMsgLabel = new JLabel();
+        // Avatar vẽ một lần cho mỗi tên
+        private final Map<String, ImageIcon> avatars = new HashMap<>();
+
+        FriendCellRenderer() {
+            super(new BorderLayout());
+            setBorder(new CompoundBorder(new EmptyPadding(0, 0, 5, 0), new EmptyPadding(8, 10, 8, 10)));
+
+            textPanel.setLayout(new BoxLayout(textPanel, BoxLayout.Y_AXIS));
+            nameLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+            lastMsgLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+            lastMsgLabel.setForeground(Color.GRAY);
+            textPanel.add(nameLabel);
+            textPanel.add(Box.createRigidArea(new Dimension(0, 2)));
+            textPanel.add(lastMsgLabel);
+
+            // Online indicator
+            JLabel onlineIndicator = new JLabel("🟢");
+            onlineIndicator.setBorder(new EmptyPadding(0, 0, 0, 5));
+
+            avatarLabel.setBorder(new EmptyPadding(0, 0, 0, 10));
+            add(avatarLabel, BorderLayout.WEST);
+            add(textPanel, BorderLayout.CENTER);
+            add(onlineIndicator, BorderLayout.EAST);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends Friend> list, Friend friend, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            avatarLabel.setIcon(avatars.computeIfAbsent(friend.getName(), name -> createCircularAvatar(name, 50)));
+            nameLabel.setText(friend.getName());
+            lastMsgLabel.setText(friend.getLastMessage());
+            // Dòng "được chọn" là dòng đang rê chuột
+            Color background = isSelected ? SECONDARY_COLOR : Color.WHITE;
+            setBackground(background);
+            textPanel.setBackground(background);
+            return this;
+        }
+    }
+
     // Friend class
-    class Friend {
+    static class Friend {
         private String name;
         private String lastMessage;
+        // Thời điểm có tin nhắn gần nhất, dùng để sắp danh sách
+        private long lastActivity;
 
         public Friend(String name, String lastMessage) {
             this.name = name;
@@ -898,23 +1158,8 @@ public class ChatUI extends JFrame {
         public String getName() { return name; }
         public String getLastMessage() { return lastMessage; }
         public void setLastMessage(String lastMessage) { this.lastMessage = lastMessage; }
-    }
-
-    // Inner class for chat history
-    class ChatMessage {
-        private String content;
-        private boolean sent;
-        private String time;
-
-        public ChatMessage(String content, boolean sent, String time) {
-            this.content = content;
-            this.sent = sent;
-            this.time = time;
-        }
-
-        public String getContent() { return content; }
-        public boolean isSent() { return sent; }
-        public String getTime() { return time; }
+        public long getLastActivity() { return lastActivity; }
+        public void setLastActivity(long lastActivity) { this.lastActivity = lastActivity; }
     }
 
     public static void main(String[] args) {
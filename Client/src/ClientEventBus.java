@@ -0,0 +1,194 @@
+import javax.swing.*;
+import javax.swing.Timer;
+import java.awt.Component;
+import java.beans.PropertyChangeEvent;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Cầu nối giữa các thread mạng (listener server, selector P2P) và EDT.
+//
+// Thread mạng chỉ đẩy sự kiện vào hàng đợi rồi quay lại đọc socket, không bao giờ chờ giao diện.
+// Sự kiện dồn trong một khung hình (FRAME_MS) được chạy trong một lượt EDT duy nhất, theo đúng
+// thứ tự gửi. Presence liên tiếp được gộp theo user (lần sau thắng) thành một lần applyPresence.
+//
+// Hỏi người dùng (prompt) cũng không chặn: hộp thoại không modal, tự trả lời "không" khi hết giờ,
+// câu trả lời được xử lý trên thread riêng của bus nên gửi mạng trong callback không chặn EDT.
+public class ClientEventBus {
+    private static final int FRAME_MS = 16;
+
+    private final BiConsumer<List<String>, List<String>> presenceSink;
+    // Runnable hoặc PresenceBatch, theo thứ tự gửi
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+    private final Timer frameTimer;
+    private boolean scheduled;
+
+    // Prompt đang mở theo khóa; yêu cầu trùng khóa nhận chung câu trả lời thay vì mở hộp thoại mới
+    private final Map<String, List<Consumer<Boolean>>> prompts = new HashMap<>();
+    private final ExecutorService answers = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "client-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClientEventBus(BiConsumer<List<String>, List<String>> presenceSink) {
+        this.presenceSink = presenceSink;
+        this.frameTimer = new Timer(FRAME_MS, e -> drain());
+        this.frameTimer.setRepeats(false);
+    }
+
+    // Chạy task trên EDT ở khung hình tiếp theo
+    public void post(Runnable task) {
+        synchronized (queue) {
+            queue.addLast(task);
+            schedule();
+        }
+    }
+
+    // Một user đổi trạng thái; gộp vào lô presence cuối hàng đợi nếu chưa có sự kiện nào chen giữa
+    public void presence(String user, boolean online) {
+        presence(online ? List.of(user) : List.of(), online ? List.of() : List.of(user));
+    }
+
+    public void presence(List<String> online, List<String> offline) {
+        synchronized (queue) {
+            Object last = queue.peekLast();
+            PresenceBatch batch;
+            if (last instanceof PresenceBatch) {
+                batch = (PresenceBatch) last;
+            } else {
+                batch = new PresenceBatch();
+                queue.addLast(batch);
+            }
+            for (String user : offline) {
+                batch.states.remove(user);
+                batch.states.put(user, false);
+            }
+            for (String user : online) {
+                batch.states.remove(user);
+                batch.states.put(user, true);
+            }
+            schedule();
+        }
+    }
+
+    // Hỏi có/không mà không chặn thread gọi. answer chạy trên thread của bus, false khi người dùng
+    // từ chối, đóng hộp thoại hoặc hết timeoutMs.
+    public void prompt(String key, Component parent, String message, String title, long timeoutMs,
+                       Consumer<Boolean> answer) {
+        synchronized (prompts) {
+            List<Consumer<Boolean>> waiting = prompts.get(key);
+            if (waiting != null) {
+                waiting.add(answer);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(answer);
+            prompts.put(key, waiting);
+        }
+        post(() -> {
+            try {
+                showPrompt(key, parent, message, title, timeoutMs);
+            } catch (RuntimeException e) {
+                // Không hiện được hộp thoại (ví dụ môi trường headless): coi như từ chối
+                resolve(key, false);
+                throw e;
+            }
+        });
+    }
+
+    public void close() {
+        frameTimer.stop();
+        answers.shutdown();
+    }
+
+    // Gọi khi đang giữ khóa queue
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            frameTimer.start();
+        }
+    }
+
+    // Trên EDT: chạy những gì đã có trong hàng đợi; sự kiện đến trong lúc chạy để khung hình sau
+    private void drain() {
+        Object[] batch;
+        synchronized (queue) {
+            batch = queue.toArray();
+            queue.clear();
+            scheduled = false;
+        }
+        for (Object event : batch) {
+            try {
+                if (event instanceof PresenceBatch) {
+                    applyPresence((PresenceBatch) event);
+                } else {
+                    ((Runnable) event).run();
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Lỗi xử lý sự kiện giao diện: " + e);
+            }
+        }
+    }
+
+    private void applyPresence(PresenceBatch batch) {
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        // Lô đã rời hàng đợi nên không còn bị gộp thêm
+        for (Map.Entry<String, Boolean> state : batch.states.entrySet()) {
+            (state.getValue() ? online : offline).add(state.getKey());
+        }
+        presenceSink.accept(online, offline);
+    }
+
+    private void showPrompt(String key, Component parent, String message, String title, long timeoutMs) {
+        JOptionPane pane = new JOptionPane(message, JOptionPane.QUESTION_MESSAGE, JOptionPane.YES_NO_OPTION);
+        JDialog dialog = pane.createDialog(parent, title);
+        dialog.setModal(false);
+        dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+
+        Timer timeout = new Timer((int) Math.min(timeoutMs, Integer.MAX_VALUE), e -> {
+            // Hết giờ: đóng hộp thoại, coi như từ chối
+            dialog.dispose();
+            resolve(key, false);
+        });
+        timeout.setRepeats(false);
+
+        pane.addPropertyChangeListener(JOptionPane.VALUE_PROPERTY, (PropertyChangeEvent e) -> {
+            if (e.getNewValue() == JOptionPane.UNINITIALIZED_VALUE) {
+                return;
+            }
+            timeout.stop();
+            dialog.dispose();
+            resolve(key, Integer.valueOf(JOptionPane.YES_OPTION).equals(e.getNewValue()));
+        });
+
+        timeout.start();
+        dialog.setVisible(true);
+    }
+
+    private void resolve(String key, boolean accepted) {
+        List<Consumer<Boolean>> waiting;
+        synchronized (prompts) {
+            waiting = prompts.remove(key);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (Consumer<Boolean> answer : waiting) {
+            try {
+                answers.execute(() -> answer.accept(accepted));
+            } catch (RejectedExecutionException e) {
+                // Bus đã đóng (đăng xuất)
+            }
+        }
+    }
+
+    // Presence gộp của các sự kiện liền nhau, giữ thứ tự user xuất hiện lần cuối
+    private static class PresenceBatch {
+        private final LinkedHashMap<String, Boolean> states = new LinkedHashMap<>();
+    }
+}
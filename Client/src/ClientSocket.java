@@ -1,52 +1,140 @@
-import javax.swing.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class ClientSocket {
+    private static final long RECONNECT_MIN_DELAY = 1000;
+    private static final long RECONNECT_MAX_DELAY = 30000;
+    // Server coi client là timeout sau 30 giây không có heartbeat
+    private static final long HEARTBEAT_INTERVAL = 10000;
+    // Thời gian chờ người dùng trả lời yêu cầu kết nối / nhận file trước khi tự từ chối
+    private static final long PEER_PROMPT_TIMEOUT = 30000;
+    private static final long FILE_PROMPT_TIMEOUT = 60000;
+
+    private final String host;
+    private final int port;
+    private final Object writeLock = new Object();
     private Socket serverSocket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private DataOutputStream output;
+    private DataInputStream input;
     private String username;
     private volatile boolean connected;
-    private ChatUI chatUI;
+    private volatile ChatUI chatUI;
+    // Server đã báo hỗ trợ nén frame trong phản hồi LOGIN
+    private volatile boolean serverCompression;
+
+    // Trạng thái presence theo version, dùng để chỉ nhận phần thay đổi khi kết nối lại
+    private final PresenceTracker presence;
 
     // Map lưu kết nối P2P với các user
     private ConcurrentHashMap<String, PeerConnection> peerConnections;
+    // Socket lắng nghe P2P và thread selector chung cho mọi kết nối P2P
+    private final PeerEndpoint peerEndpoint;
+    // Gửi/nhận file qua các kết nối P2P
+    private final FileTransferManager fileTransfers;
+
+    // Mọi cập nhật giao diện từ thread mạng đi qua bus, gộp theo khung hình trên EDT
+    private final ClientEventBus events;
+
+    // Tin nhắn offline server giao ngay sau login, trước khi ChatUI được gắn vào
+    private final List<Message> pendingIncoming = new ArrayList<>();
 
     public ClientSocket(String host, int port, String username, ChatUI chatUI) throws IOException {
-        this.serverSocket = new Socket(host, port);
-        this.output = new ObjectOutputStream(serverSocket.getOutputStream());
-        this.input = new ObjectInputStream(serverSocket.getInputStream());
+        this.host = host;
+        this.port = port;
         this.username = username;
         this.chatUI = chatUI;
+        this.presence = new PresenceTracker();
+        this.events = new ClientEventBus((online, offline) -> ui(ui -> ui.applyPresence(online, offline)));
         this.peerConnections = new ConcurrentHashMap<>();
+        this.peerEndpoint = new PeerEndpoint(username, new PeerEvents());
+        this.fileTransfers = new FileTransferManager(peerEndpoint, FileTransferManager.defaultDownloadDir(),
+                new FileEvents());
         this.connected = true;
 
-        // Gửi tin nhắn login
-        sendLogin();
+        try {
+            openConnection();
+
+            // Gửi tin nhắn login
+            sendLogin();
+        } catch (IOException e) {
+            peerEndpoint.close();
+            events.close();
+            throw e;
+        }
 
         // Bắt đầu lắng nghe tin nhắn từ server
         startServerListener();
+
+        // Gửi heartbeat định kỳ để server không coi là timeout
+        startHeartbeat();
+    }
+
+    private void openConnection() throws IOException {
+        Socket socket = new Socket(host, port);
+        synchronized (writeLock) {
+            this.serverSocket = socket;
+            this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
+
+    // Gắn giao diện sau khi ChatUI được tạo, hiển thị lại những user đã biết là online
+    public void setChatUI(ChatUI chatUI) {
+        List<Message> incoming;
+        synchronized (pendingIncoming) {
+            this.chatUI = chatUI;
+            incoming = new ArrayList<>(pendingIncoming);
+            pendingIncoming.clear();
+        }
+        events.presence(presence.onlineUsers(), Collections.emptyList());
+        for (Message message : incoming) {
+            ui(ui -> ui.addIncomingMessage(message.getFromUser(), message.getContent()));
+        }
     }
 
+    // Chạy action với ChatUI trên EDT ở khung hình tiếp theo, bỏ qua nếu chưa có giao diện
+    private void ui(Consumer<ChatUI> action) {
+        events.post(() -> {
+            ChatUI ui = chatUI;
+            if (ui != null) {
+                action.accept(ui);
+            }
+        });
+    }
+
+    // content = "login:<p2p port>:<presence cursor>:<tính năng>", cursor rỗng ở lần đăng nhập đầu
     private void sendLogin() throws IOException {
-        Message loginMsg = new Message(Message.Type.LOGIN, username, "login");
-        output.writeObject(loginMsg);
-        output.flush();
+        String cursor = presence.cursor();
+        // Kết nối mới: chưa biết server có hỗ trợ nén không cho đến khi nhận phản hồi LOGIN
+        serverCompression = false;
+        Message loginMsg = new Message(Message.Type.LOGIN, username,
+                "login:" + getP2PListenerPort() + ":" + (cursor != null ? cursor : "") + ":"
+                        + FrameCompression.CAPABILITY);
+        sendToServer(loginMsg);
+    }
+
+    private void sendToServer(Message message) throws IOException {
+        synchronized (writeLock) {
+            MessageCodec.writeFrame(output, message, serverCompression);
+            output.flush();
+        }
     }
 
     private void startServerListener() {
         Thread listenerThread = new Thread(() -> {
             while (connected) {
                 try {
-                    Message message = (Message) input.readObject();
+                    Message message = MessageCodec.readFrame(input);
                     handleServerMessage(message);
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     if (connected) {
                         System.err.println("Lỗi kết nối server: " + e.getMessage());
-                        connected = false;
+                        if (!reconnect()) {
+                            connected = false;
+                        }
                     }
                 }
             }
@@ -55,44 +143,88 @@ public class ClientSocket {
         listenerThread.start();
     }
 
+    private void startHeartbeat() {
+        Thread heartbeatThread = new Thread(() -> {
+            while (connected) {
+                try {
+                    Thread.sleep(HEARTBEAT_INTERVAL);
+                    sendToServer(new Message(Message.Type.HEARTBEAT, username, "ping"));
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    // Listener thread sẽ phát hiện mất kết nối và kết nối lại
+                }
+            }
+        });
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    // Kết nối lại với backoff lũy thừa có jitter để các client không cùng lúc dồn vào server
+    // vừa khởi động lại. LOGIN mang theo cursor presence nên chỉ nhận phần thay đổi.
+    private boolean reconnect() {
+        try { serverSocket.close(); } catch (IOException e) {}
+
+        long delay = RECONNECT_MIN_DELAY;
+        while (connected) {
+            try {
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            try {
+                openConnection();
+                sendLogin();
+                System.out.println("Đã kết nối lại server");
+                return true;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+            }
+        }
+        return false;
+    }
+
     private void handleServerMessage(Message message) {
         switch (message.getType()) {
+            case LOGIN:
+                // "login_success" hoặc "login_success:deflate"
+                serverCompression = message.getContent() != null
+                        && message.getContent().endsWith(":" + FrameCompression.CAPABILITY);
+                break;
+
             case USER_ONLINE:
                 // Cập nhật danh sách bạn bè online
-                SwingUtilities.invokeLater(() -> {
-                    if (chatUI != null) {
-                        chatUI.addOrUpdateOnlineUser(message.getFromUser());
-                    }
-                });
+                events.presence(message.getFromUser(), true);
                 break;
 
             case USER_OFFLINE:
                 // Cập nhật bạn bè offline
-                SwingUtilities.invokeLater(() -> {
-                    if (chatUI != null) {
-                        chatUI.removeOnlineUser(message.getFromUser());
-                    }
-                });
+                events.presence(message.getFromUser(), false);
                 break;
 
             case GET_ONLINE_USERS:
                 // Nhận danh sách user online từ server
                 String[] onlineUsers = message.getContent().split(",");
-                SwingUtilities.invokeLater(() -> {
-                    if (chatUI != null) {
-                        // Xóa tất cả bạn bè cũ
-                        chatUI.clearAllFriends();
-
-                        // Thêm bạn bè mới từ server
-                        for (String user : onlineUsers) {
-                            if (!user.isEmpty() && !user.equals(username)) {
-                                chatUI.addOrUpdateOnlineUser(user);
-                            }
+                ui(ui -> {
+                    // Xóa tất cả bạn bè cũ
+                    ui.clearAllFriends();
+
+                    // Thêm bạn bè mới từ server
+                    for (String user : onlineUsers) {
+                        if (!user.isEmpty() && !user.equals(username)) {
+                            ui.addOrUpdateOnlineUser(user);
                         }
                     }
                 });
                 break;
 
+            case PRESENCE_SYNC:
+                // Snapshot hoặc delta presence có version
+                handlePresenceSync(message);
+                break;
+
             case PEER_INFO:
                 // Nhận thông tin peer để thiết lập kết nối P2P
                 handlePeerInfo(message);
@@ -103,6 +235,16 @@ public class ClientSocket {
                 handlePeerRequest(message);
                 break;
 
+            case RELAY_OFFER:
+                // Server cấp relay vì một bên không kết nối trực tiếp được
+                handleRelayOffer(message);
+                break;
+
+            case TEXT:
+                // Tin nhắn gửi qua server trong lúc mình offline
+                handleRelayedText(message);
+                break;
+
             case ERROR:
                 System.err.println("Lỗi từ server: " + message.getContent());
                 break;
@@ -112,91 +254,253 @@ public class ClientSocket {
         }
     }
 
+    private void handlePresenceSync(Message message) {
+        PresenceTracker.Update update = presence.apply(message.getContent());
+        if (!update.getOnline().isEmpty() || !update.getOffline().isEmpty()) {
+            // Cả frame (có thể gồm nhiều user) được gộp với các thay đổi khác trong cùng khung hình
+            events.presence(update.getOnline(), update.getOffline());
+        }
+
+        if (presence.needsResync()) {
+            try {
+                Message resync = new Message(Message.Type.GET_ONLINE_USERS, username, presence.cursor());
+                sendToServer(resync);
+            } catch (IOException e) {
+                System.err.println("Lỗi yêu cầu đồng bộ presence: " + e.getMessage());
+            }
+        }
+    }
+
+    private void systemMessage(String text) {
+        ui(ui -> ui.addSystemMessage(text));
+    }
+
+    private void handleRelayedText(Message message) {
+        synchronized (pendingIncoming) {
+            if (chatUI == null) {
+                pendingIncoming.add(message);
+                return;
+            }
+        }
+        ui(ui -> ui.addIncomingMessage(message.getFromUser(), message.getContent()));
+    }
+
     private void handlePeerInfo(Message message) {
-        // message.getContent() có dạng "ip:port"
+        // message.getContent() có dạng "ip:port:nonce", nonce gửi lại trong PEER_READY
         String[] parts = message.getContent().split(":");
-        if (parts.length == 2) {
+        if (parts.length == 3) {
             try {
                 String peerIp = parts[0];
                 int peerPort = Integer.parseInt(parts[1]);
                 String peerUser = message.getFromUser();
 
                 // Thiết lập kết nối P2P
-                establishP2PConnection(peerUser, peerIp, peerPort);
+                establishP2PConnection(peerUser, peerIp, peerPort, parts[2]);
             } catch (Exception e) {
                 System.err.println("Lỗi xử lý peer info: " + e.getMessage());
             }
         }
     }
 
+    // content = "host:port:token:role", host rỗng nghĩa là cùng host với signaling server
+    private void handleRelayOffer(Message message) {
+        String peerUser = message.getFromUser();
+        String content = message.getContent();
+        try {
+            int roleSep = content.lastIndexOf(':');
+            int tokenSep = content.lastIndexOf(':', roleSep - 1);
+            int portSep = content.lastIndexOf(':', tokenSep - 1);
+            String relayHost = content.substring(0, portSep);
+            int relayPort = Integer.parseInt(content.substring(portSep + 1, tokenSep));
+            String token = content.substring(tokenSep + 1, roleSep);
+            boolean initiator = content.substring(roleSep + 1).equals("connect");
+
+            PeerConnection existing = peerConnections.get(peerUser);
+            if (existing != null && existing.isConnected()) {
+                return;
+            }
+            peerEndpoint.connectRelay(peerUser, relayHost.isEmpty() ? host : relayHost, relayPort, token, initiator);
+        } catch (RuntimeException e) {
+            System.err.println("Relay offer không hợp lệ: " + content);
+        }
+    }
+
+    // Hỏi người dùng mà không chặn listener thread: tin nhắn và heartbeat vẫn chạy trong lúc chờ.
+    // Yêu cầu lặp lại từ cùng user khi hộp thoại còn mở dùng chung câu trả lời.
     private void handlePeerRequest(Message message) {
         String fromUser = message.getFromUser();
-        int choice = JOptionPane.showConfirmDialog(
-                chatUI,
+        events.prompt("peer:" + fromUser, chatUI,
                 fromUser + " muốn kết nối chat với bạn. Chấp nhận?",
-                "Yêu cầu kết nối",
-                JOptionPane.YES_NO_OPTION
-        );
-
-        if (choice == JOptionPane.YES_OPTION) {
-            try {
-                // Gửi thông tin peer của mình cho người yêu cầu
-                sendPeerInfo(fromUser);
-            } catch (IOException e) {
-                System.err.println("Lỗi gửi peer info: " + e.getMessage());
-            }
-        }
+                "Yêu cầu kết nối", PEER_PROMPT_TIMEOUT, accepted -> {
+                    if (accepted && connected) {
+                        try {
+                            // Gửi thông tin peer của mình cho người yêu cầu
+                            sendPeerInfo(fromUser);
+                        } catch (IOException e) {
+                            System.err.println("Lỗi gửi peer info: " + e.getMessage());
+                        }
+                    }
+                });
     }
 
     public void sendPeerRequest(String targetUser) throws IOException {
         Message request = new Message(Message.Type.PEER_REQUEST, username, "peer_request");
         request.setToUser(targetUser);
-        output.writeObject(request);
-        output.flush();
+        sendToServer(request);
     }
 
     public void sendPeerInfo(String targetUser) throws IOException {
         // Lấy port mà client đang lắng nghe kết nối P2P
         int p2pPort = getP2PListenerPort();
         String localIp = InetAddress.getLocalHost().getHostAddress();
-        String peerInfo = localIp + ":" + p2pPort;
+        // Chỉ targetUser nhận được nonce (qua server), kết nối vào không có nonce này bị từ chối
+        String peerInfo = localIp + ":" + p2pPort + ":" + peerEndpoint.expectInbound(targetUser);
 
         Message info = new Message(Message.Type.PEER_INFO, username, peerInfo);
         info.setToUser(targetUser);
-        output.writeObject(info);
-        output.flush();
+        sendToServer(info);
     }
 
+    // Port thật mà PeerEndpoint đang lắng nghe kết nối P2P
     private int getP2PListenerPort() {
-        // Trả về port mà client lắng nghe kết nối P2P
-        // Trong thực tế, bạn cần quản lý port này
-        return 5000 + Math.abs(username.hashCode() % 1000);
+        return peerEndpoint.getPort();
     }
 
-    private void establishP2PConnection(String peerUser, String peerIp, int peerPort) {
-        try {
-            PeerConnection peerConn = new PeerConnection(peerUser, peerIp, peerPort, chatUI);
-            peerConnections.put(peerUser, peerConn);
+    // Kết nối không chặn, PeerEvents.onConnected được gọi khi xong
+    private void establishP2PConnection(String peerUser, String peerIp, int peerPort, String nonce) {
+        peerEndpoint.connect(peerUser, peerIp, peerPort, nonce);
+    }
 
-            SwingUtilities.invokeLater(() -> {
-                chatUI.showChatWithUser(peerUser);
-            });
+    // Sự kiện từ PeerEndpoint, chạy trên thread selector P2P
+    private class PeerEvents implements PeerEndpoint.Handler {
+        @Override
+        public void onConnected(PeerConnection connection) {
+            String peerUser = connection.getPeerUser();
+            PeerConnection previous = peerConnections.put(peerUser, connection);
+            if (previous != null && previous != connection) {
+                previous.close();
+            }
+            ui(ui -> ui.showChatWithUser(peerUser));
+            // File chưa gửi xong cho người này được đề nghị lại và tiếp tục
+            fileTransfers.onConnected(connection);
+        }
 
-        } catch (IOException e) {
-            System.err.println("Lỗi kết nối P2P với " + peerUser + ": " + e.getMessage());
+        @Override
+        public void onMessage(PeerConnection connection, Message message) {
+            if (message.getType() == Message.Type.FILE) {
+                fileTransfers.onMessage(connection, message);
+            } else if (message.getType() == Message.Type.TEXT) {
+                String peerUser = connection.getPeerUser();
+                String content = message.getContent();
+                ui(ui -> ui.addIncomingMessage(peerUser, content));
+            }
+        }
+
+        @Override
+        public void onClosed(PeerConnection connection) {
+            fileTransfers.onClosed(connection);
+            String peerUser = connection.getPeerUser();
+            if (peerUser != null && peerConnections.remove(peerUser, connection) && connected) {
+                systemMessage(peerUser + " đã ngắt kết nối");
+            }
+        }
+
+        @Override
+        public void onConnectFailed(String peerUser, boolean relayed, IOException error) {
+            System.err.println("Lỗi kết nối " + (relayed ? "relay" : "P2P") + " với " + peerUser + ": "
+                    + error.getMessage());
+            if (!relayed && connected) {
+                // Không tới được peer trực tiếp (NAT, firewall, IP sai): nhờ server chuyển tiếp
+                try {
+                    Message request = new Message(Message.Type.RELAY_REQUEST, username, "relay_request");
+                    request.setToUser(peerUser);
+                    sendToServer(request);
+                    systemMessage("Không kết nối trực tiếp được với " + peerUser
+                            + ", chuyển sang kết nối qua server");
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Lỗi yêu cầu relay: " + e.getMessage());
+                }
+            }
+            systemMessage("Không thể kết nối với " + peerUser);
+        }
+    }
+
+    // Sự kiện truyền file, chạy trên thread selector P2P
+    private class FileEvents implements FileTransferManager.Listener {
+        @Override
+        public void onOffer(FileTransferManager.IncomingOffer offer) {
+            if (chatUI == null) {
+                offer.reject();
+                return;
+            }
+            events.prompt("file:" + offer.getId(), chatUI,
+                    offer.getPeerUser() + " muốn gửi file " + offer.getFileName() + " ("
+                            + FileTransferManager.formatSize(offer.getSize()) + "). Nhận file?",
+                    "Nhận file", FILE_PROMPT_TIMEOUT, accepted -> {
+                        if (accepted) {
+                            offer.accept();
+                        } else {
+                            offer.reject();
+                        }
+                    });
+        }
+
+        @Override
+        public void onStatus(String peerUser, String text) {
+            systemMessage(text);
+        }
+    }
+
+    // Gửi file qua P2P, đọc từ đĩa theo từng chunk nên file lớn không chiếm heap. Chưa có kết nối
+    // thì yêu cầu kết nối và file được đề nghị khi kết nối xong. false nếu người nhận offline.
+    public boolean sendFile(String targetUser, File file) {
+        if (!presence.isOnline(targetUser)) {
+            systemMessage(targetUser + " đang offline, không thể gửi file");
+            return false;
+        }
+
+        PeerConnection peerConn = peerConnections.get(targetUser);
+        boolean direct = peerConn != null && peerConn.isConnected();
+        fileTransfers.send(targetUser, file, direct ? peerConn : null);
+        if (!direct) {
+            try {
+                sendPeerRequest(targetUser);
+                systemMessage("Đang kết nối với " + targetUser + " để gửi " + file.getName() + "...");
+            } catch (IOException e) {
+                System.err.println("Lỗi gửi yêu cầu kết nối: " + e.getMessage());
+                systemMessage("Lỗi kết nối với " + targetUser);
+                return false;
+            }
         }
+        return true;
     }
 
-    // Thêm phương thức này vào ClientSocket class
-    public void sendP2PMessage(String targetUser, String content) {
+    // Gửi tin nhắn chat, trả về true nếu tin đã đi (qua P2P, hoặc qua server khi người nhận offline).
+    // false khi mới bắt đầu yêu cầu kết nối P2P, tin nhắn chưa được gửi.
+    public boolean sendP2PMessage(String targetUser, String content) {
         if (targetUser == null || content == null) {
             System.err.println("Target user or content is null");
-            return;
+            return false;
         }
 
         PeerConnection peerConn = peerConnections.get(targetUser);
         if (peerConn != null && peerConn.isConnected()) {
             peerConn.sendMessage(content);
+            return true;
+        } else if (!presence.isOnline(targetUser)) {
+            // Người nhận offline: server lưu lại và giao khi họ đăng nhập
+            try {
+                Message text = new Message(Message.Type.TEXT, username, content);
+                text.setToUser(targetUser);
+                sendToServer(text);
+                systemMessage(targetUser + " đang offline, tin nhắn sẽ được gửi khi " + targetUser + " online");
+                return true;
+            } catch (IOException e) {
+                System.err.println("Lỗi gửi tin nhắn offline: " + e.getMessage());
+                systemMessage("Lỗi gửi tin nhắn đến " + targetUser);
+                return false;
+            }
         } else {
             // Nếu chưa có kết nối P2P, yêu cầu qua server
             try {
@@ -204,20 +508,13 @@ public class ClientSocket {
                 System.out.println("Đang yêu cầu kết nối P2P với " + targetUser + "...");
 
                 // Trong demo, tạm thời hiển thị tin nhắn local
-                SwingUtilities.invokeLater(() -> {
-                    if (chatUI != null) {
-                        chatUI.addSystemMessage("Đang kết nối với " + targetUser + "...");
-                    }
-                });
+                systemMessage("Đang kết nối với " + targetUser + "...");
 
             } catch (IOException e) {
                 System.err.println("Lỗi gửi yêu cầu kết nối: " + e.getMessage());
-                SwingUtilities.invokeLater(() -> {
-                    if (chatUI != null) {
-                        chatUI.addSystemMessage("Lỗi kết nối với " + targetUser);
-                    }
-                });
+                systemMessage("Lỗi kết nối với " + targetUser);
             }
+            return false;
         }
     }
     public void disconnect() {
@@ -225,7 +522,7 @@ public class ClientSocket {
         try {
             // Gửi tin nhắn logout
             Message logoutMsg = new Message(Message.Type.LOGOUT, username, "logout");
-            output.writeObject(logoutMsg);
+            sendToServer(logoutMsg);
         } catch (IOException e) {
             // Ignore
         }
@@ -236,8 +533,7 @@ public class ClientSocket {
         try { serverSocket.close(); } catch (IOException e) {}
 
         // Đóng tất cả kết nối P2P
-        for (PeerConnection conn : peerConnections.values()) {
-            conn.close();
-        }
+        peerEndpoint.close();
+        events.close();
     }
 }
\ No newline at end of file
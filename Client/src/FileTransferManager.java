@@ -0,0 +1,580 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Gửi/nhận file qua kết nối P2P theo từng chunk cố định, heap không phụ thuộc kích thước file.
+//
+// Giao thức (Message FILE, content phân tách bằng ':', tên file nằm trong fileName):
+//   offer:<id>:<size>:<chunkSize>      người gửi đề nghị gửi file
+//   accept:<id>:<offset> / reject:<id>  người nhận đồng ý (từ offset) hoặc từ chối
+//   chunk:<id>:<offset>:<length>:<crc>  ngay sau frame là đúng length byte dữ liệu thô
+//   ack:<id>:<offset>                   mọi byte trước offset đã ghi xuống file và đúng CRC
+//   nack:<id>:<offset>                  chunk tại offset sai CRC, gửi lại từ đó
+//   cancel:<id>
+//
+// Người gửi đọc dữ liệu bằng FileChannel.transferTo (không qua heap), tính CRC trên vùng mmap và
+// giữ tối đa WINDOW_BYTES đang bay chưa được ack. Người nhận ghi thẳng vào <id>.part theo vị trí,
+// đổi tên khi xong. Mất kết nối giữa chừng thì khi kết nối lại người gửi đề nghị lại cùng id và
+// người nhận tiếp tục từ chunk cuối cùng có trong file .part.
+//
+// Mọi trạng thái chỉ được đụng tới trên thread selector của PeerEndpoint.
+public class FileTransferManager {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    private static final long WINDOW_BYTES = 16L * CHUNK_SIZE;
+    // Vùng mmap dùng để tính CRC phía gửi
+    private static final long MAP_REGION_SIZE = 256L * CHUNK_SIZE;
+    private static final String PART_SUFFIX = ".part";
+
+    // Sự kiện cho giao diện, được gọi trên thread selector
+    public interface Listener {
+        // Hỏi người dùng rồi gọi offer.accept() hoặc offer.reject(), từ thread bất kỳ
+        void onOffer(IncomingOffer offer);
+
+        void onStatus(String peerUser, String text);
+    }
+
+    private final PeerEndpoint endpoint;
+    private final File downloadDir;
+    private final Listener listener;
+    private final Map<String, Outgoing> outgoing = new HashMap<>();
+    private final Map<String, Incoming> incoming = new HashMap<>();
+
+    public FileTransferManager(PeerEndpoint endpoint, File downloadDir, Listener listener) {
+        this.endpoint = endpoint;
+        this.downloadDir = downloadDir;
+        this.listener = listener;
+    }
+
+    public static File defaultDownloadDir() {
+        return new File(System.getProperty("user.home"), "ChatAppP2P" + File.separator + "downloads");
+    }
+
+    // Đăng ký gửi file cho peerUser; được đề nghị ngay nếu connection != null, nếu không thì khi
+    // kết nối P2P với người đó được thiết lập (onConnected).
+    public void send(String peerUser, File file, PeerConnection connection) {
+        endpoint.execute(() -> {
+            String id = transferId(peerUser, file);
+            if (outgoing.containsKey(id)) {
+                listener.onStatus(peerUser, "File " + file.getName() + " đang được gửi");
+                return;
+            }
+            Outgoing transfer = new Outgoing(id, peerUser, file);
+            outgoing.put(id, transfer);
+            if (connection != null && connection.isConnected()) {
+                transfer.offer(connection);
+            }
+        });
+    }
+
+    // === Gọi từ PeerEndpoint.Handler trên thread selector ===
+
+    public void onConnected(PeerConnection connection) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.peerUser.equals(connection.getPeerUser())) {
+                transfer.offer(connection);
+            }
+        }
+    }
+
+    public void onClosed(PeerConnection connection) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.connection == connection) {
+                transfer.pause();
+            }
+        }
+        for (Iterator<Incoming> it = incoming.values().iterator(); it.hasNext(); ) {
+            Incoming transfer = it.next();
+            if (transfer.connection == connection) {
+                it.remove();
+                transfer.closeFile();
+                listener.onStatus(transfer.peerUser, "Tạm dừng nhận " + transfer.fileName
+                        + ", sẽ tiếp tục khi kết nối lại");
+            }
+        }
+    }
+
+    public void onMessage(PeerConnection connection, Message message) {
+        String[] parts = message.getContent() == null ? new String[0] : message.getContent().split(":");
+        if (parts.length < 2) {
+            return;
+        }
+        try {
+            String id = parts[1];
+            switch (parts[0]) {
+                case "offer":
+                    handleOffer(connection, id, message.getFileName(), Long.parseLong(parts[2]),
+                            Integer.parseInt(parts[3]));
+                    break;
+                case "accept":
+                    withOutgoing(connection, id, transfer -> transfer.start(Long.parseLong(parts[2])));
+                    break;
+                case "ack":
+                    withOutgoing(connection, id, transfer -> transfer.acknowledge(Long.parseLong(parts[2])));
+                    break;
+                case "nack":
+                    withOutgoing(connection, id, transfer -> transfer.rewind(Long.parseLong(parts[2])));
+                    break;
+                case "reject":
+                    withOutgoing(connection, id, transfer -> transfer.finish(connection.getPeerUser()
+                            + " đã từ chối nhận " + transfer.file.getName()));
+                    break;
+                case "chunk":
+                    handleChunk(connection, id, Long.parseLong(parts[2]), Integer.parseInt(parts[3]),
+                            Long.parseLong(parts[4]));
+                    break;
+                case "cancel":
+                    handleCancel(connection, id);
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // Frame hỏng làm lệch luồng dữ liệu thô, không thể tiếp tục trên kết nối này
+            System.err.println("Frame file không hợp lệ từ " + connection.getPeerUser() + ": " + message.getContent());
+            connection.close();
+        }
+    }
+
+    private void withOutgoing(PeerConnection connection, String id, Consumer<Outgoing> action) {
+        Outgoing transfer = outgoing.get(id);
+        if (transfer != null && transfer.connection == connection) {
+            action.accept(transfer);
+        }
+    }
+
+    // === Nhận ===
+
+    private void handleOffer(PeerConnection connection, String id, String fileName, long size, int chunkSize) {
+        // id trở thành tên file .part nên chỉ nhận đúng dạng UUID
+        if (incoming.containsKey(id) || !id.matches("[0-9a-f-]{36}") || chunkSize <= 0 || size < 0) {
+            return;
+        }
+        IncomingOffer offer = new IncomingOffer(connection, id, safeFileName(fileName), size, chunkSize);
+        if (offer.partFile().exists()) {
+            // Đã nhận dở trước đó: tiếp tục không cần hỏi lại
+            offer.accept();
+        } else {
+            listener.onOffer(offer);
+        }
+    }
+
+    private void handleChunk(PeerConnection connection, String id, long offset, int length, long crc) {
+        if (length < 0) {
+            throw new IllegalArgumentException("độ dài chunk âm");
+        }
+        Incoming transfer = incoming.get(id);
+        if (transfer == null || transfer.connection != connection || offset != transfer.verified) {
+            // Chunk gửi trước khi người gửi nhận nack hoặc cancel: bỏ qua dữ liệu
+            connection.expectRaw(length, DISCARD);
+            return;
+        }
+        transfer.beginChunk(length, crc);
+        connection.expectRaw(length, transfer);
+    }
+
+    private void handleCancel(PeerConnection connection, String id) {
+        Incoming transfer = incoming.get(id);
+        if (transfer != null && transfer.connection == connection) {
+            incoming.remove(id);
+            transfer.closeFile();
+            transfer.partFile.delete();
+            listener.onStatus(transfer.peerUser, transfer.peerUser + " đã hủy gửi " + transfer.fileName);
+        }
+    }
+
+    private static final PeerConnection.RawSink DISCARD = new PeerConnection.RawSink() {
+        @Override
+        public void accept(ByteBuffer data) {
+        }
+
+        @Override
+        public void complete() {
+        }
+    };
+
+    // Lời đề nghị nhận file đang chờ người dùng trả lời
+    public class IncomingOffer {
+        private final PeerConnection connection;
+        private final String id;
+        private final String fileName;
+        private final long size;
+        private final int chunkSize;
+
+        IncomingOffer(PeerConnection connection, String id, String fileName, long size, int chunkSize) {
+            this.connection = connection;
+            this.id = id;
+            this.fileName = fileName;
+            this.size = size;
+            this.chunkSize = chunkSize;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getPeerUser() {
+            return connection.getPeerUser();
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        File partFile() {
+            return new File(downloadDir, id + PART_SUFFIX);
+        }
+
+        public void accept() {
+            connection.execute(() -> {
+                if (!connection.isConnected() || incoming.containsKey(id)) {
+                    return;
+                }
+                try {
+                    Incoming transfer = new Incoming(this);
+                    incoming.put(id, transfer);
+                    if (transfer.verified > 0) {
+                        listener.onStatus(getPeerUser(), "Tiếp tục nhận " + fileName + " từ "
+                                + formatSize(transfer.verified) + "/" + formatSize(size));
+                    } else {
+                        listener.onStatus(getPeerUser(), "Đang nhận " + fileName + " (" + formatSize(size) + ")");
+                    }
+                    send(connection, "accept:" + id + ":" + transfer.verified, null);
+                    if (transfer.verified == size) {
+                        transfer.finish();
+                    }
+                } catch (IOException e) {
+                    listener.onStatus(getPeerUser(), "Không thể lưu " + fileName + ": " + e.getMessage());
+                    send(connection, "reject:" + id, null);
+                }
+            });
+        }
+
+        public void reject() {
+            connection.execute(() -> send(connection, "reject:" + id, null));
+        }
+    }
+
+    // File đang nhận, đồng thời là RawSink cho dữ liệu của chunk hiện tại
+    private class Incoming implements PeerConnection.RawSink {
+        private final PeerConnection connection;
+        private final String peerUser;
+        private final String id;
+        private final String fileName;
+        private final long size;
+        private final File partFile;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        // Mọi byte trước verified đã đúng CRC
+        private long verified;
+        private long writePos;
+        private long expectedCrc;
+        private boolean failed;
+
+        Incoming(IncomingOffer offer) throws IOException {
+            this.connection = offer.connection;
+            this.peerUser = offer.getPeerUser();
+            this.id = offer.id;
+            this.fileName = offer.fileName;
+            this.size = offer.size;
+            this.partFile = offer.partFile();
+            if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+                throw new IOException("không thể tạo thư mục " + downloadDir);
+            }
+            this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            // File .part được cắt về verified khi nack/đóng, nhưng nếu ứng dụng chết giữa chừng thì
+            // chunk cuối (kể cả khi đủ độ dài) có thể chưa qua CRC: luôn nhận lại từ đầu chunk đó
+            long existing = Math.min(channel.size(), size);
+            this.verified = existing == 0 ? 0 : (existing - 1) / offer.chunkSize * offer.chunkSize;
+            channel.truncate(verified);
+        }
+
+        void beginChunk(int length, long expected) {
+            crc.reset();
+            writePos = verified;
+            expectedCrc = expected;
+            failed = false;
+        }
+
+        @Override
+        public void accept(ByteBuffer data) {
+            if (failed) {
+                return;
+            }
+            crc.update(data.duplicate());
+            try {
+                while (data.hasRemaining()) {
+                    writePos += channel.write(data, writePos);
+                }
+            } catch (IOException e) {
+                failed = true;
+                System.err.println("Lỗi ghi file " + partFile + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void complete() {
+            if (failed) {
+                incoming.remove(id);
+                closeFile();
+                send(connection, "cancel:" + id, null);
+                listener.onStatus(peerUser, "Không thể ghi " + fileName + ", đã dừng nhận");
+                return;
+            }
+            if (crc.getValue() != expectedCrc) {
+                // Bỏ dữ liệu hỏng đã ghi để file .part không bao giờ dài hơn phần đã kiểm tra
+                try {
+                    channel.truncate(verified);
+                } catch (IOException e) {
+                    System.err.println("Lỗi ghi file " + partFile + ": " + e.getMessage());
+                }
+                send(connection, "nack:" + id + ":" + verified, null);
+                return;
+            }
+            verified = writePos;
+            send(connection, "ack:" + id + ":" + verified, null);
+            if (verified == size) {
+                finish();
+            }
+        }
+
+        void finish() {
+            incoming.remove(id);
+            try {
+                channel.force(false);
+                closeFile();
+                File target = uniqueTarget(fileName);
+                Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                listener.onStatus(peerUser, "Đã nhận " + fileName + " (" + formatSize(size) + "): "
+                        + target.getAbsolutePath());
+            } catch (IOException e) {
+                listener.onStatus(peerUser, "Nhận xong " + fileName + " nhưng không thể lưu: " + e.getMessage());
+            }
+        }
+
+        void closeFile() {
+            try {
+                // Tạm dừng/mất kết nối giữa chunk: chỉ giữ phần đã qua CRC cho lần nhận tiếp
+                channel.truncate(verified);
+            } catch (IOException e) {
+                // Lần mở lại vẫn bỏ chunk cuối chưa kiểm tra
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private File uniqueTarget(String fileName) {
+        File target = new File(downloadDir, fileName);
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        for (int i = 1; target.exists(); i++) {
+            target = new File(downloadDir, base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+    // === Gửi ===
+
+    private class Outgoing {
+        private final String id;
+        private final String peerUser;
+        private final File file;
+        private final CRC32 crc = new CRC32();
+        private PeerConnection connection;
+        private FileChannel channel;
+        private long size;
+        // [mappedStart, mappedStart + mapped.capacity()) đang được ánh xạ để tính CRC
+        private MappedByteBuffer mapped;
+        private long mappedStart;
+        private long acked;
+        private long nextOffset;
+        private boolean started;
+
+        Outgoing(String id, String peerUser, File file) {
+            this.id = id;
+            this.peerUser = peerUser;
+            this.file = file;
+        }
+
+        void offer(PeerConnection connection) {
+            pause();
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                size = channel.size();
+            } catch (IOException e) {
+                finish("Không thể đọc " + file.getName() + ": " + e.getMessage());
+                return;
+            }
+            this.connection = connection;
+            send(connection, "offer:" + id + ":" + size + ":" + CHUNK_SIZE, file.getName());
+            listener.onStatus(peerUser, "Đang chờ " + peerUser + " nhận " + file.getName()
+                    + " (" + formatSize(size) + ")");
+        }
+
+        void start(long offset) {
+            if (offset < 0 || offset > size) {
+                return;
+            }
+            if (offset > 0) {
+                listener.onStatus(peerUser, "Tiếp tục gửi " + file.getName() + " từ "
+                        + formatSize(offset) + "/" + formatSize(size));
+            }
+            started = true;
+            acked = offset;
+            nextOffset = offset;
+            checkDone();
+            fill();
+        }
+
+        void acknowledge(long offset) {
+            if (!started || offset <= acked || offset > nextOffset) {
+                return;
+            }
+            acked = offset;
+            if (!checkDone()) {
+                fill();
+            }
+        }
+
+        // Go-back-N: gửi lại từ chunk hỏng, các chunk sau đó người nhận sẽ bỏ qua
+        void rewind(long offset) {
+            if (!started || offset < acked || offset > nextOffset) {
+                return;
+            }
+            acked = offset;
+            nextOffset = offset;
+            fill();
+        }
+
+        private void fill() {
+            while (connection != null && nextOffset < size && nextOffset - acked < WINDOW_BYTES) {
+                int length = (int) Math.min(CHUNK_SIZE, size - nextOffset);
+                long checksum;
+                try {
+                    checksum = checksum(nextOffset, length);
+                } catch (IOException e) {
+                    finish("Không thể đọc " + file.getName() + ": " + e.getMessage());
+                    return;
+                }
+                Message header = header("chunk:" + id + ":" + nextOffset + ":" + length + ":" + checksum, null);
+                connection.sendFileRegion(header, channel, nextOffset, length, () -> { });
+                nextOffset += length;
+            }
+        }
+
+        private long checksum(long offset, int length) throws IOException {
+            if (mapped == null || offset < mappedStart || offset + length > mappedStart + mapped.capacity()) {
+                mappedStart = offset;
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_REGION_SIZE, size - offset));
+            }
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) (offset - mappedStart)).limit((int) (offset - mappedStart) + length);
+            crc.reset();
+            crc.update(slice);
+            return crc.getValue();
+        }
+
+        private boolean checkDone() {
+            if (acked < size) {
+                return false;
+            }
+            finish("Đã gửi " + file.getName() + " (" + formatSize(size) + ") cho " + peerUser);
+            return true;
+        }
+
+        // Kết nối đóng: giữ lại để đề nghị tiếp khi kết nối lại
+        void pause() {
+            if (connection != null && started && acked < size) {
+                listener.onStatus(peerUser, "Tạm dừng gửi " + file.getName() + " ở "
+                        + formatSize(acked) + "/" + formatSize(size));
+            }
+            connection = null;
+            started = false;
+            closeChannel();
+        }
+
+        // Kết thúc (xong, bị từ chối hoặc lỗi). Khi chưa xong, cancel đi sau các chunk còn trong
+        // hàng đợi và FileChannel chỉ được đóng khi chúng đã ghi hết.
+        void finish(String status) {
+            PeerConnection current = connection;
+            connection = null;
+            outgoing.remove(id);
+            listener.onStatus(peerUser, status);
+            if (current == null || acked >= size) {
+                closeChannel();
+            } else {
+                current.sendFileRegion(header("cancel:" + id, null), channel, 0, 0, this::closeChannel);
+            }
+        }
+
+        private void closeChannel() {
+            mapped = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                channel = null;
+            }
+        }
+    }
+
+    // === Tiện ích ===
+
+    private Message header(String content, String fileName) {
+        Message message = new Message(Message.Type.FILE, endpoint.getUsername(), content);
+        message.setFileName(fileName);
+        return message;
+    }
+
+    private void send(PeerConnection connection, String content, String fileName) {
+        connection.sendMessage(header(content, fileName));
+    }
+
+    // id ổn định cho cùng file, cùng người nhận: gửi lại sau khi khởi động lại vẫn tiếp tục được
+    private String transferId(String peerUser, File file) {
+        String key = endpoint.getUsername() + "|" + peerUser + "|" + file.getAbsolutePath() + "|"
+                + file.length() + "|" + file.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static String safeFileName(String fileName) {
+        if (fileName == null) {
+            return "file";
+        }
+        String name = new File(fileName).getName().replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? "file" : name;
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,158 @@
+import javax.swing.AbstractListModel;
+import java.util.*;
+
+// Danh sách bạn bè theo khóa username, sắp theo hoạt động gần nhất (mới trước, cùng lúc thì theo tên).
+//
+// Mỗi thay đổi chỉ báo cho JList đúng dòng bị ảnh hưởng (thêm/xóa/đổi), vị trí tìm bằng tìm kiếm
+// nhị phân trên danh sách đã sắp nên presence đổi liên tục cũng không dựng lại cả danh sách.
+// rows chỉ chứa bạn khớp bộ lọc hiện tại; byName giữ tất cả.
+//
+// Chỉ dùng trên EDT.
+public class FriendListModel extends AbstractListModel<ChatUI.Friend> {
+    private static final Comparator<ChatUI.Friend> ORDER = Comparator
+            .comparingLong((ChatUI.Friend f) -> -f.getLastActivity())
+            .thenComparing(ChatUI.Friend::getName);
+
+    private final Map<String, ChatUI.Friend> byName = new HashMap<>();
+    private final List<ChatUI.Friend> rows = new ArrayList<>();
+    private String filter = "";
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public ChatUI.Friend getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    public ChatUI.Friend get(String name) {
+        return byName.get(name);
+    }
+
+    public boolean isEmpty() {
+        return byName.isEmpty();
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    // Thêm bạn hoặc cập nhật dòng trạng thái, trả về true nếu là bạn mới
+    public boolean put(String name, String status) {
+        ChatUI.Friend friend = byName.get(name);
+        if (friend != null) {
+            if (!status.equals(friend.getLastMessage())) {
+                friend.setLastMessage(status);
+                fireChanged(friend);
+            }
+            return false;
+        }
+        friend = new ChatUI.Friend(name, status);
+        byName.put(name, friend);
+        insert(friend);
+        return true;
+    }
+
+    public boolean remove(String name) {
+        ChatUI.Friend friend = byName.remove(name);
+        if (friend == null) {
+            return false;
+        }
+        int index = indexOf(friend);
+        if (index >= 0) {
+            rows.remove(index);
+            fireIntervalRemoved(this, index, index);
+        }
+        return true;
+    }
+
+    // Có tin nhắn mới với name: đổi dòng tin cuối và đưa lên đầu
+    public void touch(String name, String lastMessage) {
+        ChatUI.Friend friend = byName.get(name);
+        if (friend == null) {
+            return;
+        }
+        int index = indexOf(friend);
+        if (index >= 0) {
+            rows.remove(index);
+        }
+        friend.setLastMessage(lastMessage);
+        friend.setLastActivity(System.currentTimeMillis());
+        if (index < 0) {
+            return;
+        }
+        int target = insertionPoint(friend);
+        rows.add(target, friend);
+        if (target == index) {
+            fireContentsChanged(this, index, index);
+        } else {
+            fireIntervalRemoved(this, index, index);
+            fireIntervalAdded(this, target, target);
+        }
+    }
+
+    public void clear() {
+        byName.clear();
+        int size = rows.size();
+        rows.clear();
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    // Lọc theo tên (không phân biệt hoa thường); dựng lại rows một lần cho mỗi lần đổi bộ lọc
+    public void setFilter(String query) {
+        String normalized = query.toLowerCase();
+        if (normalized.equals(filter)) {
+            return;
+        }
+        filter = normalized;
+        int oldSize = rows.size();
+        rows.clear();
+        for (ChatUI.Friend friend : byName.values()) {
+            if (matches(friend)) {
+                rows.add(friend);
+            }
+        }
+        rows.sort(ORDER);
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        if (!rows.isEmpty()) {
+            fireIntervalAdded(this, 0, rows.size() - 1);
+        }
+    }
+
+    private void insert(ChatUI.Friend friend) {
+        if (!matches(friend)) {
+            return;
+        }
+        int index = insertionPoint(friend);
+        rows.add(index, friend);
+        fireIntervalAdded(this, index, index);
+    }
+
+    private void fireChanged(ChatUI.Friend friend) {
+        int index = indexOf(friend);
+        if (index >= 0) {
+            fireContentsChanged(this, index, index);
+        }
+    }
+
+    private boolean matches(ChatUI.Friend friend) {
+        return filter.isEmpty() || friend.getName().toLowerCase().contains(filter);
+    }
+
+    // Vị trí của friend trong rows, -1 nếu bị lọc
+    private int indexOf(ChatUI.Friend friend) {
+        int index = Collections.binarySearch(rows, friend, ORDER);
+        return index >= 0 ? index : -1;
+    }
+
+    private int insertionPoint(ChatUI.Friend friend) {
+        int index = Collections.binarySearch(rows, friend, ORDER);
+        return index >= 0 ? index : -index - 1;
+    }
+}
@@ -1,96 +1,306 @@
-import javax.swing.*;
-import java.io.*;
-import java.net.*;
-import java.util.concurrent.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Kết nối P2P với một user, do PeerEndpoint điều khiển.
+// Mọi thao tác đọc/ghi socket chạy trên thread selector của endpoint; sendMessage từ thread khác
+// chỉ đưa frame vào hàng đợi rồi nhờ endpoint ghi.
+//
+// Ngoài frame MessageCodec, kết nối còn chở dữ liệu file thô: một frame header rồi đến đúng
+// `count` byte lấy thẳng từ FileChannel bằng transferTo (không qua heap). Bên nhận được báo
+// trước độ dài qua expectRaw và đưa các byte đó cho một RawSink thay vì giải mã frame.
 public class PeerConnection {
-    private Socket peerSocket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
-    private String peerUser;
-    private ChatUI chatUI;
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Buffer đọc khi đang nhận dữ liệu file
+    private static final int RAW_READ_BUFFER_SIZE = 64 * 1024;
+
+    // Nhận dữ liệu thô trên thread selector
+    interface RawSink {
+        void accept(ByteBuffer data);
+
+        void complete();
+    }
+
+    private final PeerEndpoint endpoint;
+    private final SocketChannel channel;
+    // ByteBuffer (frame) hoặc FileRegion
+    private final Queue<Object> outbound;
+    private final AtomicBoolean flushScheduled;
+    // null với kết nối vào cho đến khi nhận PEER_READY
+    private volatile String peerUser;
+    // false cho đến khi nhận PEER_READY (kết nối vào, hoặc bên chờ của kết nối relay)
+    private boolean identified;
+    // Peer đã báo hỗ trợ nén frame trong PEER_READY
+    private volatile boolean compress;
     private volatile boolean connected;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private RawSink rawSink;
+    private long rawRemaining;
 
-    public PeerConnection(String peerUser, String peerIp, int peerPort, ChatUI chatUI) throws IOException {
+    PeerConnection(PeerEndpoint endpoint, SocketChannel channel, String peerUser, boolean identified) {
+        this.endpoint = endpoint;
+        this.channel = channel;
         this.peerUser = peerUser;
-        this.chatUI = chatUI;
-
-        // Kết nối đến peer
-        this.peerSocket = new Socket(peerIp, peerPort);
-        this.output = new ObjectOutputStream(peerSocket.getOutputStream());
-        this.input = new ObjectInputStream(peerSocket.getInputStream());
+        this.identified = identified;
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
         this.connected = true;
+    }
 
-        // Bắt đầu lắng nghe tin nhắn từ peer
-        startPeerListener();
+    void attach(SelectionKey key) {
+        this.key = key;
     }
 
-    // Constructor cho phía lắng nghe
-    public PeerConnection(Socket peerSocket, String peerUser, ChatUI chatUI) throws IOException {
-        this.peerSocket = peerSocket;
-        this.peerUser = peerUser;
-        this.chatUI = chatUI;
-        this.output = new ObjectOutputStream(peerSocket.getOutputStream());
-        this.input = new ObjectInputStream(peerSocket.getInputStream());
-        this.connected = true;
+    void finishConnect() throws IOException {
+        channel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    public String getPeerUser() {
+        return peerUser;
+    }
+
+    public void sendMessage(String content) {
+        sendMessage(new Message(Message.Type.TEXT, endpoint.getUsername(), content));
+    }
+
+    public void sendMessage(Message message) {
+        if (!connected) {
+            return;
+        }
+        outbound.add(ByteBuffer.wrap(MessageCodec.encode(message, compress)));
+        scheduleFlush();
+    }
+
+    // Gửi header rồi count byte của file từ position. onWritten chạy trên thread selector
+    // khi đã ghi xong (hoặc khi kết nối đóng trước đó thì không chạy).
+    void sendFileRegion(Message header, FileChannel file, long position, long count, Runnable onWritten) {
+        if (!connected) {
+            return;
+        }
+        outbound.add(new FileRegion(ByteBuffer.wrap(MessageCodec.encode(header, compress)), file, position, count,
+                onWritten));
+        scheduleFlush();
+    }
 
-        startPeerListener();
+    // Gọi trong lúc xử lý một frame: length byte ngay sau frame đó là dữ liệu thô cho sink
+    void expectRaw(long length, RawSink sink) {
+        rawRemaining = length;
+        rawSink = sink;
+        if (readBuffer.capacity() < RAW_READ_BUFFER_SIZE) {
+            // Đang giữa vòng xử lý frame nên readBuffer ở chế độ đọc
+            ByteBuffer larger = ByteBuffer.allocate(RAW_READ_BUFFER_SIZE);
+            larger.put(readBuffer);
+            larger.flip();
+            readBuffer = larger;
+        }
+        if (length == 0) {
+            rawSink = null;
+            sink.complete();
+        }
+    }
+
+    // Chạy task trên thread selector của endpoint
+    void execute(Runnable task) {
+        endpoint.execute(task);
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            endpoint.execute(() -> {
+                flushScheduled.set(false);
+                onWritable();
+            });
+        }
     }
 
-    private void startPeerListener() {
-        Thread listenerThread = new Thread(() -> {
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
             while (connected) {
-                try {
-                    Message message = (Message) input.readObject();
-                    handlePeerMessage(message);
-                } catch (IOException | ClassNotFoundException e) {
-                    if (connected) {
-                        System.err.println("Lỗi kết nối P2P với " + peerUser + ": " + e.getMessage());
-                        connected = false;
-
-                        SwingUtilities.invokeLater(() -> {
-                            chatUI.addSystemMessage(peerUser + " đã ngắt kết nối");
-                        });
+                if (rawSink != null) {
+                    if (!readBuffer.hasRemaining()) {
+                        break;
+                    }
+                    int length = (int) Math.min(rawRemaining, readBuffer.remaining());
+                    ByteBuffer data = readBuffer.slice();
+                    data.limit(length);
+                    readBuffer.position(readBuffer.position() + length);
+                    rawRemaining -= length;
+                    RawSink sink = rawSink;
+                    if (rawRemaining == 0) {
+                        rawSink = null;
                     }
+                    sink.accept(data);
+                    if (rawRemaining == 0) {
+                        sink.complete();
+                    }
+                    continue;
+                }
+
+                Message message = MessageCodec.tryReadFrame(readBuffer);
+                if (message == null) {
+                    break;
                 }
+                handleFrame(message);
+            }
+            readBuffer.compact();
+
+            // Nới buffer nếu frame đang đọc dở lớn hơn dung lượng hiện tại
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        } catch (IOException e) {
+            if (connected) {
+                System.err.println("Lỗi kết nối P2P với " + peerUser + ": " + e.getMessage());
             }
-        });
-        listenerThread.setDaemon(true);
-        listenerThread.start();
+            close();
+        }
     }
 
-    private void handlePeerMessage(Message message) {
-        if (message.getType() == Message.Type.TEXT) {
-            SwingUtilities.invokeLater(() -> {
-                chatUI.addIncomingMessage(peerUser, message.getContent());
-            });
+    private void handleFrame(Message message) {
+        if (!identified) {
+            // Frame đầu tiên của kết nối vào phải cho biết peer là ai: đúng người đang chờ qua relay
+            // (token relay đã xác thực), hoặc kết nối trực tiếp mang nonce mình cấp cho user đó
+            if (message.getType() != Message.Type.PEER_READY || message.getFromUser() == null
+                    || (peerUser != null ? !peerUser.equals(message.getFromUser())
+                            : !endpoint.claimInbound(readyField(message, 2), message.getFromUser()))) {
+                System.err.println("Kết nối P2P không hợp lệ, đóng kết nối");
+                close();
+                return;
+            }
+            peerUser = message.getFromUser();
+            identified = true;
+            compress = hasCompression(message);
+            sendMessage(endpoint.readyMessage(null));
+            endpoint.onIdentified(this);
+            return;
+        }
+        if (message.getType() == Message.Type.PEER_READY) {
+            // Phản hồi PEER_READY của bên nhận kết nối
+            compress = hasCompression(message);
+            return;
         }
+        endpoint.onMessage(this, message);
     }
 
-    public void sendMessage(String content) {
-        try {
-            Message message = new Message(Message.Type.TEXT, "", content);
-            output.writeObject(message);
-            output.flush();
+    // content = "ready:<tính năng>[:<nonce>]"
+    private static boolean hasCompression(Message message) {
+        String features = readyField(message, 1);
+        return features != null && Arrays.asList(features.split(",")).contains(FrameCompression.CAPABILITY);
+    }
 
-            SwingUtilities.invokeLater(() -> {
-                chatUI.addOutgoingMessage(content);
-            });
+    private static String readyField(Message message, int index) {
+        String content = message.getContent();
+        if (content == null) {
+            return null;
+        }
+        String[] parts = content.split(":");
+        return index < parts.length ? parts[index] : null;
+    }
 
+    void onWritable() {
+        if (!connected || !channel.isConnected()) {
+            // Chưa kết nối xong: finishConnect sẽ ghi phần còn lại
+            return;
+        }
+        try {
+            Object item;
+            while ((item = outbound.peek()) != null) {
+                boolean done;
+                if (item instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) item;
+                    channel.write(buffer);
+                    done = !buffer.hasRemaining();
+                } else {
+                    done = ((FileRegion) item).writeTo(channel);
+                }
+                if (!done) {
+                    // Socket đầy, chờ OP_WRITE
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                if (item instanceof FileRegion) {
+                    ((FileRegion) item).onWritten.run();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
         } catch (IOException e) {
             System.err.println("Lỗi gửi tin nhắn P2P: " + e.getMessage());
-            connected = false;
+            close();
         }
     }
 
     public boolean isConnected() {
-        return connected && peerSocket != null && !peerSocket.isClosed();
+        return connected && channel.isOpen();
     }
 
     public void close() {
-        connected = false;
-        try { input.close(); } catch (IOException e) {}
-        try { output.close(); } catch (IOException e) {}
-        try { peerSocket.close(); } catch (IOException e) {}
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        endpoint.onClosed(this);
+    }
+
+    // Header + một đoạn file, phần file được ghi bằng transferTo (sendfile) không qua heap
+    private static class FileRegion {
+        private final ByteBuffer header;
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+        private final Runnable onWritten;
+
+        FileRegion(ByteBuffer header, FileChannel file, long position, long count, Runnable onWritten) {
+            this.header = header;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.onWritten = onWritten;
+        }
+
+        // true khi đã ghi hết, false nếu socket đầy
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                long written = file.transferTo(position, remaining, channel);
+                if (written <= 0) {
+                    return false;
+                }
+                position += written;
+                remaining -= written;
+            }
+            return true;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Điểm P2P của client: một socket lắng nghe trên port tạm (port thật được gửi trong LOGIN và
+// PEER_INFO) và một thread selector duy nhất phục vụ mọi kết nối P2P vào lẫn ra.
+// Có hàng trăm cuộc trò chuyện mở cũng chỉ tốn một thread.
+//
+// Bên chủ động kết nối gửi PEER_READY (from = username) làm frame đầu tiên để bên nhận biết
+// kết nối thuộc về user nào. Port lắng nghe ai cũng tới được nên kết nối vào chỉ được nhận khi
+// PEER_READY mang nonce một lần mà mình đã gửi cho đúng user đó trong PEER_INFO (qua server).
+//
+// Không kết nối trực tiếp được thì hai bên cùng kết nối ra relay của server (connectRelay): frame
+// đầu tiên là RELAY_JOIN với token server cấp, sau đó relay chép nguyên byte giữa hai bên nên phần
+// còn lại giống hệt kết nối trực tiếp (bên "connect" gửi PEER_READY, bên kia chờ).
+public class PeerEndpoint implements Runnable {
+    // Kết nối chưa xong sau khoảng này thì coi là thất bại (NAT/firewall thường nuốt SYN)
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    // Nonce trong PEER_INFO hết hạn sau khoảng này nếu peer không kết nối tới
+    private static final long INBOUND_NONCE_TTL_MS = 60_000;
+
+    // Nhận sự kiện từ endpoint, các hàm chạy trên thread selector nên không được chặn lâu
+    public interface Handler {
+        void onConnected(PeerConnection connection);
+
+        void onMessage(PeerConnection connection, Message message);
+
+        void onClosed(PeerConnection connection);
+
+        // relayed: thất bại khi kết nối qua relay
+        void onConnectFailed(String peerUser, boolean relayed, IOException error);
+    }
+
+    private final String username;
+    private final Handler handler;
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean wakeupPending;
+    // Kết nối ra đang chờ xong, chỉ dùng trên thread selector
+    private final Map<PeerConnection, PendingConnect> pendingConnects = new HashMap<>();
+    // nonce -> user được phép dùng nonce đó để kết nối vào
+    private final Map<String, ExpectedPeer> expectedInbound = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public PeerEndpoint(String username, Handler handler) throws IOException {
+        this.username = username;
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        // Port 0: hệ điều hành chọn port trống
+        this.listener.bind(new InetSocketAddress(0));
+        this.listener.configureBlocking(false);
+        this.listener.register(selector, SelectionKey.OP_ACCEPT);
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.wakeupPending = new AtomicBoolean();
+
+        this.thread = new Thread(this, "p2p-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Kết nối đến peer (non-blocking) với nonce peer gửi trong PEER_INFO, kết quả báo qua
+    // Handler.onConnected / onConnectFailed
+    public void connect(String peerUser, String host, int port, String nonce) {
+        open(peerUser, host, port, new PendingConnect(null, true, nonce));
+    }
+
+    // Gọi trước khi gửi PEER_INFO cho peerUser: trả về nonce peerUser phải gửi lại trong PEER_READY
+    public String expectInbound(String peerUser) {
+        long now = System.currentTimeMillis();
+        expectedInbound.values().removeIf(expected -> expected.expiresAt <= now);
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder nonce = new StringBuilder(32);
+        for (byte b : bytes) {
+            nonce.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        expectedInbound.put(nonce.toString(), new ExpectedPeer(peerUser, now + INBOUND_NONCE_TTL_MS));
+        return nonce.toString();
+    }
+
+    // Kết nối đến peer qua relay của server với token server cấp. initiator = true thì mình gửi
+    // PEER_READY, ngược lại chờ PEER_READY của peerUser.
+    public void connectRelay(String peerUser, String host, int port, String token, boolean initiator) {
+        open(peerUser, host, port, new PendingConnect(token, initiator, null));
+    }
+
+    private void open(String peerUser, String host, int port, PendingConnect pending) {
+        execute(() -> {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                PeerConnection connection = new PeerConnection(this, channel, peerUser, pending.initiator);
+                boolean connected = channel.connect(new InetSocketAddress(host, port));
+                connection.attach(channel.register(selector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection));
+                if (connected) {
+                    onConnectFinished(connection, pending);
+                } else {
+                    pendingConnects.put(connection, pending);
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+                handler.onConnectFailed(peerUser, pending.token != null, e);
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (!pendingConnects.isEmpty()) {
+                    selector.select(CONNECT_TIMEOUT_MS / 5);
+                } else {
+                    selector.select();
+                }
+                wakeupPending.set(false);
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptPending();
+                        continue;
+                    }
+
+                    PeerConnection connection = (PeerConnection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            finishConnect(connection);
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (RuntimeException e) {
+                        // Lỗi của một kết nối (giải mã, handler) chỉ đóng kết nối đó, không dừng thread
+                        System.err.println("Lỗi kết nối P2P với " + connection.getPeerUser() + ": " + e);
+                        connection.close();
+                    }
+                }
+                expireConnects();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Lỗi P2P endpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Lỗi task P2P: " + e.getMessage());
+            }
+        }
+    }
+
+    private void acceptPending() throws IOException {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                // Chưa biết peer là ai cho đến khi nhận PEER_READY
+                PeerConnection connection = new PeerConnection(this, channel, null, false);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void finishConnect(PeerConnection connection) {
+        PendingConnect pending = pendingConnects.remove(connection);
+        try {
+            connection.finishConnect();
+            onConnectFinished(connection, pending);
+        } catch (IOException e) {
+            connection.close();
+            handler.onConnectFailed(connection.getPeerUser(), pending.token != null, e);
+        }
+    }
+
+    private void onConnectFinished(PeerConnection connection, PendingConnect pending) {
+        if (pending.token != null) {
+            connection.sendMessage(new Message(Message.Type.RELAY_JOIN, username, pending.token));
+        }
+        if (pending.initiator) {
+            connection.sendMessage(readyMessage(pending.nonce));
+            handler.onConnected(connection);
+        }
+    }
+
+    // PEER_READY báo luôn các tính năng mình hỗ trợ; bên nhận trả lời lại bằng PEER_READY của nó.
+    // content = "ready:<tính năng>[:<nonce>]", nonce chỉ có ở kết nối trực tiếp ra
+    Message readyMessage(String nonce) {
+        return new Message(Message.Type.PEER_READY, username,
+                "ready:" + FrameCompression.CAPABILITY + (nonce != null ? ":" + nonce : ""));
+    }
+
+    private void expireConnects() {
+        if (pendingConnects.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<PeerConnection, PendingConnect>> it = pendingConnects.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PeerConnection, PendingConnect> entry = it.next();
+            if (now >= entry.getValue().deadline) {
+                it.remove();
+                PeerConnection connection = entry.getKey();
+                connection.close();
+                handler.onConnectFailed(connection.getPeerUser(), entry.getValue().token != null,
+                        new SocketTimeoutException("hết thời gian kết nối"));
+            }
+        }
+    }
+
+    // === Gọi từ PeerConnection trên thread selector ===
+
+    // Nonce có phải do mình cấp cho peerUser và còn hạn không; mỗi nonce chỉ dùng được một lần
+    boolean claimInbound(String nonce, String peerUser) {
+        ExpectedPeer expected = nonce != null ? expectedInbound.remove(nonce) : null;
+        return expected != null && expected.peerUser.equals(peerUser)
+                && expected.expiresAt > System.currentTimeMillis();
+    }
+
+    void onIdentified(PeerConnection connection) {
+        handler.onConnected(connection);
+    }
+
+    void onMessage(PeerConnection connection, Message message) {
+        handler.onMessage(connection, message);
+    }
+
+    void onClosed(PeerConnection connection) {
+        handler.onClosed(connection);
+    }
+
+    // Đóng listener và mọi kết nối P2P
+    public void close() {
+        // Chạy trên thread selector vì tập key của selector không an toàn cho thread khác
+        execute(() -> {
+            running = false;
+            List<PeerConnection> connections = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof PeerConnection) {
+                    connections.add((PeerConnection) key.attachment());
+                }
+            }
+            for (PeerConnection connection : connections) {
+                connection.close();
+            }
+            closeQuietly(listener);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        });
+    }
+
+    // Kết nối ra chưa xong; token != null nếu đi qua relay, nonce != null nếu kết nối trực tiếp
+    private static class PendingConnect {
+        private final String token;
+        private final boolean initiator;
+        private final String nonce;
+        private final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+
+        PendingConnect(String token, boolean initiator, String nonce) {
+            this.token = token;
+            this.initiator = initiator;
+            this.nonce = nonce;
+        }
+    }
+
+    // User được phép kết nối vào bằng một nonce
+    private static class ExpectedPeer {
+        private final String peerUser;
+        private final long expiresAt;
+
+        ExpectedPeer(String peerUser, long expiresAt) {
+            this.peerUser = peerUser;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
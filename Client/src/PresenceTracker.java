@@ -0,0 +1,191 @@
+import java.util.*;
+
+// Theo dõi danh sách user online theo version presence nhận từ server.
+//
+// content của PRESENCE_SYNC = epoch;base;version;kind;entries
+//   kind S (snapshot): entries là "user@v" của mọi user đang online tại version
+//   kind D (delta):    entries là "+user@v" / "-user@v", các thay đổi trong khoảng (base, version]
+//
+// Mỗi user nhớ version cuối cùng đã áp dụng nên delta đến trễ hoặc đến lặp không ghi đè
+// trạng thái mới hơn. appliedVersion chỉ tiến lên khi không còn khoảng trống, đó là cursor
+// gửi lại cho server khi kết nối lại để nhận đúng phần còn thiếu.
+public class PresenceTracker {
+    // Yêu cầu đồng bộ lại chưa có kết quả sau khoảng này thì được gửi lại
+    private static final long RESYNC_RETRY_MS = 5000;
+
+    private long epoch = -1;
+    private long appliedVersion;
+    private final TreeMap<Long, Long> pendingRanges;
+    private final Map<String, Long> userVersions;
+    private final Set<String> online;
+    // Thời điểm gửi yêu cầu đồng bộ lại đang chờ, 0 nếu không có
+    private long resyncRequestedAt;
+
+    public PresenceTracker() {
+        this.pendingRanges = new TreeMap<>();
+        this.userVersions = new HashMap<>();
+        this.online = new LinkedHashSet<>();
+    }
+
+    // Áp dụng một PRESENCE_SYNC, trả về các thay đổi cần cập nhật lên giao diện
+    public synchronized Update apply(String content) {
+        String[] parts = content.split(";", 5);
+        if (parts.length < 5) {
+            return Update.EMPTY;
+        }
+
+        long syncEpoch;
+        long base;
+        long version;
+        try {
+            syncEpoch = Long.parseLong(parts[0]);
+            base = Long.parseLong(parts[1]);
+            version = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return Update.EMPTY;
+        }
+        boolean snapshot = "S".equals(parts[3]);
+        String[] entries = parts[4].isEmpty() ? new String[0] : parts[4].split(",");
+
+        if (snapshot) {
+            return applySnapshot(syncEpoch, version, entries);
+        }
+        if (syncEpoch != epoch) {
+            // Delta của lần chạy server khác: snapshot theo sau sẽ bao gồm thay đổi này
+            return Update.EMPTY;
+        }
+        return applyDelta(base, version, entries);
+    }
+
+    private Update applySnapshot(long syncEpoch, long version, String[] entries) {
+        if (syncEpoch != epoch) {
+            // Server đã khởi động lại, version cũ không còn ý nghĩa
+            epoch = syncEpoch;
+            userVersions.clear();
+            pendingRanges.clear();
+            appliedVersion = 0;
+        }
+
+        Update update = new Update(true);
+        Set<String> present = new HashSet<>();
+        for (String entry : entries) {
+            int at = entry.lastIndexOf('@');
+            if (at <= 0) {
+                continue;
+            }
+            String user = entry.substring(0, at);
+            present.add(user);
+            setState(user, true, parseVersion(entry.substring(at + 1)), update);
+        }
+
+        // User không có trong snapshot là đã offline tại version của snapshot
+        for (String user : new ArrayList<>(online)) {
+            if (!present.contains(user)) {
+                setState(user, false, version, update);
+            }
+        }
+
+        appliedVersion = Math.max(appliedVersion, version);
+        absorbPending();
+        return update;
+    }
+
+    private Update applyDelta(long base, long version, String[] entries) {
+        Update update = new Update(false);
+        for (String entry : entries) {
+            int at = entry.lastIndexOf('@');
+            if (entry.length() < 2 || at <= 1) {
+                continue;
+            }
+            boolean isOnline = entry.charAt(0) == '+';
+            setState(entry.substring(1, at), isOnline, parseVersion(entry.substring(at + 1)), update);
+        }
+
+        if (base <= appliedVersion) {
+            appliedVersion = Math.max(appliedVersion, version);
+            absorbPending();
+        } else {
+            pendingRanges.merge(base, version, Math::max);
+        }
+        return update;
+    }
+
+    private void setState(String user, boolean isOnline, long version, Update update) {
+        Long known = userVersions.get(user);
+        if (known != null && known >= version) {
+            return;
+        }
+        userVersions.put(user, version);
+
+        if (isOnline) {
+            online.add(user);
+            update.online.add(user);
+        } else if (online.remove(user)) {
+            update.offline.add(user);
+        }
+    }
+
+    // Nối các delta đến trước nếu khoảng trống đã được lấp
+    private void absorbPending() {
+        while (!pendingRanges.isEmpty() && pendingRanges.firstKey() <= appliedVersion) {
+            appliedVersion = Math.max(appliedVersion, pendingRanges.pollFirstEntry().getValue());
+        }
+        if (pendingRanges.isEmpty()) {
+            resyncRequestedAt = 0;
+        }
+    }
+
+    private long parseVersion(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Cursor gửi cho server khi login lại, null nếu chưa nhận được snapshot nào
+    public synchronized String cursor() {
+        return epoch < 0 ? null : epoch + "." + appliedVersion;
+    }
+
+    // Presence đến theo thứ tự trên một kết nối TCP nên khoảng trống nghĩa là server đã bỏ frame
+    // (hàng đợi gửi đầy) và sẽ không tự gửi lại. true: người gọi gửi GET_ONLINE_USERS với cursor
+    // ngay; chỉ một yêu cầu được chờ tại một thời điểm.
+    public synchronized boolean needsResync() {
+        if (pendingRanges.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (resyncRequestedAt != 0 && now - resyncRequestedAt < RESYNC_RETRY_MS) {
+            return false;
+        }
+        resyncRequestedAt = now;
+        return true;
+    }
+
+    public synchronized boolean isOnline(String username) {
+        return online.contains(username);
+    }
+
+    public synchronized List<String> onlineUsers() {
+        return new ArrayList<>(online);
+    }
+
+    public static class Update {
+        static final Update EMPTY = new Update(false);
+
+        private final boolean snapshot;
+        private final List<String> online;
+        private final List<String> offline;
+
+        Update(boolean snapshot) {
+            this.snapshot = snapshot;
+            this.online = new ArrayList<>();
+            this.offline = new ArrayList<>();
+        }
+
+        public boolean isSnapshot() { return snapshot; }
+        public List<String> getOnline() { return online; }
+        public List<String> getOffline() { return offline; }
+    }
+}
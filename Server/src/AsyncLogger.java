@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Logger bất đồng bộ cho server.
+// Thread gọi log chỉ kiểm tra level rồi đặt (level, thời điểm, mẫu, tham số) vào một ring buffer
+// cố định; việc ghép chuỗi, định dạng thời gian và ghi ra console/file đều do một thread
+// nền làm theo lô. Ring đầy thì dòng log bị bỏ và được đếm, thread xử lý không bao giờ bị chặn.
+//
+// Mẫu dùng "{}" cho tham số, ví dụ: info("User {} đã đăng nhập", username).
+// Tham số được chuyển thành chuỗi trên thread nền, nên chỉ nên truyền giá trị bất biến.
+public class AsyncLogger {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final Level threshold;
+    private final int mask;
+    private final Record[] ring;
+    // Mỗi slot ghi sequence mà nó đang chờ: producer chỉ ghi khi slot == sequence của mình,
+    // consumer chỉ đọc khi slot == sequence + 1
+    private final AtomicLongArray slotSequence;
+    private final AtomicLong producerSequence;
+    private final AtomicLong dropped;
+    private long consumerSequence;
+
+    private final RollingFile file;
+    private final Thread drainThread;
+    private volatile boolean running = true;
+
+    // Cache chuỗi thời gian theo giây, chỉ thread nền dùng
+    private long cachedSecond = -1;
+    private String cachedTimestamp;
+
+    public AsyncLogger(Level threshold, int capacity, String filePath, long maxFileBytes, int maxFiles) {
+        this.threshold = threshold;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.ring = new Record[size];
+        this.slotSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+            slotSequence.set(i, i);
+        }
+        this.producerSequence = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.file = filePath != null && !filePath.isEmpty() ? new RollingFile(filePath, maxFileBytes, maxFiles) : null;
+
+        this.drainThread = new Thread(this::drainLoop, "async-logger");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal();
+    }
+
+    public void log(Level level, String pattern, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        long sequence;
+        int index;
+        while (true) {
+            sequence = producerSequence.get();
+            index = (int) (sequence & mask);
+            long available = slotSequence.get(index);
+            if (available < sequence) {
+                // Ring đầy: bỏ dòng này thay vì chặn thread xử lý
+                dropped.incrementAndGet();
+                return;
+            }
+            if (available == sequence && producerSequence.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Record record = ring[index];
+        record.level = level;
+        record.millis = System.currentTimeMillis();
+        record.pattern = pattern;
+        record.args = args != null ? args : NO_ARGS;
+        record.thread = level == Level.DEBUG ? Thread.currentThread().getName() : null;
+        slotSequence.set(index, sequence + 1);
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(8192);
+        int idle = 0;
+        while (running || hasPending()) {
+            int drained = drainTo(batch);
+            if (drained > 0) {
+                flush(batch);
+                idle = 0;
+            } else {
+                // Chờ lâu dần khi không có log, tối đa 10ms
+                LockSupport.parkNanos(Math.min(10_000_000L, 100_000L << Math.min(idle++, 7)));
+            }
+        }
+        drainTo(batch);
+        flush(batch);
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private boolean hasPending() {
+        return slotSequence.get((int) (consumerSequence & mask)) == consumerSequence + 1;
+    }
+
+    // Lấy tối đa một lô record khỏi ring, định dạng vào batch
+    private int drainTo(StringBuilder batch) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            appendLine(batch, Level.WARN, System.currentTimeMillis(), "async-logger",
+                    "Bỏ {} dòng log do ring buffer đầy", new Object[] {lost});
+        }
+
+        int count = 0;
+        while (count < 1024) {
+            int index = (int) (consumerSequence & mask);
+            if (slotSequence.get(index) != consumerSequence + 1) {
+                break;
+            }
+            Record record = ring[index];
+            appendLine(batch, record.level, record.millis, record.thread, record.pattern, record.args);
+            record.pattern = null;
+            record.args = null;
+            // Trả slot cho vòng quay tiếp theo
+            slotSequence.set(index, consumerSequence + mask + 1);
+            consumerSequence++;
+            count++;
+        }
+        return count + (lost > 0 ? 1 : 0);
+    }
+
+    private void appendLine(StringBuilder out, Level level, long millis, String thread,
+                            String pattern, Object[] args) {
+        out.append('[').append(timestamp(millis)).append("] [").append(level).append("] ");
+        if (level == Level.DEBUG) {
+            out.append('(').append(thread).append(") ");
+        }
+        format(out, pattern, args);
+        out.append('\n');
+    }
+
+    private String timestamp(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis));
+        }
+        return cachedTimestamp;
+    }
+
+    // Thay lần lượt từng "{}" bằng tham số; tham số là Throwable ở cuối thì in thêm message của nó
+    static void format(StringBuilder out, String pattern, Object[] args) {
+        int argIndex = 0;
+        int start = 0;
+        while (argIndex < args.length) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            out.append(pattern, start, placeholder).append(args[argIndex++]);
+            start = placeholder + 2;
+        }
+        out.append(pattern, start, pattern.length());
+        if (argIndex < args.length && args[args.length - 1] instanceof Throwable) {
+            out.append(": ").append(args[args.length - 1]);
+        }
+    }
+
+    private void flush(StringBuilder batch) {
+        if (batch.length() == 0) {
+            return;
+        }
+        String text = batch.toString();
+        batch.setLength(0);
+
+        // Đọc System.out mỗi lần ghi để tôn trọng System.setOut (benchmark tắt log như vậy)
+        PrintStream console = System.out;
+        console.print(text);
+        console.flush();
+        if (file != null) {
+            file.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Ghi hết log còn lại rồi dừng thread nền. Thread nền là daemon nên chương trình
+    // cần gọi close() trước khi thoát để không mất các dòng log cuối.
+    public void close() {
+        running = false;
+        try {
+            drainThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Record {
+        private Level level;
+        private long millis;
+        private String pattern;
+        private Object[] args;
+        private String thread;
+    }
+
+    // File log xoay vòng: khi vượt maxBytes thì đổi tên server.log -> server.log.1 -> ...
+    // và giữ tối đa maxFiles file cũ
+    private static class RollingFile {
+        private final File path;
+        private final long maxBytes;
+        private final int maxFiles;
+        private OutputStream out;
+        private long size;
+
+        RollingFile(String path, long maxBytes, int maxFiles) {
+            this.path = new File(path);
+            this.maxBytes = Math.max(1024, maxBytes);
+            this.maxFiles = Math.max(1, maxFiles);
+            open();
+        }
+
+        private void open() {
+            try {
+                File parent = path.getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                out = new FileOutputStream(path, true);
+                size = path.length();
+            } catch (IOException e) {
+                System.err.println("Không thể mở file log " + path + ": " + e.getMessage());
+                out = null;
+            }
+        }
+
+        void write(byte[] bytes) {
+            if (out == null) {
+                return;
+            }
+            try {
+                if (size + bytes.length > maxBytes && size > 0) {
+                    roll();
+                }
+                out.write(bytes);
+                out.flush();
+                size += bytes.length;
+            } catch (IOException e) {
+                System.err.println("Lỗi ghi file log: " + e.getMessage());
+            }
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            new File(path + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File older = new File(path + "." + i);
+                if (older.exists()) {
+                    older.renameTo(new File(path + "." + (i + 1)));
+                }
+            }
+            path.renameTo(new File(path + ".1"));
+            open();
+        }
+
+        void close() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Phần xử lý giao thức signaling dùng chung cho mọi kiểu kết nối
+// (thread-per-client hoặc event loop NIO)
+public abstract class ClientSession {
+    protected final SignalingServer server;
+    protected final AtomicBoolean connected;
+    protected final OutboundQueue outbound;
+    protected volatile String username;
+    // Client đã báo hỗ trợ nén frame trong LOGIN
+    protected volatile boolean compress;
+
+    protected ClientSession(SignalingServer server) {
+        this.server = server;
+        this.connected = new AtomicBoolean(true);
+        this.outbound = new OutboundQueue(ServerUtils.getOutboundQueueCapacity(),
+                ServerUtils.getOutboundOverflowPolicy(),
+                stats -> ServerUtils.warn("Hàng đợi gửi của {}: {}", username, stats));
+    }
+
+    // Báo cho writer của session biết có frame mới trong hàng đợi
+    protected abstract void onFrameQueued();
+
+    // Địa chỉ IP của client
+    protected abstract InetAddress getRemoteAddress();
+
+    // Đóng kết nối vật lý
+    protected abstract void closeTransport() throws IOException;
+
+    protected void handleMessage(Message message) {
+        server.getMetrics().messageIn(message.getType());
+        switch (message.getType()) {
+            case LOGIN:
+                handleLogin(message);
+                break;
+
+            case LOGOUT:
+                handleLogout();
+                break;
+
+            case HEARTBEAT:
+                handleHeartbeat();
+                break;
+
+            case PEER_REQUEST:
+                handlePeerRequest(message);
+                break;
+
+            case PEER_INFO:
+                handlePeerInfo(message);
+                break;
+
+            case RELAY_REQUEST:
+                handleRelayRequest(message);
+                break;
+
+            case GET_ONLINE_USERS:
+                handleGetOnlineUsers(message);
+                break;
+
+            case TEXT:
+                handleText(message);
+                break;
+
+            default:
+                ServerUtils.warn("Loại tin nhắn không xác định: {}", message.getType());
+        }
+    }
+
+    private void handleLogin(Message message) {
+        String fromUser = message.getFromUser();
+        if (fromUser == null || fromUser.isEmpty()) {
+            sendMessage(new Message(Message.Type.ERROR, "Server", "Tên đăng nhập không hợp lệ"));
+            return;
+        }
+        this.username = fromUser;
+        // Bật trước khi vào danh sách online: snapshot presence gửi ngay sau đó cũng được nén
+        this.compress = ServerUtils.isCompressionEnabled() && hasCapability(message.getContent());
+
+        // Lấy port mà client sẽ lắng nghe kết nối P2P
+        int p2pPort = extractP2PPort(message.getContent());
+        if (p2pPort == -1) {
+            p2pPort = 5000 + Math.abs(username.hashCode() % 1000); // Port mặc định
+        }
+
+        // Thêm vào danh sách online
+        server.addOnlinePeer(username, getRemoteAddress(), p2pPort, this, extractPresenceCursor(message.getContent()));
+
+        // Gửi xác nhận login
+        Message response = new Message(Message.Type.LOGIN, "Server",
+                compress ? "login_success:" + FrameCompression.CAPABILITY : "login_success");
+        sendMessage(response);
+
+        ServerUtils.info("User {} đã đăng nhập", username);
+
+        // Tin nhắn người khác gửi trong lúc user offline
+        server.deliverOfflineMessages(username);
+    }
+
+    // Cursor presence client đã thấy, ví dụ: "login:5001:1700000000000.42"
+    private String extractPresenceCursor(String content) {
+        if (content != null) {
+            String[] parts = content.split(":");
+            if (parts.length > 2 && !parts[2].isEmpty()) {
+                return parts[2];
+            }
+        }
+        return null;
+    }
+
+    // Phần thứ tư của LOGIN là danh sách tính năng client hỗ trợ, ví dụ "login:5001::deflate"
+    private boolean hasCapability(String content) {
+        if (content != null) {
+            String[] parts = content.split(":");
+            if (parts.length > 3) {
+                return Arrays.asList(parts[3].split(",")).contains(FrameCompression.CAPABILITY);
+            }
+        }
+        return false;
+    }
+
+    private int extractP2PPort(String content) {
+        try {
+            // content có thể chứa port, ví dụ: "login:5001"
+            if (content != null && content.contains(":")) {
+                String[] parts = content.split(":");
+                if (parts.length > 1) {
+                    return Integer.parseInt(parts[1]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Ignore
+        }
+        return -1;
+    }
+
+    private void handleLogout() {
+        ServerUtils.info("User {} đăng xuất", username);
+        disconnect();
+    }
+
+    private void handleHeartbeat() {
+        server.updateHeartbeat(username);
+        // Có thể gửi response heartbeat nếu cần
+    }
+
+    private void handlePeerRequest(Message message) {
+        String targetUser = message.getToUser();
+        if (targetUser != null && !targetUser.isEmpty()) {
+            server.handlePeerRequest(username, targetUser);
+        } else {
+            Message errorMsg = new Message(Message.Type.ERROR, "Server", "Target user không hợp lệ");
+            sendMessage(errorMsg);
+        }
+    }
+
+    private void handleRelayRequest(Message message) {
+        String targetUser = message.getToUser();
+        if (targetUser != null && !targetUser.isEmpty()) {
+            server.handleRelayRequest(username, targetUser);
+        } else {
+            sendMessage(new Message(Message.Type.ERROR, "Server", "Target user không hợp lệ"));
+        }
+    }
+
+    private void handlePeerInfo(Message message) {
+        String targetUser = message.getToUser();
+        String peerInfo = message.getContent();
+
+        if (targetUser != null && !targetUser.isEmpty() && peerInfo != null && !peerInfo.isEmpty()) {
+            server.handlePeerInfo(username, targetUser, peerInfo);
+        } else {
+            Message errorMsg = new Message(Message.Type.ERROR, "Server", "Thông tin peer không hợp lệ");
+            sendMessage(errorMsg);
+        }
+    }
+
+    // Tin nhắn chat gửi qua server vì chưa có kết nối P2P (thường là người nhận đang offline)
+    private void handleText(Message message) {
+        String targetUser = message.getToUser();
+        String content = message.getContent();
+
+        if (username != null && targetUser != null && !targetUser.isEmpty() && content != null && !content.isEmpty()) {
+            server.handleTextMessage(username, targetUser, content);
+        } else {
+            Message errorMsg = new Message(Message.Type.ERROR, "Server", "Tin nhắn không hợp lệ");
+            sendMessage(errorMsg);
+        }
+    }
+
+    // Client yêu cầu đồng bộ lại presence (ví dụ khi phát hiện thiếu version),
+    // content là cursor cuối cùng client đã áp dụng
+    private void handleGetOnlineUsers(Message message) {
+        if (username != null) {
+            server.sendPresenceSync(username, message.getContent());
+        }
+    }
+
+    // Gửi message đến client: chỉ mã hóa và đưa vào hàng đợi, không ghi socket trên thread gọi
+    public void sendMessage(Message message) {
+        if (connected.get()) {
+            sendFrame(OutboundFrame.of(message));
+        }
+    }
+
+    public void sendFrame(OutboundFrame frame) {
+        if (!connected.get()) {
+            return;
+        }
+
+        if (outbound.offer(frame)) {
+            server.getMetrics().messageOut(frame.getType());
+            onFrameQueued();
+        } else {
+            ServerUtils.warn("Hàng đợi gửi của {} bị đầy ({}), ngắt kết nối", username, outbound.getStats());
+            disconnect();
+        }
+    }
+
+    public OutboundQueue.Stats getOutboundStats() {
+        return outbound.getStats();
+    }
+
+    public void disconnect() {
+        if (connected.compareAndSet(true, false)) {
+            server.releaseConnection();
+            outbound.close();
+            try {
+                if (username != null) {
+                    server.removeOnlinePeer(username, this);
+                }
+
+                closeTransport();
+
+                ServerUtils.info("Client disconnected: {}", username);
+            } catch (IOException e) {
+                // Ignore khi đang disconnect
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+}
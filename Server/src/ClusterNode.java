@@ -0,0 +1,454 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Nối nhiều SignalingServer thành một cụm.
+// Mỗi node mở cluster.port và tự kết nối đến từng node trong cluster.peers. Một kết nối chỉ chở
+// dữ liệu theo một chiều, từ node gọi sang node nhận, nên mỗi cặp node có hai kết nối và không
+// cần phân xử xem ai giữ kết nối.
+//
+// Trên kết nối dùng cùng MessageCodec với client:
+//   NODE_HELLO     from = tên node, content = HMAC-SHA256(cluster.secret, tên node) dạng hex;
+//                  node nhận kiểm tra rồi trả lời một NODE_HELLO của nó, node gọi kiểm tra lại
+//   NODE_PRESENCE  from = tên node; content "S;a,b" (toàn bộ user của node gửi) hoặc "D;+a,-b"
+//   NODE_FORWARD   to = user đích; fileData = frame đã mã hóa cần giao cho user đó
+//   HEARTBEAT      giữ kết nối khi không có gì để gửi
+//
+// Node chỉ giữ session của user kết nối vào nó. User ở node khác được biết qua NODE_PRESENCE,
+// tin nhắn cho họ được chuyển qua NODE_FORWARD đến node đang giữ session.
+public class ClusterNode {
+    private static final long KEEPALIVE_INTERVAL = 5000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final long MAX_RECONNECT_DELAY = 10000;
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    // Số user tối đa trong một frame NODE_PRESENCE, giữ frame dưới MessageCodec.MAX_FRAME_SIZE
+    private static final int MAX_USERS_PER_FRAME = 4096;
+
+    private final String nodeId;
+    private final byte[] secret;
+    private final List<InetSocketAddress> peers;
+    private final SignalingServer server;
+    private final ServerSocket serverSocket;
+    private final ExecutorService threads;
+    // user -> node đang giữ session của user
+    private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // node -> kết nối gửi đến node đó
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    // node -> kết nối nhận hiện tại từ node đó
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public ClusterNode(String nodeId, String bindHost, int port, List<InetSocketAddress> peers, String secret,
+                       SignalingServer server) throws IOException {
+        if (secret == null || secret.isEmpty()) {
+            throw new IOException("Chưa đặt cluster.secret, không khởi động cluster");
+        }
+        this.nodeId = nodeId;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.peers = peers;
+        this.server = server;
+        this.serverSocket = bindHost.isEmpty() ? new ServerSocket(port)
+                : new ServerSocket(port, 50, InetAddress.getByName(bindHost));
+        this.threads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cluster-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ServerUtils.info("Cluster: node {} lắng nghe trên {}:{}, {} node khác",
+                nodeId, bindHost.isEmpty() ? "*" : bindHost, port, peers.size());
+    }
+
+    public void start() {
+        threads.execute(this::acceptLoop);
+        for (InetSocketAddress peer : peers) {
+            threads.execute(() -> connectLoop(peer));
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Link link : links.values()) {
+            link.close();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+        threads.shutdownNow();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // User đang có session ở một node khác
+    public boolean isRemoteOnline(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    public int remoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    // Báo trạng thái của một user trên node này cho mọi node khác.
+    // Đồng bộ với register() để snapshot của kết nối mới và các delta sau đó không bị đảo thứ tự.
+    public synchronized void announce(String username, boolean online) {
+        if (links.isEmpty()) {
+            return;
+        }
+        Message delta = new Message(Message.Type.NODE_PRESENCE, nodeId, "D;" + (online ? '+' : '-') + username);
+        byte[] frame = MessageCodec.encode(delta);
+        for (Link link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    // Chuyển message đến node đang giữ session của user, false nếu không biết user ở đâu
+    public boolean forward(String username, Message message) {
+        String node = remoteUsers.get(username);
+        Link link = node != null ? links.get(node) : null;
+        if (link == null) {
+            return false;
+        }
+
+        Message wrapper = new Message(Message.Type.NODE_FORWARD, nodeId, null);
+        wrapper.setToUser(username);
+        wrapper.setFileData(MessageCodec.encode(message));
+        link.send(MessageCodec.encode(wrapper));
+        ServerUtils.debug("Cluster: chuyển {} cho {} đến node {}", message.getType(), username, node);
+        return true;
+    }
+
+    // === Kết nối gửi ===
+
+    // Kết nối đến một node, nối lại với thời gian chờ tăng dần khi mất kết nối
+    private void connectLoop(InetSocketAddress peer) {
+        String address = peer.getHostString() + ":" + peer.getPort();
+        long delay = 500;
+        while (running) {
+            Link link = null;
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(READ_TIMEOUT);
+
+                OutputStream out = socket.getOutputStream();
+                MessageCodec.writeFrame(out, hello());
+                out.flush();
+                Message reply = MessageCodec.readFrame(new DataInputStream(socket.getInputStream()));
+                if (reply.getType() != Message.Type.NODE_HELLO || reply.getFromUser() == null) {
+                    throw new IOException("Phản hồi không hợp lệ: " + reply.getType());
+                }
+                if (!isAuthentic(reply)) {
+                    throw new IOException("node " + reply.getFromUser() + " dùng cluster.secret khác");
+                }
+                String peerNode = reply.getFromUser();
+                if (peerNode.equals(nodeId)) {
+                    ServerUtils.warn("Cluster: {} trỏ về chính node này, bỏ qua", address);
+                    return;
+                }
+
+                link = new Link(peerNode, socket);
+                register(link);
+                delay = 500;
+                ServerUtils.info("Cluster: đã kết nối đến node {} ({})", peerNode, address);
+                link.writeLoop();
+            } catch (IOException e) {
+                if (running) {
+                    ServerUtils.warn("Cluster: mất kết nối đến {}: {}", address, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (link != null) {
+                    links.remove(link.peerNode, link);
+                }
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
+    // Gửi toàn bộ user của node này cho kết nối mới rồi mới nhận delta qua announce()
+    private synchronized void register(Link link) {
+        Link previous = links.put(link.peerNode, link);
+        if (previous != null) {
+            previous.close();
+        }
+
+        StringBuilder entries = new StringBuilder();
+        char kind = 'S';
+        int count = 0;
+        for (String username : server.getRegistry().usernames()) {
+            if (count > 0) {
+                entries.append(',');
+            }
+            if (kind == 'D') {
+                entries.append('+');
+            }
+            entries.append(username);
+            if (++count == MAX_USERS_PER_FRAME) {
+                link.send(MessageCodec.encode(new Message(Message.Type.NODE_PRESENCE, nodeId, kind + ";" + entries)));
+                entries.setLength(0);
+                kind = 'D';
+                count = 0;
+            }
+        }
+        if (count > 0 || kind == 'S') {
+            link.send(MessageCodec.encode(new Message(Message.Type.NODE_PRESENCE, nodeId, kind + ";" + entries)));
+        }
+    }
+
+    // === Kết nối nhận ===
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                threads.execute(() -> receive(socket));
+            } catch (IOException e) {
+                if (running) {
+                    ServerUtils.error("Cluster: lỗi chấp nhận kết nối: {}", e.getMessage());
+                }
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        String peerNode = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Message hello = MessageCodec.readFrame(in);
+            if (hello.getType() != Message.Type.NODE_HELLO || hello.getFromUser() == null) {
+                throw new IOException("Kết nối không bắt đầu bằng NODE_HELLO");
+            }
+            if (!isAuthentic(hello)) {
+                // Không trả lời: bên kia không biết khóa thì cũng không biết tên node này
+                ServerUtils.warn("Cluster: từ chối {} ({}): sai cluster.secret", socket.getInetAddress(),
+                        hello.getFromUser());
+                return;
+            }
+            OutputStream out = socket.getOutputStream();
+            MessageCodec.writeFrame(out, hello());
+            out.flush();
+            if (hello.getFromUser().equals(nodeId)) {
+                // cluster.peers có chứa chính node này, bên gọi sẽ tự bỏ kết nối
+                return;
+            }
+
+            peerNode = hello.getFromUser();
+            Socket previous = inbound.put(peerNode, socket);
+            if (previous != null) {
+                // Node kia đã nối lại, kết nối cũ không còn dùng
+                closeQuietly(previous);
+            }
+            ServerUtils.info("Cluster: node {} đã kết nối từ {}", peerNode, socket.getInetAddress());
+
+            while (running) {
+                Message message = MessageCodec.readFrame(in);
+                switch (message.getType()) {
+                    case NODE_PRESENCE:
+                        applyPresence(peerNode, message.getContent());
+                        break;
+
+                    case NODE_FORWARD:
+                        deliver(message);
+                        break;
+
+                    case HEARTBEAT:
+                        break;
+
+                    default:
+                        ServerUtils.warn("Cluster: loại tin nhắn không xác định từ {}: {}", peerNode, message.getType());
+                }
+            }
+        } catch (EOFException e) {
+            if (running && peerNode != null) {
+                ServerUtils.warn("Cluster: node {} đã đóng kết nối", peerNode);
+            }
+        } catch (IOException e) {
+            if (running && peerNode != null) {
+                ServerUtils.warn("Cluster: mất kết nối từ node {}: {}", peerNode, e.getMessage());
+            }
+        } finally {
+            closeQuietly(socket);
+            // Chỉ xóa user của node nếu đây vẫn là kết nối hiện tại của node đó
+            if (peerNode != null && inbound.remove(peerNode, socket)) {
+                dropNode(peerNode);
+            }
+        }
+    }
+
+    // content = "S;a,b" (thay toàn bộ user của node) hoặc "D;+a,-b"
+    private void applyPresence(String peerNode, String content) {
+        if (content == null || content.length() < 2 || content.charAt(1) != ';') {
+            ServerUtils.warn("Cluster: NODE_PRESENCE không hợp lệ từ {}", peerNode);
+            return;
+        }
+        String[] entries = content.length() > 2 ? content.substring(2).split(",") : new String[0];
+
+        if (content.charAt(0) == 'S') {
+            Set<String> current = new HashSet<>();
+            for (String username : entries) {
+                current.add(username);
+            }
+            for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+                if (entry.getValue().equals(peerNode) && !current.contains(entry.getKey())) {
+                    removeRemote(entry.getKey(), peerNode);
+                }
+            }
+            for (String username : current) {
+                addRemote(username, peerNode);
+            }
+            return;
+        }
+
+        for (String entry : entries) {
+            if (entry.length() < 2) {
+                continue;
+            }
+            String username = entry.substring(1);
+            if (entry.charAt(0) == '+') {
+                addRemote(username, peerNode);
+            } else {
+                removeRemote(username, peerNode);
+            }
+        }
+    }
+
+    private void addRemote(String username, String peerNode) {
+        if (!peerNode.equals(remoteUsers.put(username, peerNode))) {
+            server.remotePresenceChanged(username);
+        }
+    }
+
+    // Chỉ xóa nếu user vẫn thuộc node đó (user có thể đã chuyển sang node khác)
+    private void removeRemote(String username, String peerNode) {
+        if (remoteUsers.remove(username, peerNode)) {
+            server.remotePresenceChanged(username);
+        }
+    }
+
+    // Node mất kết nối: mọi user của node đó coi như offline
+    private void dropNode(String peerNode) {
+        int count = 0;
+        for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+            if (entry.getValue().equals(peerNode)) {
+                removeRemote(entry.getKey(), peerNode);
+                count++;
+            }
+        }
+        ServerUtils.warn("Cluster: node {} rời cụm, {} user offline", peerNode, count);
+    }
+
+    // Giao message được chuyển từ node khác cho user trên node này
+    private void deliver(Message wrapper) throws IOException {
+        byte[] data = wrapper.getFileData();
+        if (wrapper.getToUser() == null || data == null) {
+            return;
+        }
+        Message message = MessageCodec.tryReadFrame(ByteBuffer.wrap(data));
+        if (message != null) {
+            server.sendMessageToUser(wrapper.getToUser(), message);
+        }
+    }
+
+    private Message hello() {
+        return new Message(Message.Type.NODE_HELLO, nodeId, proof(nodeId));
+    }
+
+    // NODE_HELLO mang đúng HMAC của khóa chung trên tên node gửi
+    private boolean isAuthentic(Message hello) {
+        String content = hello.getContent();
+        return content != null && MessageDigest.isEqual(
+                proof(hello.getFromUser()).getBytes(StandardCharsets.US_ASCII),
+                content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String proof(String node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] digest = mac.doFinal(("cluster-hello:" + node).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 luôn có trong JDK
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // Kết nối gửi đến một node. Frame được đưa vào hàng đợi rồi ghi theo lô trên thread của kết nối.
+    private class Link {
+        private final String peerNode;
+        private final Socket socket;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+
+        Link(String peerNode, Socket socket) {
+            this.peerNode = peerNode;
+            this.socket = socket;
+        }
+
+        void send(byte[] frame) {
+            if (!queue.offer(frame)) {
+                // Node kia không theo kịp: đóng để nối lại và gửi lại snapshot thay vì giữ mãi trong bộ nhớ
+                ServerUtils.warn("Cluster: hàng đợi đến node {} đầy, đóng kết nối", peerNode);
+                close();
+            }
+        }
+
+        void writeLoop() throws IOException, InterruptedException {
+            byte[] keepalive = MessageCodec.encode(new Message(Message.Type.HEARTBEAT, nodeId, "ping"));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            // close() từ thread khác làm lần ghi tiếp theo ném IOException
+            while (running) {
+                byte[] frame = queue.poll(KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+                out.write(frame != null ? frame : keepalive);
+                while ((frame = queue.poll()) != null) {
+                    out.write(frame);
+                }
+                out.flush();
+            }
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+}
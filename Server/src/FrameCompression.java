@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Nén frame MessageCodec bằng deflate với từ điển dựng sẵn, dùng chung cho Client và Server.
+//
+// Mỗi frame được nén độc lập (không giữ ngữ cảnh giữa các frame) để frame broadcast vẫn chỉ nén
+// một lần cho mọi người nhận. Từ điển gồm các chuỗi hay gặp trong tin nhắn nên frame ngắn vẫn nén
+// được; frame nhỏ hơn ngưỡng hoặc nén không nhỏ đi thì giữ nguyên.
+//
+// frame nén: varint(độ dài body) version type flags|FLAG_COMPRESSED varint(độ dài phần còn lại)
+//            deflate(phần còn lại của body gốc: from, to, content, fileName, timestamp, fileData)
+//
+// Bên gửi chỉ nén khi bên nhận đã báo hỗ trợ CAPABILITY (LOGIN, PEER_READY); bên nhận luôn giải
+// nén được nên không cần đồng bộ thời điểm bật.
+public final class FrameCompression {
+    public static final String CAPABILITY = "deflate";
+    static final int FLAG_COMPRESSED = 0x80;
+
+    // Chuỗi càng hay gặp càng để về cuối: deflate mã hóa khoảng cách gần ngắn hơn
+    private static final byte[] DICTIONARY = String.join("",
+            "xin chào bạn, cảm ơn nhé, không sao đâu, hôm nay, ngày mai, bây giờ, lúc nào, ở đâu, ",
+            "được không, biết rồi, vâng ạ, anh ơi, em ơi, chị ơi, mình đang, bạn có, thế nào, làm gì, ",
+            "hello, thanks, the , you , and , is , ok, haha, ",
+            "User  không online, Target user không hợp lệ, Tin nhắn không hợp lệ, Server đã đầy, ",
+            "offer:chunk:accept:ack:cancel:reject:nack:",
+            ":connect:accept:relay_request:peer_request:ready:deflate:login:login_success:",
+            "Server;S;;D;,+user,-user@,user@").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private static volatile int minBodySize = 128;
+
+    private static final LongAdder framesCompressed = new LongAdder();
+    private static final LongAdder framesSkipped = new LongAdder();
+    private static final LongAdder bytesBefore = new LongAdder();
+    private static final LongAdder bytesAfter = new LongAdder();
+    private static final LongAdder compressNanos = new LongAdder();
+    private static final LongAdder framesInflated = new LongAdder();
+    private static final LongAdder inflateNanos = new LongAdder();
+
+    private FrameCompression() {}
+
+    // Body nhỏ hơn ngưỡng này (byte) thì không nén
+    public static void setMinBodySize(int size) {
+        minBodySize = Math.max(0, size);
+    }
+
+    // Nén một frame đã mã hóa, trả về chính frame nếu không đáng nén
+    public static byte[] compress(byte[] frame) {
+        int bodyLength = 0;
+        int pos = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = frame[pos++];
+            bodyLength |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (bodyLength < Math.max(minBodySize, 4) || (frame[pos + 2] & FLAG_COMPRESSED) != 0) {
+            framesSkipped.increment();
+            return frame;
+        }
+
+        long start = System.nanoTime();
+        int restStart = pos + 3;
+        int restLength = bodyLength - 3;
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(frame, restStart, restLength);
+        deflater.finish();
+        // Kết quả phải nhỏ hơn bản gốc, không thì bỏ
+        byte[] out = new byte[restLength];
+        int written = 0;
+        while (!deflater.finished() && written < out.length) {
+            written += deflater.deflate(out, written, out.length - written);
+        }
+        int newBody = 3 + MessageCodec.varintSize(restLength) + written;
+        if (!deflater.finished() || newBody >= bodyLength) {
+            compressNanos.add(System.nanoTime() - start);
+            framesSkipped.increment();
+            return frame;
+        }
+
+        byte[] result = new byte[MessageCodec.varintSize(newBody) + newBody];
+        int p = MessageCodec.writeVarint(result, 0, newBody);
+        result[p++] = frame[pos];
+        result[p++] = frame[pos + 1];
+        result[p++] = (byte) (frame[pos + 2] | FLAG_COMPRESSED);
+        p = MessageCodec.writeVarint(result, p, restLength);
+        System.arraycopy(out, 0, result, p, written);
+
+        compressNanos.add(System.nanoTime() - start);
+        framesCompressed.increment();
+        bytesBefore.add(frame.length);
+        bytesAfter.add(result.length);
+        return result;
+    }
+
+    // Giải nén phần sau flags của body, trả về buffer chứa phần còn lại của body gốc
+    static ByteBuffer inflate(ByteBuffer body) throws IOException {
+        long start = System.nanoTime();
+        int rawLength;
+        try {
+            rawLength = MessageCodec.readVarint(body);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Frame nén bị cắt cụt");
+        }
+        if (rawLength < 0 || rawLength > MessageCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Độ dài frame nén không hợp lệ: " + rawLength);
+        }
+        // Deflate nén tối đa khoảng 1032:1, độ dài lớn hơn thế là khai báo giả để bắt cấp phát lớn
+        if (rawLength > (long) body.remaining() * MAX_DEFLATE_RATIO + 64) {
+            throw new IOException("Độ dài frame nén không khớp dữ liệu: " + rawLength);
+        }
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(body);
+        byte[] raw = new byte[rawLength];
+        byte[] overflow = new byte[1];
+        int read = 0;
+        try {
+            while (!inflater.finished()) {
+                long consumed = inflater.getBytesRead();
+                // Đã đủ độ dài khai báo mà stream chưa kết thúc: chỉ còn được phép có khối kết thúc rỗng
+                int n = read < rawLength ? inflater.inflate(raw, read, rawLength - read) : inflater.inflate(overflow);
+                if (read == rawLength && n > 0) {
+                    throw new IOException("Frame nén dài hơn độ dài khai báo " + rawLength);
+                }
+                if (n == 0 && !inflater.finished() && inflater.getBytesRead() == consumed) {
+                    // Không đọc thêm được gì (hết input, cần dictionary khác, dữ liệu cụt)
+                    throw new IOException("Frame nén thiếu dữ liệu");
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Dữ liệu nén hỏng: " + e.getMessage());
+        }
+        if (read != rawLength) {
+            throw new IOException("Frame nén thiếu dữ liệu");
+        }
+
+        inflateNanos.add(System.nanoTime() - start);
+        framesInflated.increment();
+        return ByteBuffer.wrap(raw);
+    }
+
+    // === Thống kê ===
+
+    public static long getFramesCompressed() { return framesCompressed.sum(); }
+    public static long getFramesSkipped() { return framesSkipped.sum(); }
+    public static long getBytesBefore() { return bytesBefore.sum(); }
+    public static long getBytesAfter() { return bytesAfter.sum(); }
+    public static long getCompressNanos() { return compressNanos.sum(); }
+    public static long getFramesInflated() { return framesInflated.sum(); }
+    public static long getInflateNanos() { return inflateNanos.sum(); }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram độ trễ dạng log-linear (giống HdrHistogram): mỗi khoảng lũy thừa của 2 được chia
+// thành SUB_BUCKETS/2 bucket đều nhau, sai số tương đối của percentile dưới 2/SUB_BUCKETS.
+// Ghi nhận không cấp phát và an toàn khi nhiều thread cùng ghi.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Đủ cho giá trị đến 2^40 micro giây
+    private static final int MAGNITUDES = 40;
+
+    private final AtomicLongArray counts;
+    private final LongAdder total;
+    private final LongAdder sum;
+    private volatile long max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+        this.total = new LongAdder();
+        this.sum = new LongAdder();
+    }
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    // Ghi một giá trị (micro giây)
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(micros));
+        total.increment();
+        sum.add(micros);
+        if (micros > max) {
+            synchronized (this) {
+                if (micros > max) {
+                    max = micros;
+                }
+            }
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if (magnitude > MAGNITUDES) {
+            return (MAGNITUDES + 1) * SUB_BUCKETS - 1;
+        }
+        int sub = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return magnitude * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + sub;
+    }
+
+    // Giá trị lớn nhất mà bucket index đại diện
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+        int sub = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return (((long) sub + 1) << magnitude) - 1;
+    }
+
+    // Percentile (0..100), đơn vị micro giây
+    public long percentile(double percent) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    // "p50=… p99=… p999=… max=…" theo mili giây
+    public String summary() {
+        return String.format("n=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                count(), percentile(50) / 1000.0, percentile(99) / 1000.0,
+                percentile(99.9) / 1000.0, max() / 1000.0);
+    }
+}
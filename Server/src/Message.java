@@ -4,6 +4,7 @@ import java.util.Date;
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // MessageCodec ghi type theo ordinal: chỉ thêm loại mới vào cuối enum
     public enum Type {
         // Tin nhắn hệ thống
         LOGIN, LOGOUT, GET_ONLINE_USERS, HEARTBEAT,
@@ -12,14 +13,20 @@ public class Message implements Serializable {
         // Tin nhắn chat
         TEXT, FILE,
         // Trạng thái
-        USER_ONLINE, USER_OFFLINE, ERROR
+        USER_ONLINE, USER_OFFLINE, ERROR,
+        // Đồng bộ presence theo version (snapshot hoặc delta)
+        PRESENCE_SYNC,
+        // Giữa các node signaling trong cụm (client không dùng)
+        NODE_HELLO, NODE_PRESENCE, NODE_FORWARD,
+        // Relay qua server khi không kết nối P2P trực tiếp được
+        RELAY_REQUEST, RELAY_OFFER, RELAY_JOIN
     }
 
     private Type type;
     private String fromUser;
     private String toUser;
     private String content;
-    private Date timestamp;
+    private long timestamp;
     private byte[] fileData;
     private String fileName;
 
@@ -29,7 +36,7 @@ public class Message implements Serializable {
         this.type = type;
         this.fromUser = fromUser;
         this.content = content;
-        this.timestamp = new Date();
+        this.timestamp = System.currentTimeMillis();
     }
 
     // Getters and Setters
@@ -45,8 +52,11 @@ public class Message implements Serializable {
     public String getContent() { return content; }
     public void setContent(String content) { this.content = content; }
 
-    public Date getTimestamp() { return timestamp; }
-    public void setTimestamp(Date timestamp) { this.timestamp = timestamp; }
+    public Date getTimestamp() { return new Date(timestamp); }
+    public void setTimestamp(Date timestamp) { this.timestamp = timestamp.getTime(); }
+
+    public long getTimestampMillis() { return timestamp; }
+    public void setTimestampMillis(long timestamp) { this.timestamp = timestamp; }
 
     public byte[] getFileData() { return fileData; }
     public void setFileData(byte[] fileData) { this.fileData = fileData; }
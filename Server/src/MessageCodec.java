@@ -0,0 +1,339 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Giao thức nhị phân có tiền tố độ dài cho Message, dùng chung cho Client và Server.
+//
+// frame = varint(độ dài body) body
+// body  = version(1 byte) type(1 byte) flags(1 byte)
+//         [from] [to] [content] [fileName]   chuỗi UTF-8: varint(độ dài) + bytes, chỉ có khi bit flag tương ứng bật
+//         timestamp(8 byte, epoch millis)
+//         [fileData]                         varint(độ dài) + bytes
+// Bit 0x80 của flags: phần sau flags được nén (xem FrameCompression).
+//
+// Type được ghi bằng ordinal nên thứ tự trong Message.Type phải giống nhau ở Client và Server,
+// loại mới luôn thêm vào cuối enum.
+public class MessageCodec {
+    public static final byte VERSION = 1;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private static final int FLAG_FROM = 1;
+    private static final int FLAG_TO = 1 << 1;
+    private static final int FLAG_CONTENT = 1 << 2;
+    private static final int FLAG_FILE_NAME = 1 << 3;
+    private static final int FLAG_FILE_DATA = 1 << 4;
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private MessageCodec() {}
+
+    // Mã hóa message thành frame hoàn chỉnh (gồm cả varint độ dài), chỉ cấp phát một mảng
+    public static byte[] encode(Message message) {
+        int bodySize = bodySize(message);
+        byte[] frame = new byte[varintSize(bodySize) + bodySize];
+        int pos = writeVarint(frame, 0, bodySize);
+        writeBody(frame, pos, message);
+        return frame;
+    }
+
+    // compress = bên nhận đã báo hỗ trợ FrameCompression.CAPABILITY
+    public static byte[] encode(Message message, boolean compress) {
+        byte[] frame = encode(message);
+        return compress ? FrameCompression.compress(frame) : frame;
+    }
+
+    public static void writeFrame(OutputStream out, Message message) throws IOException {
+        out.write(encode(message));
+    }
+
+    public static void writeFrame(OutputStream out, Message message, boolean compress) throws IOException {
+        out.write(encode(message, compress));
+    }
+
+    // Đọc một frame từ stream (blocking)
+    public static Message readFrame(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    // Thử đọc một frame từ buffer (NIO), trả về null nếu chưa đủ dữ liệu.
+    // Buffer phải ở chế độ đọc; position chỉ tiến lên khi đọc được trọn frame.
+    public static Message tryReadFrame(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int length = 0;
+        int shift = 0;
+        int pos = start;
+        while (true) {
+            if (pos >= buffer.limit()) {
+                return null;
+            }
+            byte b = buffer.get(pos++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Varint độ dài frame không hợp lệ");
+            }
+        }
+        checkLength(length);
+        if (buffer.limit() - pos < length) {
+            return null;
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(pos).limit(pos + length);
+        Message message = decode(body);
+        buffer.position(pos + length);
+        return message;
+    }
+
+    // Kiểm tra header frame đầu tiên trong buffer trước khi giải mã, cho nguồn chưa xác thực chỉ được
+    // gửi một loại frame nhỏ: false nếu chưa đủ byte; IOException nếu frame dài hơn maxLength, sai
+    // loại, bị nén hoặc mang fileData. Không làm thay đổi position.
+    public static boolean checkHeader(ByteBuffer buffer, Message.Type expected, int maxLength) throws IOException {
+        int pos = buffer.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("Varint độ dài frame không hợp lệ");
+            }
+            if (pos >= buffer.limit()) {
+                return false;
+            }
+            byte b = buffer.get(pos++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 3 || length > maxLength) {
+            throw new IOException("Độ dài frame không hợp lệ: " + length);
+        }
+        if (buffer.limit() - pos < 3) {
+            return false;
+        }
+        int typeIndex = buffer.get(pos + 1) & 0xFF;
+        int flags = buffer.get(pos + 2) & 0xFF;
+        if (buffer.get(pos) != VERSION || typeIndex != expected.ordinal()
+                || (flags & (FLAG_FILE_DATA | FrameCompression.FLAG_COMPRESSED)) != 0) {
+            throw new IOException("Frame không phải " + expected);
+        }
+        return true;
+    }
+
+    // Giải mã phần body (không gồm varint độ dài) từ position đến limit của buffer
+    public static Message decode(ByteBuffer body) throws IOException {
+        try {
+            byte version = body.get();
+            if (version != VERSION) {
+                throw new IOException("Phiên bản giao thức không hỗ trợ: " + version);
+            }
+
+            int typeIndex = body.get() & 0xFF;
+            if (typeIndex >= TYPES.length) {
+                throw new IOException("Loại tin nhắn không hợp lệ: " + typeIndex);
+            }
+            int flags = body.get() & 0xFF;
+            if ((flags & FrameCompression.FLAG_COMPRESSED) != 0) {
+                body = FrameCompression.inflate(body);
+            }
+
+            Message message = new Message();
+            message.setType(TYPES[typeIndex]);
+            if ((flags & FLAG_FROM) != 0) message.setFromUser(readString(body));
+            if ((flags & FLAG_TO) != 0) message.setToUser(readString(body));
+            if ((flags & FLAG_CONTENT) != 0) message.setContent(readString(body));
+            if ((flags & FLAG_FILE_NAME) != 0) message.setFileName(readString(body));
+            message.setTimestampMillis(body.getLong());
+            if ((flags & FLAG_FILE_DATA) != 0) {
+                int length = readVarint(body);
+                if (length < 0 || length > body.remaining()) {
+                    throw new IOException("Độ dài dữ liệu file vượt quá frame: " + length);
+                }
+                byte[] data = new byte[length];
+                body.get(data);
+                message.setFileData(data);
+            }
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Frame bị cắt cụt");
+        }
+    }
+
+    private static int bodySize(Message message) {
+        int size = 3 + 8;
+        size += stringSize(message.getFromUser());
+        size += stringSize(message.getToUser());
+        size += stringSize(message.getContent());
+        size += stringSize(message.getFileName());
+        byte[] data = message.getFileData();
+        if (data != null) {
+            size += varintSize(data.length) + data.length;
+        }
+        if (size > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Message vượt quá kích thước frame tối đa: " + size);
+        }
+        return size;
+    }
+
+    private static void writeBody(byte[] buf, int pos, Message message) {
+        int flags = 0;
+        if (message.getFromUser() != null) flags |= FLAG_FROM;
+        if (message.getToUser() != null) flags |= FLAG_TO;
+        if (message.getContent() != null) flags |= FLAG_CONTENT;
+        if (message.getFileName() != null) flags |= FLAG_FILE_NAME;
+        if (message.getFileData() != null) flags |= FLAG_FILE_DATA;
+
+        buf[pos++] = VERSION;
+        buf[pos++] = (byte) message.getType().ordinal();
+        buf[pos++] = (byte) flags;
+        pos = writeString(buf, pos, message.getFromUser());
+        pos = writeString(buf, pos, message.getToUser());
+        pos = writeString(buf, pos, message.getContent());
+        pos = writeString(buf, pos, message.getFileName());
+
+        long timestamp = message.getTimestampMillis();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (timestamp >>> shift);
+        }
+
+        byte[] data = message.getFileData();
+        if (data != null) {
+            pos = writeVarint(buf, pos, data.length);
+            System.arraycopy(data, 0, buf, pos, data.length);
+        }
+    }
+
+    // === Chuỗi UTF-8 ===
+
+    private static int stringSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = utf8Length(value);
+        return varintSize(length) + length;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Ghi trực tiếp vào frame, không tạo mảng trung gian như String.getBytes
+    private static int writeString(byte[] buf, int pos, String value) {
+        if (value == null) {
+            return pos;
+        }
+        pos = writeVarint(buf, pos, utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                // Surrogate lẻ được mã hóa như ký tự 3 byte, giống số byte đã tính ở utf8Length
+                char out = Character.isSurrogate(c) ? '\uFFFD' : c;
+                buf[pos++] = (byte) (0xE0 | (out >> 12));
+                buf[pos++] = (byte) (0x80 | ((out >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (out & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    private static String readString(ByteBuffer body) throws IOException {
+        int length = readVarint(body);
+        if (length < 0 || length > body.remaining()) {
+            throw new IOException("Độ dài chuỗi vượt quá frame: " + length);
+        }
+        String value;
+        if (body.hasArray()) {
+            value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+            body.position(body.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    // === Varint (7 bit mỗi byte, bit cao báo còn byte tiếp theo) ===
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int writeVarint(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint không hợp lệ");
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint không hợp lệ");
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Độ dài frame không hợp lệ: " + length);
+        }
+    }
+}
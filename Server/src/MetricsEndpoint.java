@@ -0,0 +1,70 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Đưa ServerMetrics ra ngoài: MXBean trên platform MBeanServer và endpoint HTTP /metrics
+// (Prometheus text format) chỉ lắng nghe trên loopback.
+public class MetricsEndpoint {
+    private static final String OBJECT_NAME = "ChatAppP2P:type=SignalingServer,name=Metrics";
+
+    private final ServerMetrics metrics;
+    private HttpServer httpServer;
+    private ObjectName objectName;
+
+    public MetricsEndpoint(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start(int httpPort) {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mbeans.isRegistered(name)) {
+                mbeans.registerMBean(metrics, name);
+                objectName = name;
+            }
+        } catch (JMException e) {
+            ServerUtils.warn("Không thể đăng ký JMX metrics: {}", e.getMessage());
+        }
+
+        if (httpPort <= 0) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.start();
+            ServerUtils.info("Metrics: http://localhost:{}/metrics, JMX {}", httpPort, OBJECT_NAME);
+        } catch (IOException e) {
+            ServerUtils.warn("Không thể mở metrics endpoint trên port {}: {}", httpPort, e.getMessage());
+        }
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Ignore
+            }
+        }
+    }
+}
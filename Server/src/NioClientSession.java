@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Kết nối non-blocking, được điều khiển bởi một event loop của NioServer.
+// Mọi thao tác đọc/ghi socket chỉ chạy trên thread của event loop.
+public class NioClientSession extends ClientSession {
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final InetAddress remoteAddress;
+    private final AtomicBoolean flushScheduled;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+
+    // Các frame đang ghi dở, ghi gộp bằng một lần gọi channel.write(ByteBuffer[])
+    private final ByteBuffer[] pending;
+    private int pendingStart;
+    private int pendingEnd;
+
+    public NioClientSession(SocketChannel channel, NioServer.EventLoop loop, SignalingServer server) throws IOException {
+        super(server);
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        this.flushScheduled = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.pending = new ByteBuffer[MAX_GATHER];
+    }
+
+    // Gọi trên thread event loop sau khi channel đã được đăng ký
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                disconnect();
+                return;
+            }
+            server.getMetrics().bytesIn(read);
+
+            readBuffer.flip();
+            Message message;
+            while (connected.get() && (message = MessageCodec.tryReadFrame(readBuffer)) != null) {
+                handleMessage(message);
+            }
+            readBuffer.compact();
+
+            // Nới buffer nếu frame đang đọc dở lớn hơn dung lượng hiện tại
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        } catch (IOException e) {
+            if (connected.get()) {
+                ServerUtils.error("Lỗi xử lý client {}: {}", username, e.getMessage());
+            }
+            disconnect();
+        } catch (RuntimeException e) {
+            // Lỗi của riêng session này không được làm dừng event loop dùng chung
+            ServerUtils.error("Lỗi xử lý client {}: {}", username, e.toString());
+            disconnect();
+        }
+    }
+
+    void onWritable() {
+        if (!connected.get()) {
+            return;
+        }
+
+        try {
+            flushWrites();
+        } catch (IOException e) {
+            ServerUtils.error("Lỗi gửi tin nhắn đến {}: {}", username, e.getMessage());
+            disconnect();
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        while (true) {
+            // Lấp đầy mảng gather từ hàng đợi gửi
+            if (pendingStart == pendingEnd) {
+                pendingStart = 0;
+                pendingEnd = 0;
+            }
+            OutboundFrame frame;
+            while (pendingEnd < pending.length && (frame = outbound.poll()) != null) {
+                pending[pendingEnd++] = frame.newBuffer(compress);
+            }
+            if (pendingStart == pendingEnd) {
+                break;
+            }
+
+            server.getMetrics().bytesOut(channel.write(pending, pendingStart, pendingEnd - pendingStart));
+            while (pendingStart < pendingEnd && !pending[pendingStart].hasRemaining()) {
+                pending[pendingStart++] = null;
+            }
+            if (pendingStart < pendingEnd) {
+                // Socket đầy, chờ OP_WRITE
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    protected void onFrameQueued() {
+        // Gộp nhiều frame vào một lần flush trên event loop
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                onWritable();
+            });
+        }
+    }
+
+    @Override
+    protected InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    protected void closeTransport() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return super.isConnected() && channel.isOpen();
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Chế độ NIO: một acceptor non-blocking + N event loop (mặc định mỗi core một loop).
+// Mỗi event loop phục vụ nhiều kết nối bằng một Selector, không có thread nào
+// bị treo trên một client đang nhàn rỗi.
+//
+// Chế độ sharded: không có acceptor riêng, mỗi event loop tự accept trên socket của nó
+// (cùng port, SO_REUSEPORT) nên accept cũng chia đều theo core. Kết nối ở lại loop đã accept nó;
+// tin nhắn từ loop khác đi qua hàng đợi task của loop đích.
+public class NioServer {
+    // Số kết nối tối đa accept trong một lần select, để loop còn phục vụ các kết nối đang có
+    private static final int MAX_ACCEPTS_PER_SELECT = 64;
+
+    private final SignalingServer server;
+    private final ServerSocketChannel acceptChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] loops;
+    // Socket accept của từng loop ở chế độ sharded
+    private final List<ServerSocketChannel> listeners;
+    private volatile boolean running;
+    private int nextLoop;
+
+    public NioServer(int port, int loopCount, SignalingServer server, boolean sharded) throws IOException {
+        this.server = server;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        this.listeners = new ArrayList<>();
+
+        if (sharded) {
+            this.acceptChannel = null;
+            this.acceptSelector = null;
+            bindShards(port);
+        } else {
+            this.acceptChannel = ServerSocketChannel.open();
+            this.acceptChannel.bind(new InetSocketAddress(port), 1024);
+            this.acceptChannel.configureBlocking(false);
+            this.acceptSelector = Selector.open();
+            this.acceptChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        }
+        this.running = true;
+    }
+
+    // Mỗi loop bind một socket riêng trên cùng port với SO_REUSEPORT, kernel chia kết nối mới
+    // giữa các socket. Hệ điều hành không hỗ trợ thì các loop dùng chung một socket non-blocking.
+    private void bindShards(int port) throws IOException {
+        ServerSocketChannel shared = null;
+        for (EventLoop loop : loops) {
+            ServerSocketChannel channel = shared;
+            if (channel == null) {
+                channel = ServerSocketChannel.open();
+                if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else {
+                    shared = channel;
+                }
+                channel.bind(new InetSocketAddress(port), 1024);
+                channel.configureBlocking(false);
+                listeners.add(channel);
+            }
+            loop.listen(channel);
+        }
+        ServerUtils.info("NIO sharded: {} loop accept trên port {} ({})", loops.length, port,
+                shared == null ? "SO_REUSEPORT" : "dùng chung một socket");
+    }
+
+    // Chạy vòng lặp accept trên thread hiện tại.
+    // Ở chế độ sharded, thread hiện tại chạy loop đầu tiên.
+    public void start() {
+        if (acceptChannel == null) {
+            for (int i = 1; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "nio-loop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            Thread.currentThread().setName("nio-loop-0");
+            loops[0].run();
+            return;
+        }
+
+        for (EventLoop loop : loops) {
+            Thread thread = new Thread(loop, "nio-loop-" + loop.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerUtils.info("NIO acceptor sẵn sàng với {} event loop", loops.length);
+
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    acceptPending();
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    ServerUtils.error("Lỗi chấp nhận kết nối: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void acceptPending() throws IOException {
+        SocketChannel channel;
+        while ((channel = acceptChannel.accept()) != null) {
+            if (!server.tryAcquireConnection()) {
+                // Channel vừa accept vẫn ở chế độ blocking, ghi frame lỗi rồi đóng
+                server.rejectConnection(channel.socket());
+                continue;
+            }
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (acceptChannel != null) {
+                acceptSelector.close();
+                acceptChannel.close();
+            }
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    // Một event loop: Selector + hàng đợi task (mailbox) từ các thread khác
+    class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        // Đã có wakeup đang chờ loop xử lý: các task đến sau không cần gọi wakeup (syscall) nữa
+        private final AtomicBoolean wakeupPending;
+        private volatile Thread thread;
+        private volatile boolean looping = true;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.wakeupPending = new AtomicBoolean();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Task từ chính loop được chạy ở vòng kế tiếp mà không cần đánh thức selector
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> open(channel));
+        }
+
+        // Đăng ký socket accept, gọi trước khi loop chạy
+        void listen(ServerSocketChannel listener) throws IOException {
+            listener.register(selector, SelectionKey.OP_ACCEPT, listener);
+        }
+
+        private void open(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioClientSession session = new NioClientSession(channel, this, server);
+                session.attach(channel.register(selector, SelectionKey.OP_READ, session));
+                ServerUtils.info("Client kết nối: {}", channel.getRemoteAddress());
+            } catch (IOException e) {
+                ServerUtils.error("Lỗi xử lý kết nối mới: {}", e.getMessage());
+                server.releaseConnection();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+
+        private void acceptPending(ServerSocketChannel listener) throws IOException {
+            SocketChannel channel;
+            for (int i = 0; i < MAX_ACCEPTS_PER_SELECT && (channel = listener.accept()) != null; i++) {
+                if (!server.tryAcquireConnection()) {
+                    server.rejectConnection(channel.socket());
+                    continue;
+                }
+                open(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+
+            while (looping) {
+                try {
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.attachment() instanceof ServerSocketChannel) {
+                            acceptPending((ServerSocketChannel) key.attachment());
+                            continue;
+                        }
+                        NioClientSession session = (NioClientSession) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    ServerUtils.error("Lỗi event loop {}: {}", index, e.getMessage());
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerUtils.error("Lỗi task trong event loop {}: {}", index, e.getMessage());
+                }
+            }
+        }
+
+        void stop() {
+            looping = false;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hộp thư cho user đang offline: tin nhắn được ghi nối tiếp vào các segment file ánh xạ bộ nhớ
+// (mmap), mỗi người nhận có một danh sách vị trí tin đang chờ. Khi user đăng nhập, toàn bộ tin
+// của họ được lấy ra một lần và đánh dấu đã giao ngay trong file.
+//
+// record = status(1 byte) sequence(8 byte) frame(MessageCodec, gồm varint độ dài)
+//   status 0: chưa ghi (hết dữ liệu của segment), 1: đang chờ, 2: đã giao
+//   sequence tăng dần theo thứ tự lưu, giữ nguyên khi record bị chép sang segment khác
+//
+// Segment không còn tin nào đang chờ thì bị xóa. Segment cũ chỉ còn ít tin đang chờ thì các tin
+// đó được chép sang segment hiện tại rồi segment cũ bị xóa. Ghi vào mmap vẫn còn khi process
+// chết; force() xuống đĩa chỉ chạy khi đổi segment và khi đóng.
+//
+// Thư mục bị khóa độc quyền (LOCK_FILE) suốt thời gian mở: server thứ hai trỏ vào cùng thư mục
+// sẽ không khởi động được thay vì ghi đè segment của server kia.
+public class OfflineMailbox {
+    private static final byte STATUS_PENDING = 1;
+    private static final byte STATUS_DELIVERED = 2;
+    private static final int HEADER_SIZE = 9;
+    private static final String SUFFIX = ".seg";
+    private static final String LOCK_FILE = "mailbox.lock";
+    // Thư mục đang mở trong JVM này: FileLock là khóa theo process và đóng channel thứ hai tới cùng
+    // file cũng nhả khóa của channel đầu, nên trong cùng process phải chặn trước khi mở file
+    private static final Set<String> OPEN_DIRECTORIES = ConcurrentHashMap.newKeySet();
+    // Segment cũ còn dưới tỉ lệ này dữ liệu đang chờ thì được chép gọn
+    private static final int COMPACT_LIVE_PERCENT = 25;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxPerUser;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final String lockKey;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    // người nhận -> vị trí các tin đang chờ, theo thứ tự gửi
+    private final Map<String, ArrayDeque<Location>> index = new HashMap<>();
+    private Segment active;
+    private int pendingCount;
+    private long nextSequence = 1;
+
+    public OfflineMailbox(String directory, int segmentSize, int maxPerUser) throws IOException {
+        this.directory = new File(directory);
+        this.segmentSize = Math.max(segmentSize, 2 * (MessageCodec.MAX_FRAME_SIZE + HEADER_SIZE + 8));
+        this.maxPerUser = maxPerUser;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Không thể tạo thư mục hộp thư: " + directory);
+        }
+        this.lockKey = this.directory.getCanonicalPath();
+        if (!OPEN_DIRECTORIES.add(lockKey)) {
+            throw new IOException("Hộp thư " + directory + " đang được server khác sử dụng");
+        }
+        FileLock acquired = null;
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(new File(this.directory, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            acquired = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Xử lý như bị khóa bên dưới
+        } catch (IOException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            OPEN_DIRECTORIES.remove(lockKey);
+            throw e;
+        }
+        if (acquired == null) {
+            if (channel != null) {
+                channel.close();
+            }
+            OPEN_DIRECTORIES.remove(lockKey);
+            throw new IOException("Hộp thư " + directory + " đang được server khác sử dụng");
+        }
+        this.lockChannel = channel;
+        this.lock = acquired;
+        try {
+            recover();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        ServerUtils.info("Hộp thư offline: {} tin đang chờ cho {} user, {} segment",
+                pendingCount, index.size(), segments.size());
+    }
+
+    // Lưu tin cho message.getToUser(), false nếu hộp thư của người nhận đã đầy
+    public synchronized boolean store(Message message) throws IOException {
+        String recipient = message.getToUser();
+        ArrayDeque<Location> pending = index.get(recipient);
+        if (pending != null && pending.size() >= maxPerUser) {
+            return false;
+        }
+
+        Location location = append(nextSequence++, MessageCodec.encode(message));
+        index.computeIfAbsent(recipient, k -> new ArrayDeque<>()).add(location);
+        pendingCount++;
+        return true;
+    }
+
+    public synchronized boolean hasPending(String recipient) {
+        return index.containsKey(recipient);
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    // Lấy và đánh dấu đã giao mọi tin đang chờ của user, theo thứ tự đã lưu
+    public synchronized List<Message> drain(String recipient) {
+        ArrayDeque<Location> pending = index.remove(recipient);
+        if (pending == null) {
+            return Collections.emptyList();
+        }
+
+        List<Message> messages = new ArrayList<>(pending.size());
+        Set<Segment> touched = new HashSet<>();
+        for (Location location : pending) {
+            try {
+                messages.add(location.read());
+            } catch (IOException e) {
+                ServerUtils.error("Hộp thư: bỏ tin hỏng cho {} ở segment {}: {}",
+                        recipient, location.segment.id, e.getMessage());
+            }
+            location.segment.buffer.put(location.offset, STATUS_DELIVERED);
+            location.segment.release(location.length);
+            touched.add(location.segment);
+        }
+        pendingCount -= pending.size();
+
+        for (Segment segment : touched) {
+            compact(segment);
+        }
+        return messages;
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        if (!lockChannel.isOpen()) {
+            return;
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        OPEN_DIRECTORIES.remove(lockKey);
+    }
+
+    // === Ghi ===
+
+    private Location append(long sequence, byte[] frame) throws IOException {
+        int length = HEADER_SIZE + frame.length;
+        if (active == null || active.writePos + length > segmentSize) {
+            roll();
+        }
+
+        Segment segment = active;
+        int offset = segment.writePos;
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(offset + 1);
+        target.putLong(sequence);
+        target.put(frame);
+        // Ghi status sau cùng: record chỉ được coi là có khi frame đã nằm trọn trong file
+        segment.buffer.put(offset, STATUS_PENDING);
+        segment.writePos += length;
+        segment.acquire(length);
+        return new Location(segment, offset, length, sequence);
+    }
+
+    private void roll() throws IOException {
+        Segment previous = active;
+        long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        active = Segment.open(new File(directory, String.format("%016d%s", id, SUFFIX)), id, segmentSize);
+        segments.put(id, active);
+
+        if (previous != null) {
+            previous.buffer.force();
+            compact(previous);
+        }
+    }
+
+    // Xóa segment không còn tin đang chờ; chép các tin còn lại sang segment hiện tại nếu chúng
+    // chỉ chiếm một phần nhỏ của segment. Segment đang ghi không bị động đến.
+    private void compact(Segment segment) {
+        if (segment == active || !segments.containsKey(segment.id)) {
+            return;
+        }
+        if (segment.liveRecords > 0
+                && (long) segment.liveBytes * 100 >= (long) segment.writePos * COMPACT_LIVE_PERCENT) {
+            return;
+        }
+
+        if (segment.liveRecords > 0) {
+            try {
+                moveLiveRecords(segment);
+            } catch (IOException e) {
+                ServerUtils.error("Hộp thư: không thể chép gọn segment {}: {}", segment.id, e.getMessage());
+                return;
+            }
+        }
+
+        segments.remove(segment.id);
+        segment.close();
+        if (!segment.file.delete()) {
+            ServerUtils.warn("Hộp thư: không thể xóa {}", segment.file);
+        }
+    }
+
+    private void moveLiveRecords(Segment segment) throws IOException {
+        for (ArrayDeque<Location> pending : index.values()) {
+            for (Location location : pending) {
+                if (location.segment != segment) {
+                    continue;
+                }
+                byte[] frame = new byte[location.length - HEADER_SIZE];
+                ByteBuffer source = segment.buffer.duplicate();
+                source.position(location.offset + HEADER_SIZE);
+                source.get(frame);
+
+                Location moved = append(location.sequence, frame);
+                location.segment = moved.segment;
+                location.offset = moved.offset;
+            }
+        }
+        // Bản mới phải xuống đĩa trước khi segment cũ bị xóa
+        active.buffer.force();
+    }
+
+    // === Khôi phục khi khởi động ===
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                Segment segment = Segment.open(file, id, (int) Math.max(file.length(), segmentSize));
+                segments.put(id, segment);
+            } catch (NumberFormatException e) {
+                ServerUtils.warn("Hộp thư: bỏ qua file lạ {}", file);
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            scan(segment);
+        }
+        // Record đã bị chép sang segment mới hơn nằm sau các tin gửi sau nó. Process dừng giữa
+        // lúc chép và lúc xóa segment cũ thì một record có hai bản, chỉ giữ một.
+        for (ArrayDeque<Location> pending : index.values()) {
+            List<Location> sorted = new ArrayList<>(pending);
+            sorted.sort(Comparator.comparingLong(location -> location.sequence));
+            pending.clear();
+            for (Location location : sorted) {
+                if (!pending.isEmpty() && pending.peekLast().sequence == location.sequence) {
+                    location.segment.release(location.length);
+                    pendingCount--;
+                    continue;
+                }
+                pending.add(location);
+            }
+        }
+
+        // Segment cuối tiếp tục được ghi; các segment khác không còn tin thì xóa luôn
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            compact(segment);
+        }
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int pos = 0;
+        while (pos < buffer.capacity()) {
+            byte status = buffer.get(pos);
+            if (status != STATUS_PENDING && status != STATUS_DELIVERED) {
+                break;
+            }
+            if (pos + HEADER_SIZE > buffer.capacity()) {
+                break;
+            }
+            long sequence = buffer.getLong(pos + 1);
+            buffer.limit(buffer.capacity()).position(pos + HEADER_SIZE);
+            Message message;
+            try {
+                message = MessageCodec.tryReadFrame(buffer);
+            } catch (IOException e) {
+                message = null;
+            }
+            if (message == null) {
+                // Record ghi dở lúc process dừng
+                ServerUtils.warn("Hộp thư: segment {} bị cắt cụt ở offset {}", segment.id, pos);
+                break;
+            }
+
+            int length = buffer.position() - pos;
+            if (status == STATUS_PENDING && message.getToUser() != null) {
+                index.computeIfAbsent(message.getToUser(), k -> new ArrayDeque<>())
+                        .add(new Location(segment, pos, length, sequence));
+                segment.acquire(length);
+                pendingCount++;
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            pos += length;
+        }
+        segment.writePos = pos;
+    }
+
+    // Một segment file, cả file được ánh xạ vào bộ nhớ
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePos;
+        private int liveRecords;
+        private int liveBytes;
+
+        private Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long id, int size) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        void acquire(int length) {
+            liveRecords++;
+            liveBytes += length;
+        }
+
+        void release(int length) {
+            liveRecords--;
+            liveBytes -= length;
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // Vị trí một tin đang chờ; đổi khi tin được chép sang segment khác
+    private static class Location {
+        private Segment segment;
+        private int offset;
+        private final int length;
+        private final long sequence;
+
+        Location(Segment segment, int offset, int length, long sequence) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+        }
+
+        Message read() throws IOException {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.limit(offset + length).position(offset + HEADER_SIZE);
+            Message message = MessageCodec.tryReadFrame(buffer);
+            if (message == null) {
+                throw new IOException("record bị cắt cụt");
+            }
+            return message;
+        }
+    }
+}
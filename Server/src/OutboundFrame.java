@@ -0,0 +1,69 @@
+import java.nio.ByteBuffer;
+
+// Một frame đã mã hóa sẵn chờ ghi ra socket.
+// subject là user mà tin presence nói đến, dùng để gộp (coalesce) các tin cùng user.
+// Frame bất biến: khi broadcast, cùng một frame được đưa vào hàng đợi của mọi người nhận,
+// nên không được sửa nội dung bytes sau khi tạo.
+// Bản nén (FrameCompression) được tạo khi người nhận đầu tiên hỗ trợ nén cần đến, rồi dùng lại
+// cho các người nhận khác.
+public class OutboundFrame {
+    private final Message.Type type;
+    private final String subject;
+    private final byte[] bytes;
+    private final boolean shared;
+    private volatile byte[] compressed;
+
+    public OutboundFrame(Message.Type type, String subject, byte[] bytes, boolean shared) {
+        this.type = type;
+        this.subject = subject;
+        this.bytes = bytes;
+        this.shared = shared;
+    }
+
+    // Frame gửi cho một người nhận
+    public static OutboundFrame of(Message message) {
+        return new OutboundFrame(message.getType(), message.getFromUser(), MessageCodec.encode(message), false);
+    }
+
+    // Frame mã hóa một lần rồi gửi cho nhiều người nhận
+    public static OutboundFrame forBroadcast(Message message) {
+        return forBroadcast(message, message.getFromUser());
+    }
+
+    // subject null: frame không gộp được với frame khác (vd. presence của nhiều user)
+    public static OutboundFrame forBroadcast(Message message, String subject) {
+        return new OutboundFrame(message.getType(), subject, MessageCodec.encode(message), true);
+    }
+
+    public Message.Type getType() { return type; }
+    public String getSubject() { return subject; }
+    public byte[] getBytes() { return bytes; }
+
+    // Bytes gửi cho một người nhận, nén nếu người đó hỗ trợ
+    public byte[] getBytes(boolean compress) {
+        if (!compress) {
+            return bytes;
+        }
+        byte[] result = compressed;
+        if (result == null) {
+            // Hai thread cùng nén thì một bản bị bỏ, không ảnh hưởng kết quả
+            result = FrameCompression.compress(bytes);
+            compressed = result;
+        }
+        return result;
+    }
+
+    // Buffer để ghi ra channel, mỗi người nhận một view riêng trên bytes dùng chung.
+    // Dùng heap buffer: JDK chép sang direct buffer tạm của thread ghi (được dùng lại), còn một
+    // direct buffer cho mỗi frame broadcast thì chỉ được giải phóng khi GC chạy.
+    public ByteBuffer newBuffer(boolean compress) {
+        return ByteBuffer.wrap(getBytes(compress));
+    }
+
+    // Tin presence broadcast có thể bỏ hoặc gộp khi hàng đợi đầy, các tin khác thì không.
+    // PRESENCE_SYNC gửi riêng (snapshot/delta khi login) không được bỏ.
+    public boolean isPresence() {
+        return type == Message.Type.USER_ONLINE || type == Message.Type.USER_OFFLINE
+                || (type == Message.Type.PRESENCE_SYNC && shared);
+    }
+}
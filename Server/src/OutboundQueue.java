@@ -0,0 +1,269 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Hàng đợi gửi có giới hạn của một session.
+// Thread gọi sendMessage chỉ enqueue rồi trả về ngay, việc ghi socket do writer của session đảm nhận,
+// nên một client chậm không làm nghẽn login/logout của người khác.
+//
+// Hàng đợi tự báo cho BacklogListener khi vượt nửa dung lượng (một lần cho mỗi lần dồn lên, báo
+// lại sau khi đã rút xuống dưới một phần tư) và khi phải bỏ/gộp frame (tối đa một lần mỗi
+// REPORT_INTERVAL), nên không cần quét hàng đợi của mọi user theo chu kỳ.
+public class OutboundQueue {
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Được gọi ngoài lock, trên thread đang enqueue
+    public interface BacklogListener {
+        void onBacklog(Stats stats);
+    }
+
+    public enum OverflowPolicy {
+        // Bỏ tin presence cũ nhất để nhường chỗ, ngắt kết nối nếu không còn tin presence nào
+        DROP_OLDEST_PRESENCE,
+        // Thay tin presence đang chờ của cùng user (hoặc frame lô cũ nhất, nếu tin mới là frame lô)
+        // bằng tin mới, ngắt kết nối nếu không gộp được
+        COALESCE,
+        // Ngắt kết nối ngay khi hàng đợi đầy
+        DISCONNECT
+    }
+
+    private final ArrayDeque<OutboundFrame> frames;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final BacklogListener listener;
+    private boolean closed;
+    // Đã báo vượt nửa dung lượng, chờ rút xuống dưới một phần tư mới báo lại
+    private boolean backlogged;
+    private long lastDropReport;
+    // Số frame bị bỏ/gộp đã báo lần gần nhất
+    private long reportedLosses;
+
+    // Thống kê, chỉ đọc/ghi khi giữ lock
+    private int highWatermark;
+    private long enqueued;
+    private long dropped;
+    private long coalesced;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, BacklogListener listener) {
+        this.frames = new ArrayDeque<>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.policy = policy;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.listener = listener;
+    }
+
+    // Trả về false nếu hàng đợi đầy và policy yêu cầu ngắt kết nối
+    public boolean offer(OutboundFrame frame) {
+        Stats report = null;
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+
+            boolean lost = false;
+            if (frames.size() >= capacity) {
+                if (!makeRoom(frame)) {
+                    return false;
+                }
+                lost = true;
+            }
+
+            frames.addLast(frame);
+            highWatermark = Math.max(highWatermark, frames.size());
+            enqueued++;
+            notEmpty.signal();
+            if (listener != null) {
+                report = checkBacklog(lost);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (report != null) {
+            listener.onBacklog(report);
+        }
+        return true;
+    }
+
+    // Gọi khi giữ lock, trả về thống kê cần báo hoặc null
+    private Stats checkBacklog(boolean lost) {
+        boolean report = false;
+        if (!backlogged && frames.size() * 2 >= capacity) {
+            backlogged = true;
+            report = true;
+        }
+        if (lost) {
+            long now = System.nanoTime();
+            if (reportedLosses == 0 || now - lastDropReport >= REPORT_INTERVAL_NANOS) {
+                report = true;
+            }
+        }
+        if (!report) {
+            return null;
+        }
+        if (dropped + coalesced > reportedLosses) {
+            lastDropReport = System.nanoTime();
+            reportedLosses = dropped + coalesced;
+        }
+        return snapshot();
+    }
+
+    // Gọi khi giữ lock, sau khi lấy frame ra
+    private void onTaken() {
+        if (backlogged && frames.size() * 4 < capacity) {
+            backlogged = false;
+        }
+    }
+
+    // Gọi khi hàng đợi đầy. Trả về true nếu frame đã được xử lý theo policy
+    private boolean makeRoom(OutboundFrame frame) {
+        switch (policy) {
+            case DROP_OLDEST_PRESENCE:
+                Iterator<OutboundFrame> it = frames.iterator();
+                while (it.hasNext()) {
+                    if (it.next().isPresence()) {
+                        it.remove();
+                        dropped++;
+                        return true;
+                    }
+                }
+                return false;
+
+            case COALESCE:
+                if (!frame.isPresence()) {
+                    return false;
+                }
+                // Tin mới phản ánh trạng thái cuối cùng của user, tin cũ đang chờ không còn ý nghĩa.
+                // Frame lô của PresenceBatcher (subject null) thay frame lô cũ nhất: client thấy
+                // khoảng trống version và tự xin đồng bộ lại phần bị thay.
+                Iterator<OutboundFrame> queued = frames.iterator();
+                while (queued.hasNext()) {
+                    OutboundFrame old = queued.next();
+                    if (old.isPresence() && Objects.equals(frame.getSubject(), old.getSubject())) {
+                        queued.remove();
+                        coalesced++;
+                        return true;
+                    }
+                }
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    // Lấy frame tiếp theo, không chờ. Trả về null nếu hàng đợi rỗng
+    public OutboundFrame poll() {
+        lock.lock();
+        try {
+            OutboundFrame frame = frames.pollFirst();
+            onTaken();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chờ tối đa timeout để có frame. Trả về null nếu hết giờ hoặc hàng đợi đã đóng
+    public OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            OutboundFrame frame = frames.pollFirst();
+            onTaken();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats getStats() {
+        lock.lock();
+        try {
+            return snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Stats snapshot() {
+        return new Stats(frames.size(), highWatermark, capacity, enqueued, dropped, coalesced);
+    }
+
+    // Ảnh chụp thống kê hàng đợi của một user
+    public static class Stats {
+        private final int depth;
+        private final int highWatermark;
+        private final int capacity;
+        private final long enqueued;
+        private final long dropped;
+        private final long coalesced;
+
+        Stats(int depth, int highWatermark, int capacity, long enqueued, long dropped, long coalesced) {
+            this.depth = depth;
+            this.highWatermark = highWatermark;
+            this.capacity = capacity;
+            this.enqueued = enqueued;
+            this.dropped = dropped;
+            this.coalesced = coalesced;
+        }
+
+        public int getDepth() { return depth; }
+        public int getHighWatermark() { return highWatermark; }
+        public int getCapacity() { return capacity; }
+        public long getEnqueued() { return enqueued; }
+        public long getDropped() { return dropped; }
+        public long getCoalesced() { return coalesced; }
+
+        @Override
+        public String toString() {
+            return "depth=" + depth + "/" + capacity + ", max=" + highWatermark +
+                    ", enqueued=" + enqueued + ", dropped=" + dropped + ", coalesced=" + coalesced;
+        }
+    }
+}
@@ -4,8 +4,8 @@ public class PeerInfo {
     private String username;
     private InetAddress ipAddress;
     private int port;
-    private long lastHeartbeat;
-    private boolean online;
+    private volatile long lastHeartbeat;
+    private volatile boolean online;
 
     public PeerInfo(String username, InetAddress ipAddress, int port) {
         this.username = username;
@@ -0,0 +1,105 @@
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Gom các thay đổi online/offline trong một cửa sổ ngắn rồi gửi một frame PRESENCE_SYNC
+// nhiều user cho mọi người nhận. Khi server khởi động lại, N client kết nối lại cùng lúc
+// sẽ tạo ra khoảng N frame thay vì N² tin USER_ONLINE.
+//
+// Mọi thay đổi vẫn được ghi vào PresenceLog ngay (version, snapshot khi login luôn đúng),
+// chỉ phần broadcast bị dồn lại. Frame mang trạng thái cuối của mọi user đổi trong cửa sổ, kể cả
+// user đổi rồi đổi lại: client nhận snapshot giữa cửa sổ có thể đã thấy trạng thái trung gian,
+// client còn lại bỏ qua mục trùng nhờ kiểm tra version theo user.
+public class PresenceBatcher {
+    private final PresenceLog log;
+    private final long windowMillis;
+    private final Consumer<OutboundFrame> broadcaster;
+    private final ScheduledExecutorService scheduler;
+
+    // Đã có thay đổi chờ flush (cửa sổ đang mở)
+    private boolean windowOpen;
+    // Version đã được broadcast đến (mọi thay đổi <= flushedVersion đã nằm trong frame trước)
+    private long flushedVersion;
+    // base của frame tiếp theo: cửa sổ không có thay đổi thực sự thì không gửi gì,
+    // frame sau nối tiếp từ frame cuối cùng đã gửi
+    private long reportedBase;
+
+    public PresenceBatcher(PresenceLog log, long windowMillis, Consumer<OutboundFrame> broadcaster) {
+        this.log = log;
+        this.windowMillis = windowMillis;
+        this.broadcaster = broadcaster;
+        this.flushedVersion = log.getVersion();
+        this.reportedBase = flushedVersion;
+
+        if (windowMillis > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "presence-batcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    // Ghi nhận user online/offline, broadcast ngay nếu không bật gom
+    public void publish(String username, boolean online) {
+        if (scheduler == null) {
+            long version = log.append(username, online);
+            broadcaster.accept(OutboundFrame.forBroadcast(log.eventMessage(username, online, version)));
+            return;
+        }
+
+        boolean startWindow;
+        synchronized (this) {
+            startWindow = !windowOpen;
+            windowOpen = true;
+            log.append(username, online);
+        }
+
+        if (startWindow && !scheduler.isShutdown()) {
+            try {
+                scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Server đang dừng, không còn ai để gửi
+            }
+        }
+    }
+
+    // Chạy trên thread của scheduler, flushedVersion và reportedBase chỉ được dùng ở đây
+    private void flush() {
+        long upTo;
+        synchronized (this) {
+            windowOpen = false;
+            upTo = log.getVersion();
+        }
+        long since = flushedVersion;
+        flushedVersion = upTo;
+
+        Map<String, PresenceLog.Event> changes = log.changesBetween(since, upTo);
+        if (changes == null) {
+            // Cửa sổ có nhiều thay đổi hơn log giữ được: gửi snapshot cho tất cả
+            reportedBase = upTo;
+            broadcaster.accept(OutboundFrame.forBroadcast(log.snapshotMessage(), null));
+            return;
+        }
+
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // subject null: frame chứa nhiều user, OutboundQueue gộp theo kiểu frame lô (xem COALESCE)
+        Message batch = log.deltaMessage(reportedBase, upTo, changes.values());
+        reportedBase = upTo;
+        broadcaster.accept(OutboundFrame.forBroadcast(batch, null));
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Nhật ký presence có version tăng dần.
+// Mỗi lần user online/offline được gán một version; client nhớ version cuối cùng đã thấy
+// và khi kết nối lại chỉ nhận phần thay đổi (delta) thay vì cả danh sách.
+// Log chỉ giữ capacity sự kiện gần nhất, cursor cũ hơn thì phải nhận snapshot.
+//
+// Cursor gửi cho client có dạng "epoch.version"; epoch đổi mỗi lần server khởi động
+// nên cursor của lần chạy trước luôn dẫn đến snapshot.
+public class PresenceLog {
+    private final long epoch;
+    private final Event[] ring;
+    private final ConcurrentHashMap<String, Long> online;
+    private volatile long version;
+
+    public PresenceLog(int capacity) {
+        this.epoch = System.currentTimeMillis();
+        this.ring = new Event[Math.max(1, capacity)];
+        this.online = new ConcurrentHashMap<>();
+    }
+
+    // Ghi nhận một chuyển trạng thái, trả về version của nó.
+    // Danh sách online được cập nhật trước khi version mới được công bố,
+    // nên ai đọc được version v thì cũng thấy mọi sự kiện <= v trong danh sách.
+    public synchronized long append(String username, boolean isOnline) {
+        long next = version + 1;
+        ring[(int) (next % ring.length)] = new Event(next, username, isOnline);
+        if (isOnline) {
+            online.put(username, next);
+        } else {
+            online.remove(username);
+        }
+        version = next;
+        return next;
+    }
+
+    // Các thay đổi sau version since, mỗi user chỉ giữ sự kiện cuối cùng.
+    // Trả về null nếu since không còn trong log (quá cũ hoặc không hợp lệ).
+    public synchronized Map<String, Event> changesSince(long since) {
+        return changesBetween(since, version);
+    }
+
+    // Như changesSince nhưng chỉ lấy các sự kiện trong khoảng (since, upTo]
+    public synchronized Map<String, Event> changesBetween(long since, long upTo) {
+        if (since > upTo || upTo > version || since < version - ring.length) {
+            return null;
+        }
+
+        Map<String, Event> changes = new LinkedHashMap<>();
+        for (long v = since + 1; v <= upTo; v++) {
+            Event event = ring[(int) (v % ring.length)];
+            changes.remove(event.username);
+            changes.put(event.username, event);
+        }
+        return changes;
+    }
+
+    // Tin PRESENCE_SYNC cho một client: delta nếu cursor còn dùng được, ngược lại là snapshot
+    public Message syncMessage(String cursor) {
+        long since = parseCursor(cursor);
+        if (since >= 0) {
+            Map<String, Event> changes = changesSince(since);
+            if (changes != null && changes.size() < Math.max(1, online.size())) {
+                long last = since;
+                for (Event event : changes.values()) {
+                    last = Math.max(last, event.version);
+                }
+                return deltaMessage(since, last, changes.values());
+            }
+        }
+        return snapshotMessage();
+    }
+
+    public Message snapshotMessage() {
+        // Đọc version trước rồi mới duyệt danh sách: mọi sự kiện <= snapshotVersion đều đã có mặt
+        long snapshotVersion = version;
+        StringBuilder entries = new StringBuilder();
+        for (Map.Entry<String, Long> entry : online.entrySet()) {
+            appendEntry(entries, '\0', entry.getKey(), entry.getValue());
+        }
+        return new Message(Message.Type.PRESENCE_SYNC, "Server", format(0, snapshotVersion, 'S', entries));
+    }
+
+    // Delta cho khoảng (base, upTo], events là trạng thái cuối của các user đã thay đổi
+    public Message deltaMessage(long base, long upTo, Collection<Event> events) {
+        StringBuilder entries = new StringBuilder();
+        for (Event event : events) {
+            appendEntry(entries, event.online ? '+' : '-', event.username, event.version);
+        }
+        return new Message(Message.Type.PRESENCE_SYNC, "Server", format(base, upTo, 'D', entries));
+    }
+
+    // Delta gồm đúng một sự kiện, dùng khi broadcast thay đổi trực tiếp
+    public Message eventMessage(String username, boolean isOnline, long eventVersion) {
+        StringBuilder entries = new StringBuilder();
+        appendEntry(entries, isOnline ? '+' : '-', username, eventVersion);
+        return new Message(Message.Type.PRESENCE_SYNC, username,
+                format(eventVersion - 1, eventVersion, 'D', entries));
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isOnline(String username) {
+        return online.containsKey(username);
+    }
+
+    public int onlineCount() {
+        return online.size();
+    }
+
+    // content = epoch;base;version;kind;entries
+    // kind S: entries là "user@v" của mọi user online; kind D: entries là "+user@v" hoặc "-user@v"
+    private String format(long base, long upTo, char kind, StringBuilder entries) {
+        return epoch + ";" + base + ";" + upTo + ";" + kind + ";" + entries;
+    }
+
+    private static void appendEntry(StringBuilder entries, char sign, String username, long eventVersion) {
+        if (entries.length() > 0) {
+            entries.append(',');
+        }
+        if (sign != '\0') {
+            entries.append(sign);
+        }
+        entries.append(username).append('@').append(eventVersion);
+    }
+
+    // Trả về version trong cursor, hoặc -1 nếu cursor không thuộc epoch hiện tại
+    private long parseCursor(String cursor) {
+        if (cursor == null) {
+            return -1;
+        }
+        int dot = cursor.indexOf('.');
+        if (dot <= 0) {
+            return -1;
+        }
+        try {
+            long cursorEpoch = Long.parseLong(cursor.substring(0, dot));
+            long cursorVersion = Long.parseLong(cursor.substring(dot + 1));
+            return cursorEpoch == epoch ? cursorVersion : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static class Event {
+        private final long version;
+        private final String username;
+        private final boolean online;
+
+        Event(long version, String username, boolean online) {
+            this.version = version;
+            this.username = username;
+            this.online = online;
+        }
+
+        public long getVersion() { return version; }
+        public String getUsername() { return username; }
+        public boolean isOnline() { return online; }
+    }
+}
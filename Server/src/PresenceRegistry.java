@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Danh sách user online cùng session đang phục vụ họ.
+// Mỗi user là một Entry bất biến; mọi chuyển trạng thái (login, logout, timeout) là một thao tác
+// nguyên tử trên đúng key đó của ConcurrentHashMap, không có lock toàn cục nên login/logout
+// của các user khác nhau không phải chờ nhau.
+public class PresenceRegistry {
+    private final ConcurrentHashMap<String, Entry> entries;
+
+    public PresenceRegistry() {
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    // Đăng ký session mới cho user, trả về entry cũ nếu user đang đăng nhập ở session khác
+    public Entry register(String username, PeerInfo peer, ClientSession session) {
+        return entries.put(username, new Entry(peer, session));
+    }
+
+    // Chỉ xóa khi user vẫn đang gắn với đúng session này, tránh việc session cũ đang đóng
+    // xóa mất lần đăng nhập mới của cùng user
+    public boolean unregister(String username, ClientSession session) {
+        Entry current = entries.get(username);
+        return current != null && current.session == session && entries.remove(username, current);
+    }
+
+    // Xóa entry nếu nó vẫn là lần đăng nhập hiện tại của user và heartbeat đã quá hạn.
+    // Heartbeat đến ngay trước khi xóa thì user được giữ lại.
+    public boolean expire(Entry entry, long timeout) {
+        return entry.peer.isTimedOut(timeout) && entries.remove(entry.getUsername(), entry);
+    }
+
+    public Entry getEntry(String username) {
+        return entries.get(username);
+    }
+
+    // Entry còn là lần đăng nhập hiện tại của user hay đã bị thay thế/xóa
+    public boolean isCurrent(Entry entry) {
+        return entries.get(entry.getUsername()) == entry;
+    }
+
+    public PeerInfo getPeer(String username) {
+        Entry entry = entries.get(username);
+        return entry != null ? entry.peer : null;
+    }
+
+    public ClientSession getSession(String username) {
+        Entry entry = entries.get(username);
+        return entry != null ? entry.session : null;
+    }
+
+    public boolean isOnline(String username) {
+        return entries.containsKey(username);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public List<String> usernames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public static class Entry {
+        private final PeerInfo peer;
+        private final ClientSession session;
+
+        Entry(PeerInfo peer, ClientSession session) {
+            this.peer = peer;
+            this.session = session;
+        }
+
+        public PeerInfo getPeer() { return peer; }
+        public ClientSession getSession() { return session; }
+        public String getUsername() { return peer.getUsername(); }
+    }
+}
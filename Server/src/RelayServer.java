@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Relay cho hai client không kết nối P2P trực tiếp được (NAT, firewall, IP sai).
+//
+// Signaling server cấp một token cho cặp user (issue) và gửi RELAY_OFFER cho cả hai. Mỗi bên mở
+// kết nối đến relay port và gửi đúng một frame RELAY_JOIN (from = username, content = token).
+// Khi cả hai đã vào, relay chỉ chép byte giữa hai socket qua một direct buffer mỗi chiều, không
+// giải mã tin nhắn, không tạo object theo tin nhắn; hai client nói chuyện như qua kết nối P2P.
+//
+// Băng thông mỗi user gửi qua relay bị giới hạn bằng token bucket (relay.user.rate.bytes, chung
+// cho mọi phiên relay của user đó) và số phiên đồng thời (relay.user.max.sessions). Hết token thì
+// ngừng đọc từ socket của user đó, TCP tự đẩy ngược về client.
+//
+// Mọi trạng thái trừ bảng token chờ chỉ được đụng tới trên thread relay.
+public class RelayServer implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TOKEN_EXPIRY_MS = 30_000;
+    // Kết nối chưa gửi RELAY_JOIN hợp lệ sau khoảng này thì bị đóng
+    private static final long JOIN_TIMEOUT_MS = 10_000;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    // RELAY_JOIN chỉ gồm username và token
+    private static final int MAX_JOIN_FRAME = 1024;
+
+    private final int port;
+    private final long userRate;
+    private final int maxSessionsPerUser;
+    private final ServerMetrics metrics;
+    private final SecureRandom random = new SecureRandom();
+    // token -> cặp user đang chờ vào relay
+    private final Map<String, Pairing> pairings = new ConcurrentHashMap<>();
+    // user -> băng thông đã dùng
+    private final Map<String, Usage> usage = new HashMap<>();
+    private final Set<Side> unpaired = new HashSet<>();
+    // Side đang hết token, sắp theo thời điểm được đọc lại
+    private final PriorityQueue<Side> throttled = new PriorityQueue<>(Comparator.comparingLong(side -> side.resumeAt));
+    private Selector selector;
+    private ServerSocketChannel listener;
+    private Thread thread;
+    private volatile boolean running;
+    private long lastSweep;
+
+    public RelayServer(int port, long userRate, int maxSessionsPerUser, ServerMetrics metrics) {
+        this.port = port;
+        this.userRate = userRate;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.metrics = metrics;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "relay");
+        thread.start();
+        ServerUtils.info("Relay lắng nghe trên port {} (giới hạn {} bytes/s mỗi user)", port, userRate);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // Cấp token cho một cặp user, gọi từ thread signaling
+    public String issue(String userA, String userB) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        pairings.put(token.toString(), new Pairing(userA, userB, System.currentTimeMillis() + TOKEN_EXPIRY_MS));
+        return token.toString();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long timeout = SWEEP_INTERVAL_MS;
+                Side next = throttled.peek();
+                if (next != null) {
+                    timeout = Math.max(1, Math.min(timeout, next.resumeAt - System.currentTimeMillis()));
+                }
+                selector.select(timeout);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptPending();
+                        continue;
+                    }
+                    Side side = (Side) key.attachment();
+                    if (key.isReadable()) {
+                        onReadable(side);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        onWritable(side);
+                    }
+                }
+
+                resumeThrottled();
+                sweep();
+            } catch (IOException | RuntimeException e) {
+                ServerUtils.error("Lỗi relay: {}", e.toString());
+            }
+        }
+        closeAll();
+    }
+
+    private void acceptPending() throws IOException {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Side side = new Side(channel);
+                side.key = channel.register(selector, SelectionKey.OP_READ, side);
+                unpaired.add(side);
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+    }
+
+    // === Đọc / ghi ===
+
+    private void onReadable(Side side) {
+        try {
+            if (side.peer == null) {
+                readJoin(side);
+                return;
+            }
+
+            int allowed = side.usage.take(side.inbound.remaining(), System.currentTimeMillis());
+            if (allowed == 0) {
+                throttle(side);
+                return;
+            }
+            int limit = side.inbound.limit();
+            side.inbound.limit(side.inbound.position() + allowed);
+            int read = side.channel.read(side.inbound);
+            side.inbound.limit(limit);
+            if (read == -1) {
+                side.eof = true;
+                side.usage.refund(allowed);
+            } else {
+                // Trả lại phần token chưa dùng
+                side.usage.refund(allowed - read);
+                side.relayed += read;
+                side.usage.bytes += read;
+                metrics.relayBytes(read);
+            }
+            forward(side);
+        } catch (IOException e) {
+            closePair(side);
+        } catch (RuntimeException e) {
+            // Chỉ đóng phiên gây lỗi, thread relay tiếp tục phục vụ các phiên khác
+            ServerUtils.error("Lỗi relay của {}: {}", side.user, e.toString());
+            closePair(side);
+        }
+    }
+
+    private void onWritable(Side side) {
+        try {
+            // Side này ghi được: chép tiếp dữ liệu đang chờ từ peer của nó
+            forward(side.peer);
+        } catch (IOException e) {
+            closePair(side);
+        } catch (RuntimeException e) {
+            ServerUtils.error("Lỗi relay của {}: {}", side.user, e.toString());
+            closePair(side);
+        }
+    }
+
+    // Ghi dữ liệu đã đọc từ source sang peer
+    private void forward(Side source) throws IOException {
+        Side target = source.peer;
+        source.inbound.flip();
+        target.channel.write(source.inbound);
+        source.inbound.compact();
+
+        if (source.eof && source.inbound.position() == 0) {
+            closePair(source);
+            return;
+        }
+        updateInterest(source);
+        updateInterest(target);
+    }
+
+    private void updateInterest(Side side) {
+        if (!side.key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (!side.eof && side.resumeAt == 0 && side.inbound.hasRemaining()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (side.peer != null && side.peer.inbound.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        side.key.interestOps(ops);
+    }
+
+    private void throttle(Side side) {
+        side.resumeAt = side.usage.nextRefill(System.currentTimeMillis());
+        throttled.add(side);
+        updateInterest(side);
+    }
+
+    private void resumeThrottled() {
+        long now = System.currentTimeMillis();
+        Side side;
+        while ((side = throttled.peek()) != null && side.resumeAt <= now) {
+            throttled.poll();
+            side.resumeAt = 0;
+            updateInterest(side);
+        }
+    }
+
+    // === Ghép cặp ===
+
+    private void readJoin(Side side) throws IOException {
+        if (side.channel.read(side.inbound) == -1) {
+            closeSide(side);
+            return;
+        }
+        side.inbound.flip();
+        // Byte từ bất kỳ ai tới được relay port: kiểm tra loại và kích thước trước khi giải mã
+        Message join = MessageCodec.checkHeader(side.inbound, Message.Type.RELAY_JOIN, MAX_JOIN_FRAME)
+                ? MessageCodec.tryReadFrame(side.inbound) : null;
+        side.inbound.compact();
+        if (join == null) {
+            return;
+        }
+
+        Pairing pairing = join.getContent() != null ? pairings.get(join.getContent()) : null;
+        String user = join.getFromUser();
+        if (pairing == null || !pairing.accepts(user)) {
+            ServerUtils.warn("Relay: từ chối kết nối với token không hợp lệ từ {}", user);
+            closeSide(side);
+            return;
+        }
+        Usage userUsage = usage.computeIfAbsent(user, k -> new Usage(userRate));
+        if (userUsage.sessions >= maxSessionsPerUser) {
+            ServerUtils.warn("Relay: {} đã có {} phiên relay", user, userUsage.sessions);
+            closeSide(side);
+            return;
+        }
+
+        side.user = user;
+        side.usage = userUsage;
+        unpaired.remove(side);
+        if (pairing.first == null) {
+            // Chờ bên còn lại; dữ liệu gửi sớm được giữ trong buffer
+            pairing.first = side;
+            side.pairing = pairing;
+            side.key.interestOps(0);
+            return;
+        }
+
+        pairings.remove(join.getContent());
+        Side first = pairing.first;
+        first.pairing = null;
+        first.peer = side;
+        side.peer = first;
+        first.usage.sessions++;
+        side.usage.sessions++;
+        metrics.relaySessionOpened();
+        ServerUtils.info("Relay: bắt đầu phiên {} <-> {}", first.user, side.user);
+        forward(first);
+        forward(side);
+    }
+
+    // === Đóng ===
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL_MS) {
+            return;
+        }
+        lastSweep = now;
+
+        for (Iterator<Map.Entry<String, Pairing>> it = pairings.entrySet().iterator(); it.hasNext(); ) {
+            Pairing pairing = it.next().getValue();
+            if (pairing.expiresAt <= now) {
+                it.remove();
+                if (pairing.first != null) {
+                    closeSide(pairing.first);
+                }
+            }
+        }
+        for (Side side : new ArrayList<>(unpaired)) {
+            if (now - side.acceptedAt > JOIN_TIMEOUT_MS) {
+                closeSide(side);
+            }
+        }
+        // Bỏ bộ đếm của user không còn phiên nào và đã hồi đầy token
+        usage.values().removeIf(u -> u.sessions == 0 && u.isFull(now));
+    }
+
+    private void closePair(Side side) {
+        Side peer = side.peer;
+        closeSide(side);
+        if (peer != null) {
+            closeSide(peer);
+            peer.usage.sessions--;
+            side.usage.sessions--;
+            metrics.relaySessionClosed();
+            ServerUtils.info("Relay: kết thúc phiên {} <-> {} ({} / {} bytes, tổng của user {} / {})",
+                    side.user, peer.user, side.relayed, peer.relayed, side.usage.bytes, peer.usage.bytes);
+            side.peer = null;
+            peer.peer = null;
+        }
+    }
+
+    private void closeSide(Side side) {
+        if (!side.channel.isOpen()) {
+            return;
+        }
+        unpaired.remove(side);
+        throttled.remove(side);
+        if (side.pairing != null && side.pairing.first == side) {
+            side.pairing.first = null;
+        }
+        try {
+            side.channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // Cặp user được cấp token, first là bên đã vào relay trước
+    private static class Pairing {
+        private final String userA;
+        private final String userB;
+        private final long expiresAt;
+        private Side first;
+
+        Pairing(String userA, String userB, long expiresAt) {
+            this.userA = userA;
+            this.userB = userB;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean accepts(String user) {
+            if (user == null || (first != null && user.equals(first.user))) {
+                return false;
+            }
+            return user.equals(userA) || user.equals(userB);
+        }
+    }
+
+    // Một đầu của phiên relay; inbound chứa byte đọc từ đầu này, chờ ghi sang peer
+    private static class Side {
+        private final SocketChannel channel;
+        private final ByteBuffer inbound = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final long acceptedAt = System.currentTimeMillis();
+        private SelectionKey key;
+        private String user;
+        private Usage usage;
+        private Pairing pairing;
+        private Side peer;
+        private boolean eof;
+        // 0 nếu không bị giới hạn, ngược lại là thời điểm được đọc lại
+        private long resumeAt;
+        // Số byte đầu này đã gửi trong phiên
+        private long relayed;
+
+        Side(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // Băng thông relay của một user: token bucket dung lượng một giây, rate = 0 là không giới hạn
+    private static class Usage {
+        private final long rate;
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+        private long bytes;
+        private int sessions;
+
+        Usage(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        int take(int wanted, long now) {
+            if (rate <= 0) {
+                return wanted;
+            }
+            refill(now);
+            int granted = (int) Math.min(wanted, (long) tokens);
+            tokens -= granted;
+            return granted;
+        }
+
+        void refund(int unused) {
+            if (rate > 0 && unused > 0) {
+                tokens += unused;
+            }
+        }
+
+        // Thời điểm có lại ít nhất 1/100 dung lượng bucket
+        long nextRefill(long now) {
+            return now + Math.max(1, 10 - (long) (tokens * 1000 / rate));
+        }
+
+        boolean isFull(long now) {
+            refill(now);
+            return rate <= 0 || tokens >= rate;
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1000.0);
+                lastRefill = now;
+            }
+        }
+    }
+}
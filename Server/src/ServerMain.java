@@ -10,16 +10,19 @@ public class ServerMain {
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("\nĐang dừng server...");
                 server.stop();
+                ServerUtils.flushLog();
             }));
 
             // Start server
             server.start();
 
         } catch (IOException e) {
-            ServerUtils.error("Lỗi khởi động server: " + e.getMessage());
+            ServerUtils.error("Lỗi khởi động server: {}", e.getMessage());
+            ServerUtils.flushLog();
             System.exit(1);
         } catch (Exception e) {
-            ServerUtils.error("Lỗi không xác định: " + e.getMessage());
+            ServerUtils.error("Lỗi không xác định: {}", e.getMessage());
+            ServerUtils.flushLog();
             e.printStackTrace();
             System.exit(1);
         }
@@ -0,0 +1,228 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bộ đếm vận hành của server.
+// Trên đường xử lý tin nhắn chỉ có LongAdder.increment/add (không lock, không cấp phát);
+// các giá trị tổng hợp như độ sâu hàng đợi chỉ được tính khi có người đọc (JMX, /metrics).
+public class ServerMetrics implements ServerMetricsMXBean {
+    // PEER_REQUEST chưa có PEER_INFO sau khoảng này thì không tính độ trễ nữa
+    private static final long PEER_FORWARD_EXPIRY_NANOS = 60_000_000_000L;
+    private static final int MAX_PENDING_FORWARDS = 100_000;
+    // Khoảng giữa hai lần dọn pendingForwards trên đường ghi nhận
+    private static final long PEER_FORWARD_SWEEP_NANOS = PEER_FORWARD_EXPIRY_NANOS / 4;
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private final SignalingServer server;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder[] messagesIn = newCounters();
+    private final LongAdder[] messagesOut = newCounters();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder heartbeatTimeouts = new LongAdder();
+    private final LongAdder relayBytes = new LongAdder();
+    private final LongAdder relaySessionsOpened = new LongAdder();
+    private final LongAdder relaySessionsClosed = new LongAdder();
+    private final LatencyHistogram peerForwardLatency = new LatencyHistogram();
+    // "target\0requester" -> thời điểm nhận PEER_REQUEST
+    private final ConcurrentHashMap<String, Long> pendingForwards = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + PEER_FORWARD_SWEEP_NANOS);
+
+    public ServerMetrics(SignalingServer server) {
+        this.server = server;
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[TYPES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    // === Ghi nhận ===
+
+    public void connectionAccepted() { accepted.increment(); }
+    public void connectionRejected() { rejected.increment(); }
+    public void connectionClosed() { closed.increment(); }
+    public void messageIn(Message.Type type) { messagesIn[type.ordinal()].increment(); }
+    public void messageOut(Message.Type type) { messagesOut[type.ordinal()].increment(); }
+    public void bytesIn(long bytes) { bytesIn.add(bytes); }
+    public void bytesOut(long bytes) { bytesOut.add(bytes); }
+    public void heartbeatTimeout() { heartbeatTimeouts.increment(); }
+    public void relayBytes(long bytes) { relayBytes.add(bytes); }
+    public void relaySessionOpened() { relaySessionsOpened.increment(); }
+    public void relaySessionClosed() { relaySessionsClosed.increment(); }
+
+    // Server chuyển PEER_REQUEST từ requester đến target
+    public void peerRequestForwarded(String requester, String target) {
+        long now = System.nanoTime();
+        // Dọn ngay trên đường ghi nhận (một thread mỗi PEER_FORWARD_SWEEP) để không phụ thuộc
+        // vào việc có ai đọc /metrics
+        long due = nextSweep.get();
+        if (now - due >= 0 && nextSweep.compareAndSet(due, now + PEER_FORWARD_SWEEP_NANOS)) {
+            expirePendingForwards();
+        }
+        if (pendingForwards.size() < MAX_PENDING_FORWARDS) {
+            pendingForwards.put(target + '\0' + requester, now);
+        }
+    }
+
+    // target trả lời PEER_INFO cho requester
+    public void peerInfoForwarded(String target, String requester) {
+        Long start = pendingForwards.remove(target + '\0' + requester);
+        if (start != null) {
+            peerForwardLatency.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    // Bỏ các yêu cầu không bao giờ được trả lời
+    private void expirePendingForwards() {
+        long now = System.nanoTime();
+        Iterator<Long> it = pendingForwards.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() > PEER_FORWARD_EXPIRY_NANOS) {
+                it.remove();
+            }
+        }
+    }
+
+    // === Đọc (JMX) ===
+
+    @Override public int getActiveConnections() { return server.getActiveConnections(); }
+    @Override public long getAcceptedConnections() { return accepted.sum(); }
+    @Override public long getRejectedConnections() { return rejected.sum(); }
+    @Override public long getClosedConnections() { return closed.sum(); }
+    @Override public int getOnlineUsers() { return server.getRegistry().size(); }
+    @Override public Map<String, Long> getMessagesIn() { return byType(messagesIn); }
+    @Override public Map<String, Long> getMessagesOut() { return byType(messagesOut); }
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public long getHeartbeatTimeouts() { return heartbeatTimeouts.sum(); }
+    @Override public long getRelayBytes() { return relayBytes.sum(); }
+    @Override public long getRelaySessionsActive() { return relaySessionsOpened.sum() - relaySessionsClosed.sum(); }
+
+    // Nén frame: số liệu nằm trong FrameCompression vì codec không biết đến ServerMetrics
+    @Override public long getCompressedFrames() { return FrameCompression.getFramesCompressed(); }
+    @Override public long getCompressionSavedBytes() {
+        return FrameCompression.getBytesBefore() - FrameCompression.getBytesAfter();
+    }
+    @Override public double getCompressionRatio() {
+        long before = FrameCompression.getBytesBefore();
+        return before == 0 ? 1.0 : (double) FrameCompression.getBytesAfter() / before;
+    }
+    @Override public long getCompressionCpuMicros() {
+        return (FrameCompression.getCompressNanos() + FrameCompression.getInflateNanos()) / 1000;
+    }
+
+    @Override public long getOutboundQueueDepth() { return queueTotals()[0]; }
+    @Override public long getMaxOutboundQueueDepth() { return queueTotals()[1]; }
+    @Override public long getOutboundFramesDropped() { return queueTotals()[2]; }
+
+    @Override public long getPeerForwardCount() { return peerForwardLatency.count(); }
+    @Override public long getPeerForwardLatencyP50Micros() { return peerForwardLatency.percentile(50); }
+    @Override public long getPeerForwardLatencyP99Micros() { return peerForwardLatency.percentile(99); }
+    @Override public long getPeerForwardLatencyP999Micros() { return peerForwardLatency.percentile(99.9); }
+
+    private static Map<String, Long> byType(LongAdder[] counters) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Message.Type type : TYPES) {
+            result.put(type.name(), counters[type.ordinal()].sum());
+        }
+        return result;
+    }
+
+    // {tổng độ sâu, độ sâu lớn nhất, tổng frame bị bỏ} của các session đang online
+    private long[] queueTotals() {
+        long depth = 0;
+        long maxDepth = 0;
+        long dropped = 0;
+        for (PresenceRegistry.Entry entry : server.getRegistry().entries()) {
+            OutboundQueue.Stats stats = entry.getSession().getOutboundStats();
+            depth += stats.getDepth();
+            maxDepth = Math.max(maxDepth, stats.getDepth());
+            dropped += stats.getDropped() + stats.getCoalesced();
+        }
+        return new long[] {depth, maxDepth, dropped};
+    }
+
+    // === Prometheus text format ===
+
+    public String toPrometheus() {
+        expirePendingForwards();
+        StringBuilder out = new StringBuilder(4096);
+
+        gauge(out, "signaling_connections_active", "Kết nối đang mở", getActiveConnections());
+        counter(out, "signaling_connections_accepted_total", "Kết nối đã chấp nhận", accepted.sum());
+        counter(out, "signaling_connections_rejected_total", "Kết nối bị từ chối do max.connections", rejected.sum());
+        counter(out, "signaling_connections_closed_total", "Kết nối đã đóng", closed.sum());
+        gauge(out, "signaling_users_online", "User đang online", getOnlineUsers());
+
+        perType(out, "signaling_messages_in_total", "Tin nhắn nhận từ client theo loại", messagesIn);
+        perType(out, "signaling_messages_out_total", "Tin nhắn gửi đến client theo loại", messagesOut);
+        counter(out, "signaling_bytes_in_total", "Số byte đọc từ client", bytesIn.sum());
+        counter(out, "signaling_bytes_out_total", "Số byte ghi đến client", bytesOut.sum());
+
+        long[] queues = queueTotals();
+        gauge(out, "signaling_outbound_queue_depth", "Tổng số frame đang chờ gửi", queues[0]);
+        gauge(out, "signaling_outbound_queue_depth_max", "Hàng đợi gửi sâu nhất", queues[1]);
+        gauge(out, "signaling_outbound_frames_dropped", "Frame presence bị bỏ/gộp của các session đang mở", queues[2]);
+
+        counter(out, "signaling_heartbeat_timeouts_total", "User bị ngắt do hết hạn heartbeat", heartbeatTimeouts.sum());
+        counter(out, "signaling_relay_bytes_total", "Số byte chuyển qua relay", relayBytes.sum());
+        gauge(out, "signaling_relay_sessions_active", "Phiên relay đang mở", getRelaySessionsActive());
+
+        String frames = "signaling_compression_frames_total";
+        header(out, frames, "Frame được nén / giữ nguyên (nhỏ hơn ngưỡng hoặc nén không lợi)", "counter");
+        out.append(frames).append("{result=\"compressed\"} ").append(FrameCompression.getFramesCompressed()).append('\n');
+        out.append(frames).append("{result=\"skipped\"} ").append(FrameCompression.getFramesSkipped()).append('\n');
+        counter(out, "signaling_compression_bytes_before_total", "Số byte của các frame đã nén, trước khi nén",
+                FrameCompression.getBytesBefore());
+        counter(out, "signaling_compression_bytes_after_total", "Số byte của các frame đã nén, sau khi nén",
+                FrameCompression.getBytesAfter());
+        String cpu = "signaling_compression_cpu_seconds_total";
+        header(out, cpu, "Thời gian CPU cho nén và giải nén", "counter");
+        out.append(cpu).append("{op=\"deflate\"} ").append(FrameCompression.getCompressNanos() / 1e9).append('\n');
+        out.append(cpu).append("{op=\"inflate\"} ").append(FrameCompression.getInflateNanos() / 1e9).append('\n');
+
+        String latency = "signaling_peer_forward_latency_seconds";
+        out.append("# HELP ").append(latency).append(" Thời gian từ PEER_REQUEST đến PEER_INFO\n");
+        out.append("# TYPE ").append(latency).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+            out.append(latency).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(peerForwardLatency.percentile(quantile * 100) / 1e6).append('\n');
+        }
+        out.append(latency).append("_sum ").append(peerForwardLatency.mean() * peerForwardLatency.count() / 1e6).append('\n');
+        out.append(latency).append("_count ").append(peerForwardLatency.count()).append('\n');
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void perType(StringBuilder out, String name, String help, LongAdder[] counters) {
+        header(out, name, help, "counter");
+        for (Message.Type type : TYPES) {
+            out.append(name).append("{type=\"").append(type.name()).append("\"} ")
+                    .append(counters[type.ordinal()].sum()).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.Map;
+
+// Giao diện JMX của ServerMetrics (xem bằng jconsole / VisualVM)
+public interface ServerMetricsMXBean {
+    int getActiveConnections();
+    long getAcceptedConnections();
+    long getRejectedConnections();
+    long getClosedConnections();
+    int getOnlineUsers();
+
+    Map<String, Long> getMessagesIn();
+    Map<String, Long> getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+
+    long getOutboundQueueDepth();
+    long getMaxOutboundQueueDepth();
+    long getOutboundFramesDropped();
+
+    long getHeartbeatTimeouts();
+
+    long getRelayBytes();
+    long getRelaySessionsActive();
+
+    long getCompressedFrames();
+    long getCompressionSavedBytes();
+    double getCompressionRatio();
+    long getCompressionCpuMicros();
+
+    long getPeerForwardCount();
+    long getPeerForwardLatencyP50Micros();
+    long getPeerForwardLatencyP99Micros();
+    long getPeerForwardLatencyP999Micros();
+}
@@ -1,9 +1,20 @@
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class ServerUtils {
-    private static final String CONFIG_FILE = "resources/server.properties";
+    public static final String MODE_BLOCKING = "blocking";
+    public static final String MODE_NIO = "nio";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_SHARDED = "sharded";
+
+    // Đổi file cấu hình bằng -Dserver.config=...; từng khóa cũng có thể ghi đè bằng -D<khóa>=...
+    // (ví dụ chạy nhiều node trên cùng máy với server.port và cluster.port khác nhau)
+    private static final String CONFIG_FILE = System.getProperty("server.config", "resources/server.properties");
     private static Properties properties;
+    private static AsyncLogger logger;
 
     static {
         properties = new Properties();
@@ -13,19 +24,65 @@ public class ServerUtils {
                 properties.load(new FileInputStream(configFile));
             } else {
                 // Default values
-                setDefaultProperties();
+                setDefaultProperties(properties);
             }
         } catch (IOException e) {
             System.err.println("Không thể load cấu hình: " + e.getMessage());
-            setDefaultProperties();
+            setDefaultProperties(properties);
+        }
+        applySystemOverrides();
+        logger = createLogger();
+    }
+
+    // Chỉ nhận các khóa cấu hình đã biết, bỏ qua java.*, user.* ... của JVM
+    private static void applySystemOverrides() {
+        Properties known = new Properties();
+        setDefaultProperties(known);
+        for (String key : known.stringPropertyNames()) {
+            String value = System.getProperty(key);
+            if (value != null) {
+                properties.setProperty(key, value);
+            }
         }
     }
 
-    private static void setDefaultProperties() {
+    private static void setDefaultProperties(Properties properties) {
         properties.setProperty("server.port", "8888");
         properties.setProperty("max.connections", "100");
         properties.setProperty("heartbeat.timeout", "30000");
+        properties.setProperty("heartbeat.tick.ms", "250");
         properties.setProperty("log.level", "INFO");
+        // Để trống log.file thì chỉ ghi ra console
+        properties.setProperty("log.file", "");
+        properties.setProperty("log.file.max.bytes", "10485760");
+        properties.setProperty("log.file.max.count", "5");
+        properties.setProperty("log.buffer.size", "8192");
+        properties.setProperty("server.mode", MODE_BLOCKING);
+        properties.setProperty("nio.event.loops", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        properties.setProperty("outbound.queue.capacity", "1024");
+        properties.setProperty("outbound.overflow.policy", "drop_oldest_presence");
+        properties.setProperty("presence.log.capacity", "4096");
+        properties.setProperty("presence.batch.window.ms", "50");
+        properties.setProperty("metrics.http.port", "9404");
+        // Để trống cluster.node.id thì server chạy đơn lẻ
+        properties.setProperty("cluster.node.id", "");
+        properties.setProperty("cluster.port", "9700");
+        // Để trống cluster.bind.host thì nhận kết nối trên mọi interface
+        properties.setProperty("cluster.bind.host", "");
+        properties.setProperty("cluster.peers", "");
+        // Bắt buộc khi chạy cluster, mọi node phải dùng chung một giá trị
+        properties.setProperty("cluster.secret", "");
+        // Để trống thì dùng data/mailbox, hoặc data/mailbox/<cluster.node.id> khi chạy cluster
+        properties.setProperty("mailbox.dir", "");
+        properties.setProperty("mailbox.segment.bytes", "8388608");
+        properties.setProperty("mailbox.max.per.user", "1000");
+        // relay.port = 0 để tắt relay; để trống relay.host thì client dùng host của signaling server
+        properties.setProperty("relay.port", "9600");
+        properties.setProperty("relay.host", "");
+        properties.setProperty("relay.user.rate.bytes", "1048576");
+        properties.setProperty("relay.user.max.sessions", "8");
+        properties.setProperty("compression.enabled", "true");
+        properties.setProperty("compression.min.bytes", "128");
     }
 
     public static int getServerPort() {
@@ -40,25 +97,214 @@ public class ServerUtils {
         return Long.parseLong(properties.getProperty("heartbeat.timeout", "30000"));
     }
 
+    // Độ phân giải của timing wheel heartbeat: user timeout trễ tối đa một tick
+    public static long getHeartbeatTickMillis() {
+        return Math.max(1, Long.parseLong(properties.getProperty("heartbeat.tick.ms", "250")));
+    }
+
+    // blocking: mỗi client một thread; virtual: mỗi client một virtual thread;
+    // nio: acceptor + event loop dùng Selector; sharded: như nio nhưng mỗi event loop tự accept
+    // trên socket riêng cùng port (SO_REUSEPORT)
+    public static String getServerMode() {
+        return properties.getProperty("server.mode", MODE_BLOCKING).trim().toLowerCase();
+    }
+
+    public static int getEventLoopCount() {
+        int defaultLoops = Runtime.getRuntime().availableProcessors();
+        int loops = Integer.parseInt(properties.getProperty("nio.event.loops", String.valueOf(defaultLoops)));
+        return Math.max(1, loops);
+    }
+
+    // Số frame tối đa chờ gửi cho mỗi client
+    public static int getOutboundQueueCapacity() {
+        return Math.max(1, Integer.parseInt(properties.getProperty("outbound.queue.capacity", "1024")));
+    }
+
+    // drop_oldest_presence | coalesce | disconnect
+    public static OutboundQueue.OverflowPolicy getOutboundOverflowPolicy() {
+        String policy = properties.getProperty("outbound.overflow.policy", "drop_oldest_presence");
+        try {
+            return OutboundQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("outbound.overflow.policy không hợp lệ: " + policy);
+            return OutboundQueue.OverflowPolicy.DROP_OLDEST_PRESENCE;
+        }
+    }
+
+    // Số sự kiện presence gần nhất được giữ lại để trả delta cho client kết nối lại
+    public static int getPresenceLogCapacity() {
+        return Math.max(1, Integer.parseInt(properties.getProperty("presence.log.capacity", "4096")));
+    }
+
+    // Cửa sổ gom tin online/offline trước khi broadcast, 0 để gửi ngay từng tin
+    public static long getPresenceBatchWindow() {
+        return Math.max(0, Long.parseLong(properties.getProperty("presence.batch.window.ms", "50")));
+    }
+
+    // Port của endpoint /metrics (chỉ trên loopback), 0 để tắt. JMX luôn bật.
+    public static int getMetricsHttpPort() {
+        return Integer.parseInt(properties.getProperty("metrics.http.port", "9404"));
+    }
+
+    // Tên node trong cụm, rỗng nếu không chạy theo cụm
+    public static String getClusterNodeId() {
+        return properties.getProperty("cluster.node.id", "").trim();
+    }
+
+    // Port nhận kết nối từ các node khác
+    public static int getClusterPort() {
+        return Integer.parseInt(properties.getProperty("cluster.port", "9700"));
+    }
+
+    // Địa chỉ mở cluster.port, rỗng là mọi interface
+    public static String getClusterBindHost() {
+        return properties.getProperty("cluster.bind.host", "").trim();
+    }
+
+    // Khóa chung của cụm, node không biết khóa không được nhận vào cụm
+    public static String getClusterSecret() {
+        return properties.getProperty("cluster.secret", "");
+    }
+
+    // Danh sách host:port (cluster.port) của các node khác, phân cách bằng dấu phẩy
+    public static List<InetSocketAddress> getClusterPeers() {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : properties.getProperty("cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                if (!peer.isEmpty()) {
+                    System.err.println("cluster.peers không hợp lệ: " + peer);
+                }
+                continue;
+            }
+            try {
+                int port = Integer.parseInt(peer.substring(colon + 1));
+                peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), port));
+            } catch (NumberFormatException e) {
+                System.err.println("cluster.peers không hợp lệ: " + peer);
+            }
+        }
+        return peers;
+    }
+
+    // Thư mục chứa segment của hộp thư offline; mặc định mỗi node cluster một thư mục riêng để
+    // nhiều node trên cùng máy không ghi chung segment
+    public static String getMailboxDir() {
+        String dir = properties.getProperty("mailbox.dir", "").trim();
+        if (!dir.isEmpty()) {
+            return dir;
+        }
+        String nodeId = getClusterNodeId();
+        return nodeId.isEmpty() ? "data/mailbox" : "data/mailbox" + File.separator + nodeId;
+    }
+
+    public static int getMailboxSegmentBytes() {
+        return Integer.parseInt(properties.getProperty("mailbox.segment.bytes", "8388608"));
+    }
+
+    // Số tin đang chờ tối đa cho mỗi người nhận
+    public static int getMailboxMaxPerUser() {
+        return Math.max(1, Integer.parseInt(properties.getProperty("mailbox.max.per.user", "1000")));
+    }
+
+    public static int getRelayPort() {
+        return Integer.parseInt(properties.getProperty("relay.port", "9600"));
+    }
+
+    // Host client dùng để kết nối relay; khi chạy cụm cần đặt để user ở node khác cũng tới được
+    public static String getRelayHost() {
+        return properties.getProperty("relay.host", "").trim();
+    }
+
+    // Số byte mỗi giây một user được gửi qua relay (mọi phiên cộng lại), 0 là không giới hạn
+    public static long getRelayUserRate() {
+        return Math.max(0, Long.parseLong(properties.getProperty("relay.user.rate.bytes", "1048576")));
+    }
+
+    public static int getRelayUserMaxSessions() {
+        return Math.max(1, Integer.parseInt(properties.getProperty("relay.user.max.sessions", "8")));
+    }
+
+    // Nén frame gửi cho client nào báo hỗ trợ trong LOGIN
+    public static boolean isCompressionEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("compression.enabled", "true").trim());
+    }
+
+    // Frame có body nhỏ hơn số byte này thì không nén
+    public static int getCompressionMinBytes() {
+        return Integer.parseInt(properties.getProperty("compression.min.bytes", "128"));
+    }
+
     public static String getLogLevel() {
         return properties.getProperty("log.level", "INFO");
     }
 
+    // Log đi qua AsyncLogger: level được kiểm tra trước, chuỗi chỉ được ghép trên thread nền.
+    // Dùng dạng có "{}" để không phải ghép chuỗi khi level bị tắt.
     public static void log(String level, String message) {
-        String timestamp = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss")
-                .format(new java.util.Date());
-        System.out.println("[" + timestamp + "] [" + level + "] " + message);
+        logger.log(parseLevel(level, AsyncLogger.Level.INFO), message);
+    }
+
+    public static boolean isDebugEnabled() {
+        return logger.isEnabled(AsyncLogger.Level.DEBUG);
+    }
+
+    public static void debug(String pattern, Object... args) {
+        logger.log(AsyncLogger.Level.DEBUG, pattern, args);
     }
 
     public static void info(String message) {
-        log("INFO", message);
+        logger.log(AsyncLogger.Level.INFO, message);
     }
 
-    public static void error(String message) {
-        log("ERROR", message);
+    public static void info(String pattern, Object arg) {
+        logger.log(AsyncLogger.Level.INFO, pattern, arg);
+    }
+
+    public static void info(String pattern, Object arg1, Object arg2) {
+        logger.log(AsyncLogger.Level.INFO, pattern, arg1, arg2);
+    }
+
+    public static void info(String pattern, Object... args) {
+        logger.log(AsyncLogger.Level.INFO, pattern, args);
     }
 
     public static void warn(String message) {
-        log("WARN", message);
+        logger.log(AsyncLogger.Level.WARN, message);
+    }
+
+    public static void warn(String pattern, Object... args) {
+        logger.log(AsyncLogger.Level.WARN, pattern, args);
+    }
+
+    public static void error(String message) {
+        logger.log(AsyncLogger.Level.ERROR, message);
+    }
+
+    public static void error(String pattern, Object... args) {
+        logger.log(AsyncLogger.Level.ERROR, pattern, args);
+    }
+
+    // Ghi hết log đang chờ (gọi khi server dừng)
+    public static void flushLog() {
+        logger.close();
+    }
+
+    private static AsyncLogger createLogger() {
+        AsyncLogger.Level level = parseLevel(getLogLevel(), AsyncLogger.Level.INFO);
+        int capacity = Integer.parseInt(properties.getProperty("log.buffer.size", "8192"));
+        String file = properties.getProperty("log.file", "").trim();
+        long maxBytes = Long.parseLong(properties.getProperty("log.file.max.bytes", "10485760"));
+        int maxFiles = Integer.parseInt(properties.getProperty("log.file.max.count", "5"));
+        return new AsyncLogger(level, capacity, file, maxBytes, maxFiles);
+    }
+
+    private static AsyncLogger.Level parseLevel(String level, AsyncLogger.Level fallback) {
+        try {
+            return AsyncLogger.Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return fallback;
+        }
     }
-}
\ No newline at end of file
+}
@@ -2,38 +2,108 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SignalingServer {
     private ServerSocket serverSocket;
-    private ConcurrentHashMap<String, PeerInfo> onlinePeers;
-    private ConcurrentHashMap<String, ClientHandler> clientHandlers;
+    private NioServer nioServer;
+    private PresenceRegistry registry;
+    private PresenceLog presenceLog;
+    private PresenceBatcher presenceBatcher;
     private ExecutorService threadPool;
+    private final AtomicInteger activeConnections;
+    private final int maxConnections;
     private volatile boolean running;
     private HeartbeatMonitor heartbeatMonitor;
+    private final ServerMetrics metrics;
+    private final MetricsEndpoint metricsEndpoint;
+    private final OfflineMailbox offlineMailbox;
+    // null nếu relay.port = 0
+    private final RelayServer relay;
+    // null nếu server chạy đơn lẻ (cluster.node.id trống)
+    private final ClusterNode cluster;
+    // Giữ thứ tự giữa báo trạng thái cho node khác và cập nhật roster chung, chỉ dùng khi chạy cụm
+    private final Object presenceLock = new Object();
+    // Khóa theo user khi chạy đơn lẻ: trạng thái publish được đọc lại từ registry trong lock nên
+    // logout cũ đến trễ không ghi đè lần đăng nhập mới
+    private final Object[] presenceStripes = new Object[64];
 
     public SignalingServer(int port) throws IOException {
-        this.serverSocket = new ServerSocket(port);
-        this.onlinePeers = new ConcurrentHashMap<>();
-        this.clientHandlers = new ConcurrentHashMap<>();
-        this.threadPool = Executors.newCachedThreadPool();
+        this.registry = new PresenceRegistry();
+        for (int i = 0; i < presenceStripes.length; i++) {
+            presenceStripes[i] = new Object();
+        }
+        this.presenceLog = new PresenceLog(ServerUtils.getPresenceLogCapacity());
+        this.presenceBatcher = new PresenceBatcher(presenceLog, ServerUtils.getPresenceBatchWindow(),
+                this::broadcastFrame);
+        this.activeConnections = new AtomicInteger();
+        this.maxConnections = ServerUtils.getMaxConnections();
         this.running = true;
         this.heartbeatMonitor = new HeartbeatMonitor();
+        this.metrics = new ServerMetrics(this);
+        this.metricsEndpoint = new MetricsEndpoint(metrics);
+        FrameCompression.setMinBodySize(ServerUtils.getCompressionMinBytes());
+        this.offlineMailbox = new OfflineMailbox(ServerUtils.getMailboxDir(), ServerUtils.getMailboxSegmentBytes(),
+                ServerUtils.getMailboxMaxPerUser());
+        int relayPort = ServerUtils.getRelayPort();
+        this.relay = relayPort > 0 ? new RelayServer(relayPort, ServerUtils.getRelayUserRate(),
+                ServerUtils.getRelayUserMaxSessions(), metrics) : null;
+
+        String nodeId = ServerUtils.getClusterNodeId();
+        this.cluster = nodeId.isEmpty() ? null
+                : new ClusterNode(nodeId, ServerUtils.getClusterBindHost(), ServerUtils.getClusterPort(),
+                        ServerUtils.getClusterPeers(), ServerUtils.getClusterSecret(), this);
+
+        String mode = ServerUtils.getServerMode();
+        if (ServerUtils.MODE_NIO.equals(mode) || ServerUtils.MODE_SHARDED.equals(mode)) {
+            this.nioServer = new NioServer(port, ServerUtils.getEventLoopCount(), this,
+                    ServerUtils.MODE_SHARDED.equals(mode));
+        } else {
+            this.serverSocket = new ServerSocket(port);
+            if (ServerUtils.MODE_VIRTUAL.equals(mode)) {
+                // Mỗi ClientHandler chạy trên một virtual thread
+                this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+            } else {
+                this.threadPool = Executors.newCachedThreadPool();
+            }
+        }
 
-        ServerUtils.info("Signaling Server khởi động trên port " + port);
+        ServerUtils.info("Signaling Server khởi động trên port {} (mode: {}, max {} kết nối)",
+                port, mode, maxConnections);
     }
 
     public void start() {
         // Bắt đầu heartbeat monitor
         new Thread(heartbeatMonitor).start();
+        metricsEndpoint.start(ServerUtils.getMetricsHttpPort());
+        if (cluster != null) {
+            cluster.start();
+        }
+        if (relay != null) {
+            try {
+                relay.start();
+            } catch (IOException e) {
+                ServerUtils.error("Không thể mở relay trên port {}: {}", relay.getPort(), e.getMessage());
+            }
+        }
+
+        if (nioServer != null) {
+            nioServer.start();
+            return;
+        }
 
         // Chấp nhận kết nối từ client
         while (running) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                handleNewConnection(clientSocket);
+                if (tryAcquireConnection()) {
+                    handleNewConnection(clientSocket);
+                } else {
+                    rejectConnection(clientSocket);
+                }
             } catch (IOException e) {
                 if (running) {
-                    ServerUtils.error("Lỗi chấp nhận kết nối: " + e.getMessage());
+                    ServerUtils.error("Lỗi chấp nhận kết nối: {}", e.getMessage());
                 }
             }
         }
@@ -43,9 +113,11 @@ public class SignalingServer {
         try {
             ClientHandler clientHandler = new ClientHandler(clientSocket, this);
             threadPool.execute(clientHandler);
-            ServerUtils.info("Client kết nối: " + clientSocket.getInetAddress());
+            threadPool.execute(clientHandler::writeLoop);
+            ServerUtils.info("Client kết nối: {}", clientSocket.getInetAddress());
         } catch (IOException e) {
-            ServerUtils.error("Lỗi xử lý kết nối mới: " + e.getMessage());
+            ServerUtils.error("Lỗi xử lý kết nối mới: {}", e.getMessage());
+            releaseConnection();
             try {
                 clientSocket.close();
             } catch (IOException ex) {
@@ -54,27 +126,90 @@ public class SignalingServer {
         }
     }
 
-    // Thêm peer vào danh sách online
-    public synchronized void addOnlinePeer(String username, InetAddress ipAddress, int port, ClientHandler handler) {
+    // Giữ một slot kết nối, trả về false nếu đã đạt max.connections
+    boolean tryAcquireConnection() {
+        while (true) {
+            int current = activeConnections.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+            if (activeConnections.compareAndSet(current, current + 1)) {
+                metrics.connectionAccepted();
+                return true;
+            }
+        }
+    }
+
+    // Trả slot khi một kết nối đã được chấp nhận bị đóng
+    void releaseConnection() {
+        activeConnections.decrementAndGet();
+        metrics.connectionClosed();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Báo lỗi cho client rồi đóng socket khi server đã đầy
+    void rejectConnection(Socket clientSocket) {
+        metrics.connectionRejected();
+        ServerUtils.warn("Từ chối kết nối từ {}: đã đạt giới hạn {} kết nối",
+                clientSocket.getInetAddress(), maxConnections);
+        try {
+            clientSocket.setSoTimeout(1000);
+            Message errorMsg = new Message(Message.Type.ERROR, "Server", "Server đã đầy, vui lòng thử lại sau");
+            OutputStream out = clientSocket.getOutputStream();
+            MessageCodec.writeFrame(out, errorMsg);
+            out.flush();
+        } catch (IOException e) {
+            // Ignore, client có thể đã đóng kết nối
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    // Thêm peer vào danh sách online.
+    // Không giữ lock nào khi broadcast: chuyển trạng thái nằm trọn trong PresenceRegistry.
+    // presenceCursor là version presence cuối cùng client đã thấy (null nếu chưa có).
+    public void addOnlinePeer(String username, InetAddress ipAddress, int port, ClientSession handler,
+                              String presenceCursor) {
         PeerInfo peerInfo = new PeerInfo(username, ipAddress, port);
-        onlinePeers.put(username, peerInfo);
-        clientHandlers.put(username, handler);
+        PresenceRegistry.Entry previous = registry.register(username, peerInfo, handler);
+        PresenceRegistry.Entry current = registry.getEntry(username);
+        if (current != null && current.getSession() == handler) {
+            heartbeatMonitor.track(current);
+        }
 
-        ServerUtils.info("User online: " + username + " - " + onlinePeers.size() + " users online");
+        ServerUtils.info("User online: {} - {} users online", username, registry.size());
 
-        // Thông báo cho tất cả user khác
-        broadcastUserOnline(username);
+        if (previous != null && previous.getSession() != handler) {
+            // Đăng nhập lại từ kết nối khác: đóng kết nối cũ, user vẫn online nên không broadcast
+            ServerUtils.info("User {} đăng nhập lại, đóng kết nối cũ", username);
+            previous.getSession().disconnect();
+        } else {
+            // Thông báo cho tất cả user khác
+            broadcastUserOnline(username);
+        }
 
-        // Gửi danh sách user online cho user mới
-        sendOnlineUsersToUser(username);
+        // Gửi danh sách user online (hoặc phần thay đổi) cho user mới
+        sendPresenceSync(username, presenceCursor);
     }
 
-    // Xóa peer khỏi danh sách online
-    public synchronized void removeOnlinePeer(String username) {
-        onlinePeers.remove(username);
-        clientHandlers.remove(username);
+    // Xóa peer khỏi danh sách online, chỉ khi user vẫn đang gắn với session này
+    public void removeOnlinePeer(String username, ClientSession handler) {
+        if (!registry.unregister(username, handler)) {
+            return;
+        }
 
-        ServerUtils.info("User offline: " + username + " - " + onlinePeers.size() + " users online");
+        ServerUtils.info("User offline: {} - {} users online", username, registry.size());
 
         // Thông báo cho tất cả user khác
         broadcastUserOffline(username);
@@ -82,65 +217,146 @@ public class SignalingServer {
 
     // Lấy thông tin peer
     public PeerInfo getPeerInfo(String username) {
-        return onlinePeers.get(username);
+        return registry.getPeer(username);
+    }
+
+    public PresenceRegistry getRegistry() {
+        return registry;
     }
 
     // Gửi tin nhắn đến user cụ thể
-    public void sendMessageToUser(String targetUser, Object message) {
-        ClientHandler handler = clientHandlers.get(targetUser);
+    public void sendMessageToUser(String targetUser, Message message) {
+        ClientSession handler = registry.getSession(targetUser);
         if (handler != null && handler.isConnected()) {
             handler.sendMessage(message);
         }
     }
 
+    // Thống kê hàng đợi gửi theo từng user
+    public Map<String, OutboundQueue.Stats> getOutboundStats() {
+        Map<String, OutboundQueue.Stats> stats = new HashMap<>();
+        for (PresenceRegistry.Entry entry : registry.entries()) {
+            stats.put(entry.getUsername(), entry.getSession().getOutboundStats());
+        }
+        return stats;
+    }
+
+    // Gửi message đến user trên node này, hoặc chuyển đến node đang giữ user khi chạy cụm.
+    // false nếu không gửi được (user vừa offline hoặc link đến node của user vừa rớt).
+    private boolean routeToUser(String targetUser, Message message) {
+        ClientSession handler = registry.getSession(targetUser);
+        if (handler != null && handler.isConnected()) {
+            handler.sendMessage(message);
+            return true;
+        }
+        return cluster != null && cluster.forward(targetUser, message);
+    }
+
+    // Như routeToUser nhưng báo lỗi cho người gửi khi không gửi được
+    private boolean routeOrReport(String fromUser, String targetUser, Message message) {
+        if (routeToUser(targetUser, message)) {
+            return true;
+        }
+        sendMessageToUser(fromUser, new Message(Message.Type.ERROR, "Server", "User " + targetUser + " không online"));
+        return false;
+    }
+
+    // User online trên node này hoặc trên một node khác trong cụm
+    private boolean isReachable(String username) {
+        return registry.getPeer(username) != null || (cluster != null && cluster.isRemoteOnline(username));
+    }
+
     // Broadcast user online
+    // Tin presence được gom theo cửa sổ presence.batch.window.ms rồi mới gửi đi
     private void broadcastUserOnline(String username) {
-        Message onlineMsg = new Message(Message.Type.USER_ONLINE, username, "online");
-        broadcastMessage(onlineMsg, username); // Không gửi cho chính user đó
+        if (cluster != null) {
+            localPresenceChanged(username);
+            return;
+        }
+        publishLocalPresence(username);
     }
 
     // Broadcast user offline
     private void broadcastUserOffline(String username) {
-        Message offlineMsg = new Message(Message.Type.USER_OFFLINE, username, "offline");
-        broadcastMessage(offlineMsg, username);
+        if (cluster != null) {
+            localPresenceChanged(username);
+            return;
+        }
+        publishLocalPresence(username);
     }
 
-    // Broadcast tin nhắn đến tất cả user (trừ excludeUser)
-    private void broadcastMessage(Message message, String excludeUser) {
-        for (String username : clientHandlers.keySet()) {
-            if (!username.equals(excludeUser)) {
-                sendMessageToUser(username, message);
+    // Chạy đơn lẻ: publish trạng thái hiện tại trong registry (không phải trạng thái lúc gọi),
+    // chỉ khi khác với trạng thái đã publish
+    private void publishLocalPresence(String username) {
+        synchronized (presenceStripes[(username.hashCode() & 0x7FFFFFFF) % presenceStripes.length]) {
+            boolean online = registry.isOnline(username);
+            if (online != presenceLog.isOnline(username)) {
+                presenceBatcher.publish(username, online);
             }
         }
     }
 
-    // Gửi danh sách user online cho user mới
-// Gửi danh sách user online cho user mới
-    private void sendOnlineUsersToUser(String targetUser) {
-        StringBuilder usersList = new StringBuilder();
-        for (String username : onlinePeers.keySet()) {
-            if (!username.equals(targetUser)) {
-                if (usersList.length() > 0) {
-                    usersList.append(",");
-                }
-                usersList.append(username);
+    // User đăng nhập/thoát trên node này: báo cho các node khác rồi cập nhật roster chung
+    private void localPresenceChanged(String username) {
+        synchronized (presenceLock) {
+            cluster.announce(username, registry.isOnline(username));
+            reconcilePresence(username);
+        }
+    }
+
+    // ClusterNode gọi khi user trên một node khác online/offline
+    void remotePresenceChanged(String username) {
+        synchronized (presenceLock) {
+            reconcilePresence(username);
+        }
+
+        // Tin nhắn lưu ở node này cho user vừa đăng nhập ở node khác
+        if (cluster.isRemoteOnline(username) && offlineMailbox.hasPending(username)) {
+            forwardStoredMessages(username);
+        }
+    }
+
+    // Roster chung: user online nếu có session ở bất kỳ node nào. Chỉ broadcast khi trạng thái
+    // chung thay đổi, nên user chuyển từ node này sang node khác không bị báo offline.
+    private void reconcilePresence(String username) {
+        boolean online = registry.isOnline(username) || cluster.isRemoteOnline(username);
+        if (online != presenceLog.isOnline(username)) {
+            presenceBatcher.publish(username, online);
+        }
+    }
+
+    // Broadcast frame đến tất cả user.
+    // Frame chỉ được mã hóa một lần, mọi người nhận dùng chung cùng một mảng byte.
+    void broadcastFrame(OutboundFrame frame) {
+        for (PresenceRegistry.Entry entry : registry.entries()) {
+            ClientSession handler = entry.getSession();
+            if (handler.isConnected()) {
+                handler.sendFrame(frame);
             }
         }
+    }
 
-        Message usersMsg = new Message(Message.Type.GET_ONLINE_USERS, "Server", usersList.toString());
-        sendMessageToUser(targetUser, usersMsg);
+    // Gửi trạng thái presence cho user: chỉ phần thay đổi kể từ cursor nếu log còn giữ,
+    // ngược lại là snapshot toàn bộ user online
+    public void sendPresenceSync(String targetUser, String presenceCursor) {
+        Message syncMsg = presenceLog.syncMessage(presenceCursor);
+        sendMessageToUser(targetUser, syncMsg);
 
-        ServerUtils.info("Gửi danh sách " + onlinePeers.size() + " users đến " + targetUser);
+        String content = syncMsg.getContent();
+        ServerUtils.info("Gửi {} {} bytes presence đến {} (version {})",
+                content.contains(";S;") ? "snapshot" : "delta", content.length(), targetUser, presenceLog.getVersion());
     }
 
     // Xử lý yêu cầu kết nối P2P
     public void handlePeerRequest(String fromUser, String toUser) {
-        PeerInfo targetPeer = onlinePeers.get(toUser);
-        if (targetPeer != null) {
-            // Gửi yêu cầu kết nối đến target user
+        if (isReachable(toUser)) {
+            // Gửi yêu cầu kết nối đến target user (có thể ở node khác)
             Message requestMsg = new Message(Message.Type.PEER_REQUEST, fromUser, "peer_request");
-            sendMessageToUser(toUser, requestMsg);
-            ServerUtils.info("Gửi yêu cầu P2P từ " + fromUser + " đến " + toUser);
+            metrics.peerRequestForwarded(fromUser, toUser);
+            if (!routeOrReport(fromUser, toUser, requestMsg)) {
+                return;
+            }
+            ServerUtils.info("Gửi yêu cầu P2P từ {} đến {}", fromUser, toUser);
         } else {
             // User không online
             Message errorMsg = new Message(Message.Type.ERROR, "Server", "User " + toUser + " không online");
@@ -148,17 +364,121 @@ public class SignalingServer {
         }
     }
 
+    // Client không kết nối P2P trực tiếp được: cấp token relay và gửi RELAY_OFFER cho cả hai bên.
+    // content = "host:port:token:role", host rỗng thì client dùng host của signaling server;
+    // role "connect" là bên gửi PEER_READY trước (như bên chủ động kết nối P2P), "accept" là bên chờ.
+    public void handleRelayRequest(String fromUser, String toUser) {
+        if (relay == null) {
+            sendMessageToUser(fromUser, new Message(Message.Type.ERROR, "Server", "Server không hỗ trợ relay"));
+            return;
+        }
+        if (!isReachable(toUser)) {
+            sendMessageToUser(fromUser, new Message(Message.Type.ERROR, "Server", "User " + toUser + " không online"));
+            return;
+        }
+
+        String token = relay.issue(fromUser, toUser);
+        String endpoint = ServerUtils.getRelayHost() + ":" + relay.getPort() + ":" + token;
+        sendMessageToUser(fromUser, new Message(Message.Type.RELAY_OFFER, toUser, endpoint + ":connect"));
+        if (!routeOrReport(fromUser, toUser, new Message(Message.Type.RELAY_OFFER, fromUser, endpoint + ":accept"))) {
+            return;
+        }
+        ServerUtils.info("Cấp relay cho {} và {}", fromUser, toUser);
+    }
+
+    // Tin nhắn client gửi qua server khi không có kết nối P2P: giao ngay nếu người nhận online,
+    // ngược lại lưu vào hộp thư offline và giao khi họ đăng nhập
+    public void handleTextMessage(String fromUser, String toUser, String content) {
+        Message text = new Message(Message.Type.TEXT, fromUser, content);
+        text.setToUser(toUser);
+        // Không chuyển được sang node của người nhận thì lưu lại như khi người nhận offline
+        if (isReachable(toUser) && routeToUser(toUser, text)) {
+            return;
+        }
+
+        try {
+            if (!offlineMailbox.store(text)) {
+                sendMessageToUser(fromUser, new Message(Message.Type.ERROR, "Server",
+                        "Hộp thư của " + toUser + " đã đầy"));
+                return;
+            }
+            ServerUtils.info("Lưu tin nhắn offline từ {} cho {}", fromUser, toUser);
+        } catch (IOException e) {
+            ServerUtils.error("Không thể lưu tin nhắn offline cho {}: {}", toUser, e.getMessage());
+            sendMessageToUser(fromUser, new Message(Message.Type.ERROR, "Server",
+                    "Không thể lưu tin nhắn cho " + toUser));
+            return;
+        }
+
+        // Người nhận đăng nhập ngay trong lúc đang lưu
+        if (isReachable(toUser)) {
+            deliverOfflineMessages(toUser);
+        }
+    }
+
+    // Giao một lần mọi tin nhắn đã lưu cho user, gọi sau khi user đăng nhập xong
+    public void deliverOfflineMessages(String username) {
+        if (!offlineMailbox.hasPending(username)) {
+            return;
+        }
+        ClientSession handler = registry.getSession(username);
+        if (handler == null || !handler.isConnected()) {
+            if (cluster != null && cluster.isRemoteOnline(username)) {
+                forwardStoredMessages(username);
+            }
+            return;
+        }
+
+        List<Message> messages = offlineMailbox.drain(username);
+        for (Message message : messages) {
+            handler.sendMessage(message);
+        }
+        ServerUtils.info("Giao {} tin nhắn offline cho {}", messages.size(), username);
+    }
+
+    // Chuyển tin đã lưu cho user đang ở node khác. Link đến node đó có thể vừa rớt: từ tin đầu tiên
+    // không chuyển được, phần còn lại được lưu lại theo đúng thứ tự để giao lần sau.
+    private void forwardStoredMessages(String username) {
+        List<Message> messages = offlineMailbox.drain(username);
+        for (int i = 0; i < messages.size(); i++) {
+            if (!cluster.forward(username, messages.get(i))) {
+                storeAgain(username, messages.subList(i, messages.size()));
+                return;
+            }
+        }
+    }
+
+    private void storeAgain(String username, List<Message> messages) {
+        int lost = 0;
+        for (Message message : messages) {
+            try {
+                if (!offlineMailbox.store(message)) {
+                    lost++;
+                }
+            } catch (IOException e) {
+                ServerUtils.error("Không thể lưu lại tin nhắn cho {}: {}", username, e.getMessage());
+                lost++;
+            }
+        }
+        if (lost > 0) {
+            ServerUtils.warn("Mất {} tin nhắn cho {} khi không chuyển được sang node khác", lost, username);
+        }
+    }
+
     // Xử lý thông tin peer để thiết lập P2P
     public void handlePeerInfo(String fromUser, String toUser, String peerInfo) {
         // Chuyển thông tin peer đến user đích
+        metrics.peerInfoForwarded(fromUser, toUser);
         Message peerInfoMsg = new Message(Message.Type.PEER_INFO, fromUser, peerInfo);
-        sendMessageToUser(toUser, peerInfoMsg);
-        ServerUtils.info("Chuyển thông tin peer từ " + fromUser + " đến " + toUser);
+        if (!routeOrReport(fromUser, toUser, peerInfoMsg)) {
+            return;
+        }
+        ServerUtils.info("Chuyển thông tin peer từ {} đến {}", fromUser, toUser);
     }
 
     // Cập nhật heartbeat
     public void updateHeartbeat(String username) {
-        PeerInfo peer = onlinePeers.get(username);
+        PeerInfo peer = registry.getPeer(username);
         if (peer != null) {
             peer.updateHeartbeat();
         }
@@ -167,35 +487,55 @@ public class SignalingServer {
     // Dừng server
     public void stop() {
         running = false;
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            // Ignore
-        }
+        if (nioServer != null) {
+            nioServer.stop();
+        } else {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
 
-        threadPool.shutdown();
+            threadPool.shutdown();
+        }
         heartbeatMonitor.stop();
 
         // Đóng tất cả kết nối client
-        for (ClientHandler handler : clientHandlers.values()) {
-            handler.disconnect();
+        for (PresenceRegistry.Entry entry : registry.entries()) {
+            entry.getSession().disconnect();
+        }
+        if (cluster != null) {
+            cluster.stop();
         }
+        presenceBatcher.stop();
+        metricsEndpoint.stop();
+        if (relay != null) {
+            relay.stop();
+        }
+        offlineMailbox.close();
 
         ServerUtils.info("Signaling Server đã dừng");
     }
 
     // Lớp monitor heartbeat
     private class HeartbeatMonitor implements Runnable {
+        private final long timeout;
+        private final TimingWheel<PresenceRegistry.Entry> wheel;
         private volatile boolean monitoring = true;
 
+        HeartbeatMonitor() {
+            this.timeout = ServerUtils.getHeartbeatTimeout();
+            this.wheel = new TimingWheel<>(ServerUtils.getHeartbeatTickMillis(), timeout, this::onDeadline);
+        }
+
         @Override
         public void run() {
-            ServerUtils.info("Heartbeat Monitor started");
+            ServerUtils.info("Heartbeat Monitor started (tick {}ms)", wheel.getTickMillis());
 
             while (monitoring) {
                 try {
-                    Thread.sleep(10000); // Kiểm tra mỗi 10 giây
-                    checkTimeouts();
+                    Thread.sleep(wheel.getTickMillis());
+                    wheel.advance(System.currentTimeMillis());
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -205,24 +545,38 @@ public class SignalingServer {
             ServerUtils.info("Heartbeat Monitor stopped");
         }
 
-        private void checkTimeouts() {
-            long timeout = ServerUtils.getHeartbeatTimeout();
-            List<String> timedOutUsers = new ArrayList<>();
+        // Theo dõi lần đăng nhập mới, hết hạn sau timeout nếu không có heartbeat
+        public void track(PresenceRegistry.Entry entry) {
+            wheel.schedule(entry, entry.getPeer().getLastHeartbeat() + timeout);
+        }
 
-            for (Map.Entry<String, PeerInfo> entry : onlinePeers.entrySet()) {
-                if (entry.getValue().isTimedOut(timeout)) {
-                    timedOutUsers.add(entry.getKey());
-                }
+        // Heartbeat chỉ ghi lastHeartbeat, không động đến wheel. Khi mốc cũ đến hạn,
+        // deadline thật được tính lại từ lastHeartbeat và entry được gia hạn nếu còn sống,
+        // nên mỗi entry chỉ được xem lại khoảng một lần mỗi timeout.
+        private long onDeadline(PresenceRegistry.Entry entry, long now) {
+            if (!registry.isCurrent(entry)) {
+                // Đã logout hoặc đăng nhập lại bằng session khác (có entry mới được theo dõi)
+                return -1;
+            }
+
+            long deadline = entry.getPeer().getLastHeartbeat() + timeout;
+            if (deadline >= now) {
+                return deadline;
             }
 
-            for (String username : timedOutUsers) {
-                ServerUtils.warn("User timeout: " + username);
-                removeOnlinePeer(username);
+            if (registry.expire(entry, timeout)) {
+                ServerUtils.warn("User timeout: {}", entry.getUsername());
+                metrics.heartbeatTimeout();
+                broadcastUserOffline(entry.getUsername());
+                entry.getSession().disconnect();
+                return -1;
             }
+            // Heartbeat vừa đến ngay trước khi xóa
+            return entry.getPeer().getLastHeartbeat() + timeout;
         }
 
         public void stop() {
             monitoring = false;
         }
     }
-}
\ No newline at end of file
+}
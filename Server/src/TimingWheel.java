@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hashed timing wheel: các mốc hết hạn được băm vào slot theo tick, mỗi tick chỉ duyệt
+// đúng một slot nên chi phí không phụ thuộc vào tổng số mục đang theo dõi.
+// Mốc xa hơn một vòng quay được giữ trong slot kèm số vòng còn lại.
+//
+// schedule() gọi được từ bất kỳ thread nào (đưa vào hàng chờ), advance() chỉ được gọi từ
+// một thread duy nhất, nên bản thân các slot không cần lock.
+public class TimingWheel<T> {
+    // Gọi khi một mục đến hạn. Trả về mốc hết hạn mới (millis) nếu mục vẫn còn hiệu lực,
+    // hoặc số âm để bỏ theo dõi.
+    public interface ExpiryHandler<T> {
+        long onExpire(T item, long now);
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<Timeout<T>>[] slots;
+    private final ConcurrentLinkedQueue<Timeout<T>> pending;
+    private final ExpiryHandler<T> handler;
+    private final long startTime;
+    private long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long maxDelayMillis, ExpiryHandler<T> handler) {
+        this.tickMillis = Math.max(1, tickMillis);
+        // Đủ slot để mốc dài nhất nằm trong một vòng, làm tròn lên lũy thừa của 2
+        int wanted = (int) Math.min(1 << 16, maxDelayMillis / this.tickMillis + 1);
+        int size = Integer.highestOneBit(Math.max(1, wanted - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new List[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.handler = handler;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    // Theo dõi item, đến hạn tại deadline (millis)
+    public void schedule(T item, long deadline) {
+        pending.add(new Timeout<>(item, deadline));
+    }
+
+    // Xử lý mọi tick đã trôi qua tính đến now
+    public void advance(long now) {
+        long target = (now - startTime) / tickMillis;
+        while (tick <= target) {
+            drainPending();
+            expireSlot(now);
+            tick++;
+        }
+    }
+
+    private void drainPending() {
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            place(timeout, tick);
+        }
+    }
+
+    // Đặt timeout vào slot của tick đến hạn; fromTick là tick sớm nhất chưa được duyệt.
+    // Mốc đã qua thì xử lý ngay ở fromTick.
+    private void place(Timeout<T> timeout, long fromTick) {
+        long deadlineTick = Math.max(fromTick, (timeout.deadline - startTime + tickMillis - 1) / tickMillis);
+        timeout.rounds = (deadlineTick - fromTick) / slots.length;
+        slots[(int) (deadlineTick & mask)].add(timeout);
+    }
+
+    private void expireSlot(long now) {
+        List<Timeout<T>> slot = slots[(int) (tick & mask)];
+        if (slot.isEmpty()) {
+            return;
+        }
+
+        List<Timeout<T>> due = new ArrayList<>();
+        int kept = 0;
+        for (Timeout<T> timeout : slot) {
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+            } else {
+                due.add(timeout);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+
+        for (Timeout<T> timeout : due) {
+            long next = handler.onExpire(timeout.item, now);
+            if (next >= 0) {
+                // Gia hạn: slot hiện tại đã duyệt xong nên tính từ tick kế tiếp
+                timeout.deadline = next;
+                place(timeout, tick + 1);
+            }
+        }
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private static class Timeout<T> {
+        private final T item;
+        private long deadline;
+        private long rounds;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}